@@ -35,6 +35,13 @@ import java.io.IOException;
  *
  * For instance it can make an image available to the Web Browser without copying it to the internal
  * storage, or a video file to a video file as a HTTP stream.
+ *
+ * Requesting a directory returns a JSON listing of its entries. The query parameters cursor and
+ * limit select a page of the listing, fields selects the attributes of the entries. With the
+ * query parameter zip, the directory and all its contents are downloaded as a ZIP archive.
+ *
+ * Files can be uploaded with PUT or POST. The body of the request is written to the file at the
+ * requested path when the upload is complete, replacing an existing file.
  */
 public class UsbFileHttpServer implements UsbFileProvider {
 
@@ -42,6 +49,7 @@ public class UsbFileHttpServer implements UsbFileProvider {
     private UsbFile rootFile;
     private LruCache<String, UsbFile> fileCache = new LruCache<>(100);
     private HttpServer server;
+    private int uploadCount = 0;
 
     public UsbFileHttpServer(@NonNull UsbFile file, @NonNull HttpServer server) {
         this.rootFile = file;
@@ -70,6 +78,7 @@ public class UsbFileHttpServer implements UsbFileProvider {
         return server.isAlive();
     }
 
+    @Override
     public UsbFile determineFileToServe(String uri) throws IOException {
         UsbFile fileToServe = fileCache.get(uri);
 
@@ -85,7 +94,11 @@ public class UsbFileHttpServer implements UsbFileProvider {
 
                 fileToServe = rootFile;
             } else {
-                fileToServe = rootFile.search(uri.substring(1));
+                String path = uri.substring(1);
+                if (path.endsWith("/")) {
+                    path = path.substring(0, path.length() - 1);
+                }
+                fileToServe = path.isEmpty() ? rootFile : rootFile.search(path);
             }
         } else {
             Log.d(TAG, "Using lru cache for " + uri);
@@ -97,12 +110,60 @@ public class UsbFileHttpServer implements UsbFileProvider {
             throw new FileNotFoundException("Not found " + uri);
         }
 
-        if(fileToServe.isDirectory()) {
-            throw new NotAFileException();
-        }
-
         fileCache.put(uri, fileToServe);
 
         return fileToServe;
     }
+
+    /**
+     * Uploads are written to a hidden file next to the target, so a failed upload does not
+     * destroy an existing file. All changes to directories for uploads are made while holding
+     * the lock of this object, since the files are closed from the upload threads.
+     */
+    @Override
+    public synchronized UsbFile createFileToUpload(String uri) throws IOException {
+        try {
+            if (determineFileToServe(uri).isDirectory()) {
+                throw new NotAFileException();
+            }
+        } catch (FileNotFoundException e) {
+            // a new file is created
+        }
+
+        int slash = uri.lastIndexOf('/');
+        String name = uri.substring(slash + 1);
+        UsbFile parent = determineFileToServe(uri.substring(0, slash + 1));
+        if (name.isEmpty() || !parent.isDirectory()) {
+            throw new FileNotFoundException("Cannot create " + uri);
+        }
+
+        String tempName = "." + name + "." + (++uploadCount) + ".upload";
+        Log.d(TAG, "Uploading " + uri + " to " + tempName);
+        return parent.createFile(tempName);
+    }
+
+    @Override
+    public synchronized void commitUpload(String uri, UsbFile file) throws IOException {
+        file.close();
+
+        String name = uri.substring(uri.lastIndexOf('/') + 1);
+        UsbFile existing = file.getParent().search(name);
+        if (existing != null) {
+            if (existing.isDirectory()) {
+                file.delete();
+                throw new NotAFileException();
+            }
+            Log.d(TAG, "Replacing " + uri);
+            existing.delete();
+        }
+
+        file.setName(name);
+        fileCache.put(uri, file);
+    }
+
+    @Override
+    public synchronized void abortUpload(String uri, UsbFile file) throws IOException {
+        Log.d(TAG, "Discarding upload to " + uri);
+        file.delete();
+    }
 }
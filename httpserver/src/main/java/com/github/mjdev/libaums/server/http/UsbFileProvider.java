@@ -6,4 +6,22 @@ import java.io.IOException;
 
 public interface UsbFileProvider {
     UsbFile determineFileToServe(String uri) throws IOException;
+
+    /**
+     * Returns a new temporary file in the directory of the given uri, which an
+     * upload to the uri is written to. An existing file at the uri is not
+     * changed until the upload is committed.
+     */
+    UsbFile createFileToUpload(String uri) throws IOException;
+
+    /**
+     * Closes the temporary file of a complete upload and moves it to the
+     * given uri, replacing an existing file.
+     */
+    void commitUpload(String uri, UsbFile file) throws IOException;
+
+    /**
+     * Deletes the temporary file of a failed upload.
+     */
+    void abortUpload(String uri, UsbFile file) throws IOException;
 }
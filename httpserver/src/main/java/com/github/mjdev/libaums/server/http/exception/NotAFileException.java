@@ -8,6 +8,6 @@ import java.io.IOException;
 
 public class NotAFileException extends IOException {
     public NotAFileException() {
-        super("Directory listing is not supported, please request a file.");
+        super("The requested path is a directory, please request a file.");
     }
 }
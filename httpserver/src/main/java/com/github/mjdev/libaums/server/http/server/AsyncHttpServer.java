@@ -3,40 +3,108 @@ package com.github.mjdev.libaums.server.http.server;
 import android.util.Log;
 
 import com.github.mjdev.libaums.fs.UsbFile;
-import com.github.mjdev.libaums.fs.UsbFileInputStream;
 import com.github.mjdev.libaums.server.http.UsbFileProvider;
 import com.github.mjdev.libaums.server.http.exception.NotAFileException;
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.NullDataCallback;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.http.Multimap;
 import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
 import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
 import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
  * Created by magnusja on 16/12/16.
+ *
+ * All callbacks of AndroidAsync run on a single server thread, which must
+ * never wait for the device. Files are read by the {@link StreamScheduler},
+ * which posts to the server thread whenever a slice is ready. Other bodies
+ * which read the device, like ZIP archives and directory listings, are read
+ * on a worker thread and handed to the server thread in chunks. The files of
+ * requests are looked up on a worker thread as well, and uploads are created
+ * there before their body is read.
  */
 public class AsyncHttpServer implements HttpServer, HttpServerRequestCallback {
     private static final String TAG = AsyncHttpServer.class.getSimpleName();
+    /**
+     * Default size of the chunks files are read in. A multiple of all common
+     * cluster sizes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+    private static final String BOUNDARY = "LIBAUMS_BYTERANGES";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
 
     private UsbFileProvider usbFileProvider;
     private com.koushikdutta.async.http.server.AsyncHttpServer server =
             new com.koushikdutta.async.http.server.AsyncHttpServer();
     private boolean isAlive = false;
     private int port;
+    private StreamScheduler scheduler;
+    private DirectoryListings listings = new DirectoryListings();
+    private int chunkSize;
+    /**
+     * Reads the bodies which are not served by the scheduler.
+     */
+    private ExecutorService streamExecutor;
 
     public AsyncHttpServer(int port) {
+        this(port, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize The size of the chunks files are read in. It should be a
+     *                  multiple of the cluster size of the file system, so
+     *                  that reads are cluster aligned.
+     */
+    public AsyncHttpServer(int port, int chunkSize) {
         this.port = port;
+        this.chunkSize = chunkSize;
+        scheduler = new StreamScheduler(chunkSize, StreamScheduler.DEFAULT_READ_AHEAD);
 
         server.get("/.*", this);
+        HttpServerRequestCallback uploadCallback = new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                onUpload(request, response);
+            }
+        };
+        server.addAction("PUT", "/.*", uploadCallback);
+        server.post("/.*", uploadCallback);
     }
 
     @Override
     public void start() throws IOException {
+        streamExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "USB HTTP stream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         server.listen(port);
         isAlive = true;
     }
@@ -46,9 +114,23 @@ public class AsyncHttpServer implements HttpServer, HttpServerRequestCallback {
         server.stop();
         // force the server to stop even if there are ongoing connections
         AsyncServer.getDefault().stop();
+        scheduler.shutdown();
+        listings.clear();
+        if (streamExecutor != null) {
+            streamExecutor.shutdownNow();
+            streamExecutor = null;
+        }
         isAlive = false;
     }
 
+    /**
+     * @return The scheduler which reads the files for all connections, eg. to
+     * set a bandwidth limit.
+     */
+    public StreamScheduler getStreamScheduler() {
+        return scheduler;
+    }
+
     @Override
     public boolean isAlive() {
         return isAlive;
@@ -70,8 +152,8 @@ public class AsyncHttpServer implements HttpServer, HttpServerRequestCallback {
     }
 
     @Override
-    public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
-        String uri;
+    public void onRequest(final AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+        final String uri;
         try {
             uri = URLDecoder.decode(request.getPath(), "utf-8");
         } catch (UnsupportedEncodingException e) {
@@ -83,18 +165,652 @@ public class AsyncHttpServer implements HttpServer, HttpServerRequestCallback {
 
         Log.d(TAG, "Uri: " + uri);
 
-        try {
-            UsbFile fileToServe = usbFileProvider.determineFileToServe(uri);
-            response.sendStream(new UsbFileInputStream(fileToServe), fileToServe.getLength());
-        } catch (FileNotFoundException e) {
+        streamExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final UsbFile fileToServe;
+                try {
+                    fileToServe = usbFileProvider.determineFileToServe(uri);
+                } catch (IOException e) {
+                    postError(response, e);
+                    return;
+                }
+
+                AsyncServer.getDefault().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (fileToServe.isDirectory()) {
+                                serveDirectory(request, response, uri, fileToServe);
+                            } else {
+                                serveFile(request, response, fileToServe);
+                            }
+                        } catch (IOException e) {
+                            sendError(response, e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the status code matching the exception, must be called on the
+     * server thread.
+     */
+    private static void sendError(AsyncHttpServerResponse response, IOException e) {
+        if (e instanceof FileNotFoundException) {
             response.code(404);
-            response.send(e.getMessage());
-        } catch (NotAFileException e) {
+        } else if (e instanceof NotAFileException) {
             response.code(400);
-            response.send(e.getMessage());
-        } catch (IOException e) {
+        } else {
             response.code(500);
+        }
+        response.send(e.getMessage());
+    }
+
+    private static void postError(final AsyncHttpServerResponse response, final IOException e) {
+        AsyncServer.getDefault().post(new Runnable() {
+            @Override
+            public void run() {
+                sendError(response, e);
+            }
+        });
+    }
+
+    private void serveFile(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+                           UsbFile file) throws IOException {
+        long length = file.getLength();
+        String mimeType = com.koushikdutta.async.http.server.AsyncHttpServer.getContentType(file.getName());
+        String rangeHeader = request.getHeaders().get("Range");
+
+        response.getHeaders().set("Accept-Ranges", "bytes");
+        response.getHeaders().set("ETag", HttpValidators.getETag(file));
+        response.getHeaders().set("Last-Modified", HttpValidators.getLastModified(file));
+
+        if (HttpValidators.isNotModified(file, request.getHeaders().get("If-None-Match"),
+                request.getHeaders().get("If-Modified-Since"))) {
+            Log.d(TAG, "Not modified");
+            response.code(304);
+            response.end();
+            return;
+        }
+
+        if (rangeHeader != null && !HttpValidators.isRangeValid(file, request.getHeaders().get("If-Range"))) {
+            Log.d(TAG, "If-Range does not match, ignoring range");
+            rangeHeader = null;
+        }
+
+        List<ByteRange> ranges = rangeHeader == null ? null : ByteRange.parse(rangeHeader, length);
+
+        if (ranges == null) {
+            Log.d(TAG, "Serving complete file");
+            response.code(200);
+            response.setContentType(mimeType);
+            List<ByteRange> complete = length == 0 ? Collections.<ByteRange>emptyList() :
+                    Collections.singletonList(new ByteRange(0, length - 1));
+            send(response, new FileSender(response, scheduler.register(file, complete), complete,
+                    null, null), length);
+        } else if (ranges.isEmpty()) {
+            Log.d(TAG, "Range not satisfiable: " + rangeHeader);
+            response.code(416);
+            response.getHeaders().set("Content-Range", "bytes */" + length);
+            response.end();
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            Log.d(TAG, "Serving range " + range.toContentRange(length));
+            response.code(206);
+            response.setContentType(mimeType);
+            response.getHeaders().set("Content-Range", range.toContentRange(length));
+            send(response, new FileSender(response, scheduler.register(file, ranges), ranges,
+                    null, null), range.getLength());
+        } else {
+            Log.d(TAG, "Serving " + ranges.size() + " ranges");
+            List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+            long contentLength = 0;
+            for (ByteRange range : ranges) {
+                byte[] partHeader = ("\r\n--" + BOUNDARY + "\r\n" +
+                        "Content-Type: " + mimeType + "\r\n" +
+                        "Content-Range: " + range.toContentRange(length) + "\r\n\r\n").getBytes(ASCII);
+                partHeaders.add(partHeader);
+                contentLength += partHeader.length + range.getLength();
+            }
+            byte[] trailer = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(ASCII);
+            contentLength += trailer.length;
+
+            response.code(206);
+            response.setContentType("multipart/byteranges; boundary=" + BOUNDARY);
+            send(response, new FileSender(response, scheduler.register(file, ranges), ranges,
+                    partHeaders, trailer), contentLength);
+        }
+    }
+
+    private void onUpload(final AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+        final String uri;
+        try {
+            uri = URLDecoder.decode(request.getPath(), "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "could not decode URL", e);
+            response.code(404);
             response.send(e.getMessage());
+            return;
+        }
+
+        Log.d(TAG, "Upload to: " + uri);
+
+        long parsedLength = -1;
+        String contentLength = request.getHeaders().get("Content-Length");
+        if (contentLength != null) {
+            try {
+                parsedLength = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // length stays unknown
+            }
+        }
+        final long length = parsedLength;
+
+        // the body is kept until the file has been created and preallocated on a worker
+        request.pause();
+        streamExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean exists;
+                final UploadWriter writer;
+                try {
+                    exists = exists(uri);
+                    writer = new UploadWriter(usbFileProvider, uri, length, chunkSize,
+                            UploadWriter.DEFAULT_BUFFERS);
+                } catch (final IOException e) {
+                    AsyncServer.getDefault().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // the body is not needed anymore
+                            request.setDataCallback(new NullDataCallback());
+                            request.resume();
+                            sendError(response, e);
+                        }
+                    });
+                    return;
+                }
+
+                AsyncServer.getDefault().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        new Upload(request, response, writer, exists ? 204 : 201, uri, listings).start();
+                        request.resume();
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean exists(String uri) throws IOException {
+        try {
+            usbFileProvider.determineFileToServe(uri);
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Receives the body of an upload and hands it to an {@link UploadWriter}.
+     * If all buffers of the writer are full, the request is paused instead of
+     * blocking the server thread, and resumed when the writer has written a
+     * buffer. All methods except the callbacks of the writer are called on the
+     * server thread.
+     */
+    private static class Upload implements DataCallback, CompletedCallback, Runnable,
+            UploadWriter.Callback {
+        private final AsyncHttpServerRequest request;
+        private final AsyncHttpServerResponse response;
+        private final UploadWriter writer;
+        private final int successCode;
+        private final String uri;
+        private final DirectoryListings listings;
+        /**
+         * Data which did not fit into the buffers of the writer.
+         */
+        private byte[] pending;
+        private int pendingOffset;
+        private boolean ended = false;
+
+        Upload(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+               UploadWriter writer, int successCode, String uri, DirectoryListings listings) {
+            this.request = request;
+            this.response = response;
+            this.writer = writer;
+            this.successCode = successCode;
+            this.uri = uri;
+            this.listings = listings;
+        }
+
+        void start() {
+            writer.setBufferFreedCallback(new Runnable() {
+                @Override
+                public void run() {
+                    AsyncServer.getDefault().post(Upload.this);
+                }
+            });
+            request.setDataCallback(this);
+            request.setEndCallback(this);
+        }
+
+        @Override
+        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+            byte[] data = bb.getAllByteArray();
+            if (pending != null) {
+                // data can still arrive after pausing the request, keep what was not written yet
+                int remaining = pending.length - pendingOffset;
+                byte[] joined = new byte[remaining + data.length];
+                System.arraycopy(pending, pendingOffset, joined, 0, remaining);
+                System.arraycopy(data, 0, joined, remaining, data.length);
+                data = joined;
+            }
+            pending = data;
+            pendingOffset = 0;
+            writePending();
+        }
+
+        /**
+         * @return True if all pending data has been accepted by the writer.
+         */
+        private boolean writePending() {
+            if (pending == null) {
+                return true;
+            }
+
+            try {
+                pendingOffset += writer.write(pending, pendingOffset, pending.length - pendingOffset, false);
+            } catch (IOException e) {
+                Log.e(TAG, "upload failed", e);
+                pending = null;
+                writer.abort();
+                request.setDataCallback(new NullDataCallback());
+                response.code(500);
+                response.send(e.getMessage());
+                return false;
+            }
+
+            if (pendingOffset < pending.length) {
+                request.pause();
+                return false;
+            }
+
+            pending = null;
+            return true;
+        }
+
+        /**
+         * Called on the server thread when the writer has a free buffer.
+         */
+        @Override
+        public void run() {
+            if (pending == null || !writePending()) {
+                return;
+            }
+
+            if (ended) {
+                writer.finish(this);
+            } else {
+                request.resume();
+            }
+        }
+
+        @Override
+        public void onCompleted(Exception ex) {
+            if (ex != null) {
+                Log.e(TAG, "upload aborted", ex);
+                writer.abort();
+                return;
+            }
+
+            ended = true;
+            if (pending == null) {
+                writer.finish(this);
+            }
+        }
+
+        @Override
+        public void onFinished(final IOException e) {
+            listings.invalidateParent(uri);
+            AsyncServer.getDefault().post(new Runnable() {
+                @Override
+                public void run() {
+                    if (e != null) {
+                        response.code(500);
+                        response.send(e.getMessage());
+                    } else {
+                        response.code(successCode);
+                        response.end();
+                    }
+                }
+            });
+        }
+    }
+
+    private void serveDirectory(AsyncHttpServerRequest request, final AsyncHttpServerResponse response,
+                                String uri, final UsbFile directory) throws IOException {
+        Multimap query = request.getQuery();
+        if (query.containsKey("zip")) {
+            Log.d(TAG, "Serving directory as zip");
+            // the archive lists the whole tree first, which must not block the server thread
+            streamExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final InputStream zip;
+                    try {
+                        zip = new DirectoryZipInputStream(directory, scheduler);
+                    } catch (IOException e) {
+                        postError(response, e);
+                        return;
+                    }
+
+                    AsyncServer.getDefault().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            response.code(200);
+                            response.setContentType(DirectoryZipInputStream.MIME_TYPE);
+                            response.getHeaders().set("Content-Disposition", getZipDisposition(directory));
+                            sendStream(response, zip, -1);
+                        }
+                    });
+                }
+            });
+            return;
+        }
+
+        Log.d(TAG, "Serving directory listing");
+        InputStream stream = new DirectoryListingInputStream(uri, directory,
+                query.getString("cursor"), query.getString("limit"), query.getString("fields"), listings);
+        response.code(200);
+        response.setContentType(DirectoryListingInputStream.MIME_TYPE);
+        sendStream(response, stream, -1);
+    }
+
+    static String getZipDisposition(UsbFile directory) {
+        String name = directory.isRoot() ? "usb" : directory.getName();
+        return "attachment; filename=\"" + name.replace("\"", "") + ".zip\"";
+    }
+
+    /**
+     * Sends the stream as the body of the response. The stream is read on a
+     * worker thread. This is used instead of
+     * {@link AsyncHttpServerResponse#sendStream(InputStream, long)}, because
+     * that reads the stream on the server thread and handles the Range header
+     * itself by skipping in the stream.
+     *
+     * @param contentLength The length of the stream, or -1 if unknown.
+     */
+    private void sendStream(AsyncHttpServerResponse response, InputStream stream,
+                            long contentLength) {
+        send(response, new StreamSender(response, stream, streamExecutor, chunkSize), contentLength);
+    }
+
+    private static void send(AsyncHttpServerResponse response, Sender sender, long contentLength) {
+        if (contentLength >= 0) {
+            response.getHeaders().set("Content-Length", String.valueOf(contentLength));
+        }
+        // otherwise sent with chunked transfer encoding
+        response.writeHead();
+        sender.start();
+    }
+
+    /**
+     * Writes a body to a response without blocking the server thread. All
+     * methods are called on the server thread. Whenever the source has new
+     * data, {@link #run()} has to be posted to the server thread.
+     */
+    private static abstract class Sender implements Runnable, WritableCallback, CompletedCallback {
+        final AsyncHttpServerResponse response;
+        private final ByteBufferList pending = new ByteBufferList();
+        private boolean done = false;
+
+        Sender(AsyncHttpServerResponse response) {
+            this.response = response;
+        }
+
+        void start() {
+            response.setWriteableCallback(this);
+            response.setClosedCallback(this);
+            run();
+        }
+
+        /**
+         * @return The next data of the body, or null if there is none yet or
+         * the body is complete, see {@link #isComplete()}.
+         */
+        abstract ByteBuffer next() throws IOException;
+
+        abstract boolean isComplete();
+
+        /**
+         * Releases the source after the body has been sent or the connection
+         * has been closed.
+         */
+        abstract void release();
+
+        @Override
+        public void run() {
+            if (done) {
+                return;
+            }
+
+            try {
+                while (true) {
+                    if (pending.hasRemaining()) {
+                        response.write(pending);
+                        if (pending.hasRemaining()) {
+                            // continued by onWriteable
+                            return;
+                        }
+                    }
+
+                    ByteBuffer data = next();
+                    if (data == null) {
+                        if (isComplete()) {
+                            done = true;
+                            release();
+                            response.end();
+                        }
+                        return;
+                    }
+                    pending.add(data);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "error while sending body", e);
+                done = true;
+                release();
+                response.end();
+            }
+        }
+
+        @Override
+        public void onWriteable() {
+            run();
+        }
+
+        @Override
+        public void onCompleted(Exception ex) {
+            // the connection has been closed
+            if (ex != null) {
+                Log.e(TAG, "connection closed while sending body", ex);
+            }
+            if (!done) {
+                done = true;
+                release();
+            }
+        }
+    }
+
+    /**
+     * Sends ranges of a file, which are read by the {@link StreamScheduler}.
+     * The scheduler posts to the server thread whenever it has read a slice.
+     */
+    private static class FileSender extends Sender {
+        private final StreamScheduler.Client client;
+        private final List<ByteRange> ranges;
+        private final List<byte[]> partHeaders;
+        private byte[] trailer;
+
+        private int rangeIndex = 0;
+        private boolean rangeStarted = false;
+        private long rangeRemaining;
+        private boolean complete = false;
+
+        /**
+         * @param partHeaders Bytes to send before each range, or null.
+         * @param trailer Bytes to send after the last range, or null.
+         */
+        FileSender(AsyncHttpServerResponse response, StreamScheduler.Client client,
+                   List<ByteRange> ranges, List<byte[]> partHeaders, byte[] trailer) {
+            super(response);
+            this.client = client;
+            this.ranges = ranges;
+            this.partHeaders = partHeaders;
+            this.trailer = trailer;
+        }
+
+        @Override
+        void start() {
+            client.setDataListener(new Runnable() {
+                @Override
+                public void run() {
+                    AsyncServer.getDefault().post(FileSender.this);
+                }
+            });
+            super.start();
+        }
+
+        @Override
+        ByteBuffer next() throws IOException {
+            while (rangeIndex < ranges.size()) {
+                if (!rangeStarted) {
+                    rangeStarted = true;
+                    rangeRemaining = ranges.get(rangeIndex).getLength();
+                    if (partHeaders != null) {
+                        return ByteBuffer.wrap(partHeaders.get(rangeIndex));
+                    }
+                }
+
+                if (rangeRemaining == 0) {
+                    rangeIndex++;
+                    rangeStarted = false;
+                    continue;
+                }
+
+                // slices never span two ranges
+                ByteBuffer slice = client.poll();
+                if (slice != null) {
+                    rangeRemaining -= slice.remaining();
+                }
+                return slice;
+            }
+
+            if (trailer != null) {
+                ByteBuffer result = ByteBuffer.wrap(trailer);
+                trailer = null;
+                return result;
+            }
+
+            complete = true;
+            return null;
+        }
+
+        @Override
+        boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        void release() {
+            client.close();
+        }
+    }
+
+    /**
+     * Sends an InputStream, which is read on a worker thread. Only a few
+     * chunks are read ahead, the worker waits until the server thread has
+     * taken them.
+     */
+    private static class StreamSender extends Sender {
+        private static final int CHUNKS = 4;
+        /**
+         * Marks the end of the stream in the queue.
+         */
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(CHUNKS);
+        private final InputStream stream;
+        private final ExecutorService executor;
+        private final int chunkSize;
+        private Future<?> worker;
+        private volatile IOException error;
+        private boolean complete = false;
+
+        StreamSender(AsyncHttpServerResponse response, InputStream stream, ExecutorService executor,
+                     int chunkSize) {
+            super(response);
+            this.stream = stream;
+            this.executor = executor;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        void start() {
+            worker = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        try {
+                            byte[] buffer = new byte[chunkSize];
+                            int read;
+                            while ((read = stream.read(buffer)) >= 0) {
+                                if (read > 0) {
+                                    chunks.put(ByteBuffer.wrap(Arrays.copyOf(buffer, read)));
+                                    AsyncServer.getDefault().post(StreamSender.this);
+                                }
+                            }
+                        } catch (IOException e) {
+                            error = e;
+                        } finally {
+                            try {
+                                stream.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "could not close stream", e);
+                            }
+                        }
+                        chunks.put(END);
+                        AsyncServer.getDefault().post(StreamSender.this);
+                    } catch (InterruptedException e) {
+                        // the connection has been closed
+                    }
+                }
+            });
+            super.start();
+        }
+
+        @Override
+        ByteBuffer next() throws IOException {
+            ByteBuffer chunk = chunks.poll();
+            if (chunk == END) {
+                if (error != null) {
+                    throw error;
+                }
+                complete = true;
+                return null;
+            }
+            return chunk;
+        }
+
+        @Override
+        boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        void release() {
+            worker.cancel(true);
         }
     }
 }
@@ -0,0 +1,88 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes requested with the HTTP Range header. Start and end are
+ * both inclusive, as in the header.
+ */
+class ByteRange {
+    private static final String UNIT = "bytes=";
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    String toContentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * Parses the value of a Range header.
+     *
+     * @param header The value of the header.
+     * @param length The length of the requested file.
+     * @return The satisfiable ranges in the order they were requested, an empty
+     * list if none of the ranges is satisfiable, or null if the header is
+     * malformed and shall be ignored.
+     */
+    static List<ByteRange> parse(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith(UNIT)) {
+            return null;
+        }
+
+        List<ByteRange> result = new ArrayList<>();
+        for (String spec : header.substring(UNIT.length()).split(",")) {
+            spec = spec.trim();
+            int minus = spec.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+
+            long start;
+            long end;
+            try {
+                if (minus == 0) {
+                    // suffix range, the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    start = Math.max(length - suffix, 0);
+                    end = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(spec.substring(0, minus));
+                    if (minus == spec.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(spec.substring(minus + 1));
+                        if (end < start) {
+                            return null;
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start >= length) {
+                // not satisfiable, but other ranges may be
+                continue;
+            }
+
+            result.add(new ByteRange(start, Math.min(end, length - 1)));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Produces a JSON listing of a directory. The JSON for an entry is only
+ * created when the stream is read, so the response can be sent while the
+ * listing is generated and is never held in memory as a whole. The entries
+ * come from {@link DirectoryListings}, which reads the directory in batches,
+ * so the first entries are sent before the whole directory has been read.
+ * Reading the stream thus waits for the device and must not happen on a
+ * thread which serves other connections.
+ * <p>
+ * The listing looks like this:
+ * <pre>
+ * {"path":"/dir","entries":[
+ * {"name":"a.txt","directory":false,"size":3,"lastModified":0,"created":0,"lastAccessed":0},
+ * {"name":"b","directory":true,...}],"total":2,"next":null}
+ * </pre>
+ * The total number of entries is only known when the whole directory has
+ * been read, so it follows the entries. A page of the listing starts at a
+ * cursor and contains at most limit entries. The value of next is the cursor
+ * for the following page, or null if this is the last page. With fields, the
+ * attributes of every entry can be restricted to the ones the client needs.
+ */
+class DirectoryListingInputStream extends InputStream {
+
+    static final String MIME_TYPE = "application/json; charset=utf-8";
+
+    static final String FIELD_NAME = "name";
+    static final String FIELD_DIRECTORY = "directory";
+    static final String FIELD_SIZE = "size";
+    static final String FIELD_LAST_MODIFIED = "lastModified";
+    static final String FIELD_CREATED = "created";
+    static final String FIELD_LAST_ACCESSED = "lastAccessed";
+
+    private static final Set<String> ALL_FIELDS = new HashSet<>(Arrays.asList(FIELD_NAME,
+            FIELD_DIRECTORY, FIELD_SIZE, FIELD_LAST_MODIFIED, FIELD_CREATED, FIELD_LAST_ACCESSED));
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DirectoryListings.Listing listing;
+    private Set<String> fields;
+    private int start;
+    private int index;
+    private int end;
+    private byte[] current;
+    private int currentPosition;
+    private boolean finished = false;
+
+    /**
+     * @param path The path of the directory as requested by the client.
+     * @param cursor The cursor from the query, or null to start at the first entry.
+     * @param limit The maximum number of entries from the query, or null for all.
+     * @param fields Comma separated list of fields from the query, or null for all.
+     * @param listings The listings, pages after the first one use the cached
+     *                 listing of the first page.
+     */
+    DirectoryListingInputStream(String path, UsbFile directory, String cursor, String limit,
+                                String fields, DirectoryListings listings) {
+        listing = listings.get(path, directory, cursor != null);
+        start = parseNumber(cursor, 0);
+        index = start;
+        end = (int) Math.min((long) start + parseNumber(limit, Integer.MAX_VALUE), Integer.MAX_VALUE);
+
+        if (fields == null) {
+            this.fields = ALL_FIELDS;
+        } else {
+            this.fields = new HashSet<>();
+            for (String field : fields.split(",")) {
+                this.fields.add(field.trim());
+            }
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append("{\"path\":");
+        appendString(header, path);
+        header.append(",\"entries\":[");
+        setCurrent(header);
+    }
+
+    private static int parseNumber(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(Integer.parseInt(value.trim()), 0);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private void setCurrent(CharSequence json) {
+        current = json.toString().getBytes(UTF8);
+        currentPosition = 0;
+    }
+
+    private static void appendString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    private void appendEntry(StringBuilder builder, UsbFile file) {
+        builder.append('{');
+        int length = builder.length();
+        if (fields.contains(FIELD_NAME)) {
+            builder.append("\"" + FIELD_NAME + "\":");
+            appendString(builder, file.getName());
+        }
+        if (fields.contains(FIELD_DIRECTORY)) {
+            appendSeparator(builder, length);
+            builder.append("\"" + FIELD_DIRECTORY + "\":").append(file.isDirectory());
+        }
+        if (fields.contains(FIELD_SIZE) && !file.isDirectory()) {
+            appendSeparator(builder, length);
+            builder.append("\"" + FIELD_SIZE + "\":").append(file.getLength());
+        }
+        if (fields.contains(FIELD_LAST_MODIFIED)) {
+            appendSeparator(builder, length);
+            builder.append("\"" + FIELD_LAST_MODIFIED + "\":").append(file.lastModified());
+        }
+        if (fields.contains(FIELD_CREATED)) {
+            appendSeparator(builder, length);
+            builder.append("\"" + FIELD_CREATED + "\":").append(file.createdAt());
+        }
+        if (fields.contains(FIELD_LAST_ACCESSED)) {
+            appendSeparator(builder, length);
+            builder.append("\"" + FIELD_LAST_ACCESSED + "\":").append(file.lastAccessed());
+        }
+        builder.append('}');
+    }
+
+    private static void appendSeparator(StringBuilder builder, int entryStart) {
+        if (builder.length() > entryStart) {
+            builder.append(',');
+        }
+    }
+
+    /**
+     * Creates the JSON for the next entry, or the end of the listing.
+     *
+     * @return False if the listing is complete.
+     */
+    private boolean next() throws IOException {
+        if (finished) {
+            return false;
+        }
+
+        UsbFile file = index < end ? listing.get(index) : null;
+        if (file != null) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(index > start ? ",\n" : "\n");
+            appendEntry(builder, file);
+            index++;
+            setCurrent(builder);
+            return true;
+        }
+
+        finished = true;
+        int total = listing.size();
+        StringBuilder builder = new StringBuilder();
+        builder.append("],\"total\":").append(total);
+        builder.append(",\"next\":").append(index < total ? "\"" + index + "\"" : "null");
+        builder.append('}');
+        setCurrent(builder);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        if (read(b, 0, 1) < 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int byteOffset, int byteCount) throws IOException {
+        if (byteCount == 0) {
+            return 0;
+        }
+
+        // fill the buffer with as many entries as fit
+        int read = 0;
+        while (read < byteCount) {
+            if (currentPosition >= current.length && !next()) {
+                break;
+            }
+
+            int size = Math.min(byteCount - read, current.length - currentPosition);
+            System.arraycopy(current, currentPosition, b, byteOffset + read, size);
+            currentPosition += size;
+            read += size;
+        }
+
+        return read == 0 ? -1 : read;
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.ListFilesTask;
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Lists directories for {@link DirectoryListingInputStream} and keeps the
+ * recent listings, so that the pages after the first one are served from
+ * memory instead of listing the directory again.
+ * <p>
+ * A directory is listed in the background in batches, see
+ * {@link UsbFile#listFilesAsync}. Readers of a listing get the entries as
+ * soon as their batch has been read, so the first entries of a large
+ * directory can be sent before the whole directory has been read.
+ * <p>
+ * Listings are identified by the path of the directory. A request without a
+ * cursor always lists the directory again, requests with a cursor use the
+ * cached listing if it is not older than {@link #MAX_AGE}. Uploads invalidate
+ * the listing of their directory.
+ */
+class DirectoryListings {
+
+    static final int MAX_LISTINGS = 8;
+    /**
+     * Time in ms a listing is used for following pages.
+     */
+    static final long MAX_AGE = 60 * 1000;
+
+    private final Map<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "USB directory listing");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The entries of a directory, which are added while it is listed.
+     */
+    static class Listing implements ListFilesTask.Callback {
+        private final List<UsbFile> files = new ArrayList<>();
+        private final long created = System.currentTimeMillis();
+        private boolean complete = false;
+        private IOException error;
+
+        @Override
+        public synchronized void onFiles(UsbFile[] batch) {
+            Collections.addAll(files, batch);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            complete = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(IOException e) {
+            error = e;
+            notifyAll();
+        }
+
+        /**
+         * Returns the entry with the given index, waits until it has been
+         * read.
+         *
+         * @return The entry, or null if the directory has fewer entries.
+         */
+        synchronized UsbFile get(int index) throws IOException {
+            while (index >= files.size() && !complete) {
+                waitForChange();
+            }
+            return index < files.size() ? files.get(index) : null;
+        }
+
+        /**
+         * Returns the number of entries, waits until the whole directory has
+         * been read.
+         */
+        synchronized int size() throws IOException {
+            while (!complete) {
+                waitForChange();
+            }
+            return files.size();
+        }
+
+        private void waitForChange() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while listing directory");
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private synchronized boolean isUsable() {
+            return error == null && System.currentTimeMillis() - created < MAX_AGE;
+        }
+    }
+
+    /**
+     * Returns the listing of a directory and starts listing it if needed.
+     *
+     * @param path The path of the directory as requested by the client.
+     * @param reuse True if a cached listing can be used, eg. for the second
+     *              page of a listing.
+     */
+    Listing get(String path, UsbFile directory, boolean reuse) {
+        String key = normalize(path);
+        synchronized (listings) {
+            Listing listing = listings.get(key);
+            if (reuse && listing != null && listing.isUsable()) {
+                return listing;
+            }
+
+            listing = new Listing();
+            listings.put(key, listing);
+            directory.listFilesAsync(null, executor, listing);
+            return listing;
+        }
+    }
+
+    /**
+     * Removes the listing of the directory containing the given path, eg.
+     * after a file has been uploaded to it.
+     */
+    void invalidateParent(String path) {
+        String key = normalize(path);
+        int index = key.lastIndexOf(UsbFile.separator);
+        String parent = index <= 0 ? UsbFile.separator : key.substring(0, index);
+        synchronized (listings) {
+            listings.remove(parent);
+        }
+    }
+
+    void clear() {
+        synchronized (listings) {
+            listings.clear();
+        }
+    }
+
+    private static String normalize(String path) {
+        while (path.length() > 1 && path.endsWith(UsbFile.separator)) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.isEmpty() ? UsbFile.separator : path;
+    }
+}
@@ -0,0 +1,385 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+import com.github.mjdev.libaums.fs.fat32.FatFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a directory and all its descendants as a ZIP archive.
+ * <p>
+ * The entries are stored without compression. The CRC of a file is computed
+ * while it is streamed and sent in a data descriptor after the data, so
+ * neither a temporary file nor more than one chunk of a file is needed. Only
+ * the central directory, one small record per entry, is kept in memory until
+ * the end of the archive. ZIP64 records are used for files and archives larger
+ * than 4 GiB.
+ * <p>
+ * The tree is walked before streaming starts, which only reads directory
+ * entries. The files are then sent in the order of their location on the
+ * device, so that the device is read as sequentially as possible.
+ */
+class DirectoryZipInputStream extends InputStream {
+
+    static final String MIME_TYPE = "application/zip";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+
+    private static final short VERSION = 20;
+    private static final short VERSION_ZIP64 = 45;
+    /**
+     * Names are UTF-8.
+     */
+    private static final short FLAG_UTF8 = 0x0800;
+    /**
+     * Data descriptor follows the data.
+     */
+    private static final short FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+    private static class Entry {
+        final String name;
+        final UsbFile file;
+        long offset;
+        long size;
+        long crc;
+
+        Entry(String name, UsbFile file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        boolean isDirectory() {
+            return file.isDirectory();
+        }
+
+        boolean isZip64() {
+            return !isDirectory() && file.getLength() >= ZIP64_LIMIT;
+        }
+
+        short getFlags() {
+            // directories have no data and thus no data descriptor
+            return isDirectory() ? FLAG_UTF8 : FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+        }
+    }
+
+    private final StreamScheduler scheduler;
+    private final List<Entry> entries = new ArrayList<>();
+    private int entryIndex = 0;
+
+    private byte[] literal = new byte[0];
+    private int literalPosition;
+    private InputStream data;
+    private CRC32 crc = new CRC32();
+    private boolean finished = false;
+    /**
+     * Number of bytes of the archive produced so far.
+     */
+    private long position = 0;
+
+    DirectoryZipInputStream(UsbFile directory, StreamScheduler scheduler) throws IOException {
+        this.scheduler = scheduler;
+
+        List<Entry> files = new ArrayList<>();
+        collect(directory, "", files);
+        Collections.sort(files, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                long left = getStartCluster(lhs.file);
+                long right = getStartCluster(rhs.file);
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        entries.addAll(files);
+    }
+
+    private static long getStartCluster(UsbFile file) {
+        if (file instanceof FatFile) {
+            return ((FatFile) file).getStartCluster();
+        }
+        // keep the order of the directory
+        return 0;
+    }
+
+    /**
+     * Adds the directories to the entries in the order they are found and the
+     * files to the given list.
+     */
+    private void collect(UsbFile directory, String prefix, List<Entry> files) throws IOException {
+        for (UsbFile file : directory.listFiles()) {
+            String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                entries.add(new Entry(name + "/", file));
+                collect(file, name + "/", files);
+            } else {
+                files.add(new Entry(name, file));
+            }
+        }
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private void setLiteral(byte[] bytes) {
+        literal = bytes;
+        literalPosition = 0;
+    }
+
+    /**
+     * @return The time of the file in MS-DOS format, time in the lower and
+     * date in the upper half.
+     */
+    private static int getDosTime(UsbFile file) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(file.lastModified());
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        int date = ((year - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5)
+                | calendar.get(Calendar.DAY_OF_MONTH);
+        int time = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) / 2);
+        return (date << 16) | time;
+    }
+
+    private byte[] createLocalHeader(Entry entry) {
+        byte[] name = entry.name.getBytes(UTF8);
+        long size = entry.isDirectory() ? 0 : entry.file.getLength();
+        boolean zip64 = entry.isZip64();
+
+        ByteBuffer buffer = allocate(30 + name.length + (zip64 ? 20 : 0));
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort(zip64 ? VERSION_ZIP64 : VERSION);
+        buffer.putShort(entry.getFlags());
+        // stored
+        buffer.putShort((short) 0);
+        buffer.putInt(getDosTime(entry.file));
+        // the crc follows in the data descriptor, the sizes are already known
+        buffer.putInt(0);
+        buffer.putInt(zip64 ? (int) ZIP64_LIMIT : (int) size);
+        buffer.putInt(zip64 ? (int) ZIP64_LIMIT : (int) size);
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) (zip64 ? 20 : 0));
+        buffer.put(name);
+        if (zip64) {
+            buffer.putShort(ZIP64_EXTRA_ID);
+            buffer.putShort((short) 16);
+            buffer.putLong(size);
+            buffer.putLong(size);
+        }
+        return buffer.array();
+    }
+
+    private byte[] createDataDescriptor(Entry entry) {
+        boolean zip64 = entry.isZip64();
+        ByteBuffer buffer = allocate(zip64 ? 24 : 16);
+        buffer.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        buffer.putInt((int) entry.crc);
+        if (zip64) {
+            buffer.putLong(entry.size);
+            buffer.putLong(entry.size);
+        } else {
+            buffer.putInt((int) entry.size);
+            buffer.putInt((int) entry.size);
+        }
+        return buffer.array();
+    }
+
+    private byte[] createCentralDirectory() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long centralDirectoryOffset = position;
+
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(UTF8);
+            boolean sizeZip64 = entry.size >= ZIP64_LIMIT;
+            boolean offsetZip64 = entry.offset >= ZIP64_LIMIT;
+            int extraLength = (sizeZip64 || offsetZip64 ? 4 : 0) + (sizeZip64 ? 16 : 0) + (offsetZip64 ? 8 : 0);
+
+            ByteBuffer buffer = allocate(46 + name.length + extraLength);
+            buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+            short version = extraLength > 0 || entry.isZip64() ? VERSION_ZIP64 : VERSION;
+            buffer.putShort(version);
+            buffer.putShort(version);
+            buffer.putShort(entry.getFlags());
+            buffer.putShort((short) 0);
+            buffer.putInt(getDosTime(entry.file));
+            buffer.putInt((int) entry.crc);
+            buffer.putInt(sizeZip64 ? (int) ZIP64_LIMIT : (int) entry.size);
+            buffer.putInt(sizeZip64 ? (int) ZIP64_LIMIT : (int) entry.size);
+            buffer.putShort((short) name.length);
+            buffer.putShort((short) extraLength);
+            // comment length, disk number, internal attributes
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            // MS-DOS directory attribute
+            buffer.putInt(entry.isDirectory() ? 0x10 : 0);
+            buffer.putInt(offsetZip64 ? (int) ZIP64_LIMIT : (int) entry.offset);
+            buffer.put(name);
+            if (extraLength > 0) {
+                buffer.putShort(ZIP64_EXTRA_ID);
+                buffer.putShort((short) (extraLength - 4));
+                if (sizeZip64) {
+                    buffer.putLong(entry.size);
+                    buffer.putLong(entry.size);
+                }
+                if (offsetZip64) {
+                    buffer.putLong(entry.offset);
+                }
+            }
+            out.write(buffer.array(), 0, buffer.capacity());
+        }
+
+        long centralDirectorySize = out.size();
+        long zip64EndOffset = centralDirectoryOffset + centralDirectorySize;
+        boolean zip64 = entries.size() >= 0xFFFF || centralDirectoryOffset >= ZIP64_LIMIT
+                || centralDirectorySize >= ZIP64_LIMIT;
+
+        if (zip64) {
+            ByteBuffer buffer = allocate(56 + 20);
+            buffer.putInt(ZIP64_END_SIGNATURE);
+            buffer.putLong(44);
+            buffer.putShort(VERSION_ZIP64);
+            buffer.putShort(VERSION_ZIP64);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(entries.size());
+            buffer.putLong(entries.size());
+            buffer.putLong(centralDirectorySize);
+            buffer.putLong(centralDirectoryOffset);
+
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+            out.write(buffer.array(), 0, buffer.capacity());
+        }
+
+        ByteBuffer buffer = allocate(22);
+        buffer.putInt(END_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        short count = (short) Math.min(entries.size(), 0xFFFF);
+        buffer.putShort(count);
+        buffer.putShort(count);
+        buffer.putInt((int) Math.min(centralDirectorySize, ZIP64_LIMIT));
+        buffer.putInt((int) Math.min(centralDirectoryOffset, ZIP64_LIMIT));
+        buffer.putShort((short) 0);
+        out.write(buffer.array(), 0, buffer.capacity());
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Prepares the next part of the archive.
+     *
+     * @return False if the archive is complete.
+     */
+    private boolean next() throws IOException {
+        if (data != null) {
+            // data of the current file is complete
+            Entry entry = entries.get(entryIndex);
+            data.close();
+            data = null;
+            entry.crc = crc.getValue();
+            setLiteral(createDataDescriptor(entry));
+            entryIndex++;
+            return true;
+        }
+
+        if (entryIndex < entries.size()) {
+            Entry entry = entries.get(entryIndex);
+            entry.offset = position;
+            setLiteral(createLocalHeader(entry));
+            if (entry.isDirectory()) {
+                entryIndex++;
+            } else {
+                long length = entry.file.getLength();
+                List<ByteRange> ranges = length == 0 ? Collections.<ByteRange>emptyList() :
+                        Collections.singletonList(new ByteRange(0, length - 1));
+                data = new UsbFileRangeInputStream(entry.file, ranges, scheduler);
+                crc.reset();
+            }
+            return true;
+        }
+
+        if (!finished) {
+            finished = true;
+            setLiteral(createCentralDirectory());
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        if (read(b, 0, 1) < 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int byteOffset, int byteCount) throws IOException {
+        if (byteCount == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (literalPosition < literal.length) {
+                int size = Math.min(byteCount, literal.length - literalPosition);
+                System.arraycopy(literal, literalPosition, b, byteOffset, size);
+                literalPosition += size;
+                position += size;
+                return size;
+            }
+
+            if (data != null) {
+                int read = data.read(b, byteOffset, byteCount);
+                if (read > 0) {
+                    crc.update(b, byteOffset, read);
+                    entries.get(entryIndex).size += read;
+                    position += read;
+                    return read;
+                }
+            }
+
+            if (!next()) {
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (data != null) {
+            data.close();
+            data = null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Creates the validators ETag and Last-Modified for a {@link UsbFile} and
+ * evaluates the conditional request headers against them. Everything is
+ * derived from the metadata in the directory entry, so evaluating a condition
+ * does not read the content of the file.
+ */
+class HttpValidators {
+
+    private HttpValidators() {
+    }
+
+    private static DateFormat createDateFormat() {
+        // SimpleDateFormat is not thread safe
+        DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * The ETag changes if the file is modified, resized or replaced by another
+     * file with the same name.
+     */
+    static String getETag(UsbFile file) {
+        return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.getLength())
+                + "-" + Long.toHexString(file.createdAt()) + "\"";
+    }
+
+    static String getLastModified(UsbFile file) {
+        return createDateFormat().format(new Date(file.lastModified()));
+    }
+
+    /**
+     * @return The time in milliseconds, or -1 if the date cannot be parsed.
+     */
+    private static long parseDate(String date) {
+        try {
+            return createDateFormat().parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Checks If-None-Match and If-Modified-Since. If-Modified-Since is ignored
+     * if If-None-Match is present.
+     *
+     * @return True if the client already has the current version of the file
+     * and a 304 Not Modified can be sent.
+     */
+    static boolean isNotModified(UsbFile file, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            String eTag = getETag(file);
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    // weak comparison
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            // HTTP dates have a resolution of one second
+            return since >= 0 && file.lastModified() / 1000 <= since / 1000;
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks If-Range.
+     *
+     * @return True if the Range header shall be applied, false if the whole
+     * file has to be sent because it has changed.
+     */
+    static boolean isRangeValid(UsbFile file, String ifRange) {
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            // weak tags never match, a strong comparison is required
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(getETag(file));
+        }
+
+        long date = parseDate(ifRange);
+        return date >= 0 && file.lastModified() / 1000 == date / 1000;
+    }
+}
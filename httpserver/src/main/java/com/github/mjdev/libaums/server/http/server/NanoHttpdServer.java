@@ -3,7 +3,6 @@ package com.github.mjdev.libaums.server.http.server;
 import android.util.Log;
 
 import com.github.mjdev.libaums.fs.UsbFile;
-import com.github.mjdev.libaums.fs.UsbFileInputStream;
 import com.github.mjdev.libaums.server.http.UsbFileProvider;
 import com.github.mjdev.libaums.server.http.exception.NotAFileException;
 
@@ -12,6 +11,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -22,6 +23,9 @@ import fi.iki.elonen.NanoHTTPD;
 public class NanoHttpdServer extends NanoHTTPD implements  HttpServer {
     private static final String TAG =  NanoHttpdServer.class.getSimpleName();
     private UsbFileProvider usbFileProvider;
+    private StreamScheduler scheduler = new StreamScheduler(AsyncHttpServer.DEFAULT_CHUNK_SIZE,
+            StreamScheduler.DEFAULT_READ_AHEAD);
+    private DirectoryListings listings = new DirectoryListings();
 
     public NanoHttpdServer(int port) {
         super(port);
@@ -31,6 +35,21 @@ public class NanoHttpdServer extends NanoHTTPD implements  HttpServer {
         super(hostname, port);
     }
 
+    @Override
+    public void stop() {
+        super.stop();
+        scheduler.shutdown();
+        listings.clear();
+    }
+
+    /**
+     * @return The scheduler which reads the files for all connections, eg. to
+     * set a bandwidth limit.
+     */
+    public StreamScheduler getStreamScheduler() {
+        return scheduler;
+    }
+
     @Override
     public void setUsbFileProvider(UsbFileProvider provider) {
         usbFileProvider = provider;
@@ -54,13 +73,31 @@ public class NanoHttpdServer extends NanoHTTPD implements  HttpServer {
 
 
         try {
+            if (session.getMethod() == Method.PUT || session.getMethod() == Method.POST) {
+                return receiveUpload(session, uri);
+            }
+
             UsbFile fileToServe = usbFileProvider.determineFileToServe(uri);
 
-            if(range == null) {
-                return serveCompleteFile(fileToServe);
+            if (fileToServe.isDirectory()) {
+                return serveDirectory(session, uri, fileToServe);
+            }
+
+            Response res;
+            if (HttpValidators.isNotModified(fileToServe, headers.get("if-none-match"),
+                    headers.get("if-modified-since"))) {
+                Log.d(TAG, "Not modified");
+                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED,
+                        getMimeTypeForFile(fileToServe.getName()), "");
+            } else if(range == null || !HttpValidators.isRangeValid(fileToServe, headers.get("if-range"))) {
+                res = serveCompleteFile(fileToServe);
             } else {
-                return serveRangeOfFile(fileToServe, range);
+                res = serveRangeOfFile(fileToServe, range);
             }
+
+            res.addHeader("ETag", HttpValidators.getETag(fileToServe));
+            res.addHeader("Last-Modified", HttpValidators.getLastModified(fileToServe));
+            return res;
         } catch (FileNotFoundException e) {
             return newFixedLengthResponse(Response.Status.NOT_FOUND,
                     NanoHTTPD.MIME_HTML, e.getMessage());
@@ -73,13 +110,82 @@ public class NanoHttpdServer extends NanoHTTPD implements  HttpServer {
         }
     }
 
+    private Response receiveUpload(IHTTPSession session, String uri) throws IOException {
+        String contentLength = session.getHeaders().get("content-length");
+        long length = -1;
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // handled below
+            }
+        }
+        if (length < 0) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST,
+                    NanoHTTPD.MIME_HTML, "Content-Length required");
+        }
+        Log.d(TAG, "Upload of " + length + " bytes to " + uri);
+
+        boolean exists;
+        try {
+            usbFileProvider.determineFileToServe(uri);
+            exists = true;
+        } catch (FileNotFoundException e) {
+            exists = false;
+        }
+
+        UploadWriter writer = new UploadWriter(usbFileProvider, uri, length, AsyncHttpServer.DEFAULT_CHUNK_SIZE,
+                UploadWriter.DEFAULT_BUFFERS);
+
+        InputStream stream = session.getInputStream();
+        byte[] buffer = new byte[AsyncHttpServer.DEFAULT_CHUNK_SIZE];
+        long remaining = length;
+        try {
+            while (remaining > 0) {
+                int read = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Upload ended after " + (length - remaining) + " bytes");
+                }
+                writer.write(buffer, 0, read, true);
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        try {
+            writer.finish();
+        } finally {
+            listings.invalidateParent(uri);
+        }
+
+        return newFixedLengthResponse(exists ? Response.Status.NO_CONTENT : Response.Status.CREATED,
+                NanoHTTPD.MIME_HTML, "");
+    }
+
+    private Response serveDirectory(IHTTPSession session, String uri, UsbFile directory) throws IOException {
+        Map<String, String> parms = session.getParms();
+        if (parms.containsKey("zip")) {
+            Log.d(TAG, "Serving directory as zip");
+            Response res = newChunkedResponse(Response.Status.OK, DirectoryZipInputStream.MIME_TYPE,
+                    new DirectoryZipInputStream(directory, scheduler));
+            res.addHeader("Content-Disposition", AsyncHttpServer.getZipDisposition(directory));
+            return res;
+        }
+
+        Log.d(TAG, "Serving directory listing");
+        InputStream stream = new DirectoryListingInputStream(uri, directory,
+                parms.get("cursor"), parms.get("limit"), parms.get("fields"), listings);
+        return newChunkedResponse(Response.Status.OK, DirectoryListingInputStream.MIME_TYPE, stream);
+    }
+
     private Response serveCompleteFile(UsbFile file) {
         Log.d(TAG, "Serving complete file");
 
         String mimeType = getMimeTypeForFile(file.getName());
 
         Response res = newFixedLengthResponse(Response.Status.OK,
-                mimeType, createInputStream(file), file.getLength());
+                mimeType, createInputStream(file, 0, file.getLength() - 1), file.getLength());
         res.addHeader("Accept-Ranges", "bytes");
 
         return res;
@@ -127,8 +233,7 @@ public class NanoHttpdServer extends NanoHTTPD implements  HttpServer {
 
         Log.d(TAG, "Serving file from " + start + " to " + end + ", Content-Length: " + contentLength);
 
-        InputStream stream = createInputStream(file);
-        stream.skip(start);
+        InputStream stream = createInputStream(file, start, end);
 
         Response res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT,
                 mimeType, stream, contentLength);
@@ -139,7 +244,9 @@ public class NanoHttpdServer extends NanoHTTPD implements  HttpServer {
         return res;
     }
 
-    private InputStream createInputStream(UsbFile file) {
-        return new UsbFileInputStream(file);
+    private InputStream createInputStream(UsbFile file, long start, long end) {
+        List<ByteRange> ranges = end < start ? Collections.<ByteRange>emptyList() :
+                Collections.singletonList(new ByteRange(start, end));
+        return new UsbFileRangeInputStream(file, ranges, scheduler);
     }
 }
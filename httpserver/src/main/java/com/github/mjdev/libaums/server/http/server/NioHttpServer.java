@@ -0,0 +1,759 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+import com.github.mjdev.libaums.server.http.UsbFileProvider;
+import com.github.mjdev.libaums.server.http.exception.NotAFileException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * HTTP server based on a single NIO selector thread. Apart from the libaums
+ * file API it only uses the Java standard library and needs no HTTP library.
+ * <p>
+ * Connections are kept alive and pipelined requests are answered in order.
+ * Files are served with support for single byte ranges and conditional
+ * requests, their content is read by a {@link StreamScheduler}. Directories
+ * are served as JSON listings. Only GET and HEAD are supported.
+ * <p>
+ * The selector thread never waits for the device. Files are looked up and
+ * listings are read on worker threads, the selector continues writing to a
+ * connection when the worker or the scheduler has the next data.
+ */
+public class NioHttpServer implements HttpServer {
+
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String hostname;
+    private final int port;
+    private final StreamScheduler scheduler;
+    private final DirectoryListings listings = new DirectoryListings();
+    private UsbFileProvider usbFileProvider;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private ExecutorService worker;
+    private volatile boolean isAlive = false;
+    /**
+     * Connections which are waiting for data and have been notified by the
+     * scheduler.
+     */
+    private final ConcurrentLinkedQueue<Connection> readyConnections = new ConcurrentLinkedQueue<>();
+
+    public NioHttpServer(int port) {
+        this(null, port);
+    }
+
+    public NioHttpServer(String hostname, int port) {
+        this(hostname, port, AsyncHttpServer.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize The size of the slices files are read in.
+     */
+    public NioHttpServer(String hostname, int port, int chunkSize) {
+        this.hostname = hostname;
+        this.port = port;
+        scheduler = new StreamScheduler(chunkSize, StreamScheduler.DEFAULT_READ_AHEAD);
+    }
+
+    @Override
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(hostname == null ?
+                new InetSocketAddress(port) : new InetSocketAddress(hostname, port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        worker = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NIO HTTP worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        isAlive = true;
+        thread = new Thread("NIO HTTP server") {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (IOException e) {
+                    isAlive = false;
+                }
+                closeAll();
+            }
+        };
+        thread.start();
+    }
+
+    @Override
+    public void stop() throws IOException {
+        isAlive = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        scheduler.shutdown();
+        listings.clear();
+        if (worker != null) {
+            worker.shutdownNow();
+            worker = null;
+        }
+    }
+
+    @Override
+    public boolean isAlive() {
+        return isAlive;
+    }
+
+    @Override
+    public String getHostname() {
+        return hostname;
+    }
+
+    @Override
+    public int getListeningPort() {
+        if (serverChannel != null && serverChannel.socket().isBound()) {
+            return serverChannel.socket().getLocalPort();
+        }
+        return port;
+    }
+
+    @Override
+    public void setUsbFileProvider(UsbFileProvider provider) {
+        usbFileProvider = provider;
+    }
+
+    /**
+     * @return The scheduler which reads the files for all connections, eg. to
+     * set a bandwidth limit.
+     */
+    public StreamScheduler getStreamScheduler() {
+        return scheduler;
+    }
+
+    private void loop() throws IOException {
+        while (isAlive) {
+            selector.select();
+
+            Connection ready;
+            while ((ready = readyConnections.poll()) != null) {
+                try {
+                    ready.onDataAvailable();
+                } catch (IOException | RuntimeException e) {
+                    ready.close();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    SocketChannel channel = serverChannel.accept();
+                    if (channel != null) {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        Connection connection = new Connection(channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    continue;
+                }
+
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // only this connection is affected
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private static class Request {
+        String method;
+        String path;
+        String query;
+        boolean http11;
+        boolean keepAlive;
+        Map<String, String> headers = new HashMap<>();
+    }
+
+    /**
+     * A response which is written to the connection. The body is either read
+     * by the scheduler or taken from a stream of unknown length, which is read
+     * by a worker. A stream is sent with chunked transfer encoding to HTTP/1.1
+     * clients, HTTP/1.0 clients get it until the connection is closed.
+     */
+    private static class Response {
+        ByteBuffer header;
+        StreamScheduler.Client client;
+        InputStream stream;
+        boolean chunked;
+        ByteBuffer body;
+        boolean closeConnection;
+        // the state of reading the stream, shared with the worker
+        boolean reading;
+        boolean streamClosed;
+        ByteBuffer nextChunk;
+        IOException streamError;
+
+        synchronized void closeStream() {
+            streamClosed = true;
+            if (stream != null && !reading) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+
+        void release() {
+            if (client != null) {
+                client.close();
+            }
+            closeStream();
+        }
+    }
+
+    /**
+     * Reads the next chunk of the stream of a response on a worker thread.
+     */
+    private static class StreamReader implements Runnable {
+        private final Response response;
+        private final Runnable listener;
+
+        StreamReader(Response response, Runnable listener) {
+            this.response = response;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer chunk = null;
+            IOException error = null;
+            boolean end = false;
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read = response.stream.read(buffer, 10, buffer.length - 12);
+                end = read < 0;
+                if (!response.chunked) {
+                    chunk = ByteBuffer.wrap(buffer, 10, Math.max(read, 0));
+                } else if (end) {
+                    chunk = ByteBuffer.wrap("0\r\n\r\n".getBytes(ISO_8859_1));
+                } else {
+                    // chunk header and trailer around the data
+                    byte[] size = (Integer.toHexString(read) + "\r\n").getBytes(ISO_8859_1);
+                    int start = 10 - size.length;
+                    System.arraycopy(size, 0, buffer, start, size.length);
+                    buffer[10 + read] = '\r';
+                    buffer[11 + read] = '\n';
+                    chunk = ByteBuffer.wrap(buffer, start, size.length + read + 2);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (response) {
+                response.reading = false;
+                response.nextChunk = chunk;
+                response.streamError = error;
+                if (end || error != null || response.streamClosed) {
+                    response.closeStream();
+                }
+            }
+            listener.run();
+        }
+    }
+
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer input = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        private Response response;
+        // true while a worker determines the response to a request
+        private boolean handling = false;
+        private volatile Response handled;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Called by the scheduler or a worker thread when data is available.
+         */
+        @Override
+        public void run() {
+            readyConnections.add(this);
+            selector.wakeup();
+        }
+
+        void onDataAvailable() throws IOException {
+            if (handling && handled != null) {
+                handling = false;
+                response = handled;
+                handled = null;
+                if (!key.isValid()) {
+                    response.release();
+                    response = null;
+                    return;
+                }
+                if (response.client != null) {
+                    response.client.setDataListener(this);
+                }
+            }
+
+            if (key.isValid() && response != null) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(input) < 0) {
+                close();
+                return;
+            }
+            processRequests();
+        }
+
+        /**
+         * Starts the response to the next pipelined request in the input
+         * buffer, if there is one.
+         */
+        private void processRequests() throws IOException {
+            if (response != null || handling) {
+                return;
+            }
+
+            Request request = parseRequest();
+            if (request == null) {
+                if (!input.hasRemaining()) {
+                    response = createErrorResponse(431, "Request header too large");
+                    response.closeConnection = true;
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+
+            // pipelined requests stay in the buffer until this response is sent
+            handling = true;
+            key.interestOps(0);
+            final Request next = request;
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Response result;
+                    try {
+                        result = handle(next);
+                    } catch (RuntimeException e) {
+                        result = createErrorResponse(500, e.getMessage());
+                        result.closeConnection = true;
+                    }
+                    if (!next.keepAlive) {
+                        result.closeConnection = true;
+                    }
+                    handled = result;
+                    Connection.this.run();
+                }
+            });
+        }
+
+        /**
+         * @return The request or null if the header is not complete yet.
+         */
+        private Request parseRequest() {
+            int end = -1;
+            for (int i = 3; i < input.position(); i++) {
+                if (input.get(i - 3) == '\r' && input.get(i - 2) == '\n'
+                        && input.get(i - 1) == '\r' && input.get(i) == '\n') {
+                    end = i + 1;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return null;
+            }
+
+            String header = new String(input.array(), 0, end, ISO_8859_1);
+            input.flip();
+            input.position(end);
+            input.compact();
+
+            String[] lines = header.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Request request = new Request();
+            request.method = requestLine[0];
+            String target = requestLine.length > 1 ? requestLine[1] : "/";
+            String version = requestLine.length > 2 ? requestLine[2] : "HTTP/1.0";
+            int questionMark = target.indexOf('?');
+            request.path = questionMark < 0 ? target : target.substring(0, questionMark);
+            request.query = questionMark < 0 ? null : target.substring(questionMark + 1);
+            request.http11 = "HTTP/1.1".equals(version);
+
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            String connection = request.headers.get("connection");
+            if (request.http11) {
+                request.keepAlive = !"close".equalsIgnoreCase(connection);
+            } else {
+                request.keepAlive = "keep-alive".equalsIgnoreCase(connection);
+            }
+            return request;
+        }
+
+        void onWritable() throws IOException {
+            if (response == null) {
+                return;
+            }
+            while (true) {
+                if (response.header.hasRemaining()) {
+                    channel.write(response.header);
+                    if (response.header.hasRemaining()) {
+                        return;
+                    }
+                }
+
+                if (response.body == null || !response.body.hasRemaining()) {
+                    response.body = nextBody();
+                    if (response.body == null) {
+                        if (isResponseComplete()) {
+                            finishResponse();
+                        } else {
+                            // wait until the scheduler or the worker has read the next data
+                            key.interestOps(0);
+                        }
+                        return;
+                    }
+                }
+
+                channel.write(response.body);
+                if (response.body.hasRemaining()) {
+                    return;
+                }
+            }
+        }
+
+        private ByteBuffer nextBody() throws IOException {
+            if (response.client != null) {
+                return response.client.poll();
+            }
+            if (response.stream != null) {
+                synchronized (response) {
+                    if (response.streamError != null) {
+                        throw response.streamError;
+                    }
+                    ByteBuffer chunk = response.nextChunk;
+                    response.nextChunk = null;
+                    if (chunk != null && chunk.hasRemaining()) {
+                        return chunk;
+                    }
+                    if (!response.reading && !response.streamClosed) {
+                        response.reading = true;
+                        worker.execute(new StreamReader(response, this));
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean isResponseComplete() {
+            if (response.client != null) {
+                return response.client.isComplete();
+            }
+            if (response.stream != null) {
+                synchronized (response) {
+                    return response.streamClosed && !response.reading && response.nextChunk == null;
+                }
+            }
+            return true;
+        }
+
+        private void finishResponse() throws IOException {
+            boolean close = response.closeConnection;
+            if (response.client != null) {
+                response.client.close();
+            }
+            response = null;
+
+            if (close) {
+                close();
+            } else {
+                processRequests();
+            }
+        }
+
+        void close() {
+            if (response != null) {
+                response.release();
+                response = null;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private static Response createResponse(int code, String contentType, long contentLength,
+                                           Map<String, String> headers) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 ").append(code).append(' ').append(getReason(code)).append("\r\n");
+        if (contentType != null) {
+            builder.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            builder.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        builder.append("\r\n");
+
+        Response response = new Response();
+        response.header = ByteBuffer.wrap(builder.toString().getBytes(UTF8));
+        return response;
+    }
+
+    private static Response createErrorResponse(int code, String message) {
+        byte[] body = message == null ? new byte[0] : message.getBytes(UTF8);
+        Response response = createResponse(code, "text/plain; charset=utf-8", body.length,
+                Collections.<String, String>emptyMap());
+        response.body = ByteBuffer.wrap(body);
+        return response;
+    }
+
+    private static String getReason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            default: return "Internal Server Error";
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> result = new HashMap<>();
+        if (query == null) {
+            return result;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                result.put(URLDecoder.decode(parameter, "utf-8"), "");
+            } else {
+                result.put(URLDecoder.decode(parameter.substring(0, equals), "utf-8"),
+                        URLDecoder.decode(parameter.substring(equals + 1), "utf-8"));
+            }
+        }
+        return result;
+    }
+
+    private Response handle(Request request) {
+        boolean head = "HEAD".equals(request.method);
+        if (!head && !"GET".equals(request.method)) {
+            Response response = createErrorResponse(405, "Method not allowed");
+            // the body of the request is not read, the connection cannot be reused
+            response.closeConnection = true;
+            return response;
+        }
+
+        Response response;
+        try {
+            String uri = URLDecoder.decode(request.path, "utf-8");
+            UsbFile file = usbFileProvider.determineFileToServe(uri);
+            if (file.isDirectory()) {
+                response = serveDirectory(request, uri, file, parseQuery(request.query));
+            } else {
+                response = serveFile(request, file);
+            }
+        } catch (FileNotFoundException e) {
+            response = createErrorResponse(404, e.getMessage());
+        } catch (NotAFileException e) {
+            response = createErrorResponse(400, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            response = createErrorResponse(400, e.getMessage());
+        } catch (IOException e) {
+            response = createErrorResponse(500, e.getMessage());
+        }
+
+        if (head) {
+            if (response.client != null) {
+                response.client.close();
+                response.client = null;
+            }
+            if (response.stream != null) {
+                response.closeStream();
+                response.stream = null;
+            }
+            response.body = null;
+        }
+        return response;
+    }
+
+    private Response serveDirectory(Request request, String uri, UsbFile directory,
+                                    Map<String, String> query) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (request.http11) {
+            headers.put("Transfer-Encoding", "chunked");
+        } else {
+            // HTTP/1.0 does not know chunked encoding, the end of the body is the end of the connection
+            headers.put("Connection", "close");
+        }
+        Response response = createResponse(200, DirectoryListingInputStream.MIME_TYPE, -1, headers);
+        response.chunked = request.http11;
+        response.closeConnection = !request.http11;
+        response.stream = new DirectoryListingInputStream(uri, directory, query.get("cursor"),
+                query.get("limit"), query.get("fields"), listings);
+        return response;
+    }
+
+    private Response serveFile(Request request, UsbFile file) {
+        long length = file.getLength();
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Ranges", "bytes");
+        headers.put("ETag", HttpValidators.getETag(file));
+        headers.put("Last-Modified", HttpValidators.getLastModified(file));
+        if (!request.keepAlive) {
+            headers.put("Connection", "close");
+        }
+
+        if (HttpValidators.isNotModified(file, request.headers.get("if-none-match"),
+                request.headers.get("if-modified-since"))) {
+            return createResponse(304, null, 0, headers);
+        }
+
+        String rangeHeader = request.headers.get("range");
+        if (rangeHeader != null && !HttpValidators.isRangeValid(file, request.headers.get("if-range"))) {
+            rangeHeader = null;
+        }
+        List<ByteRange> ranges = rangeHeader == null ? null : ByteRange.parse(rangeHeader, length);
+
+        String contentType = getContentType(file.getName());
+        Response response;
+        if (ranges != null && ranges.isEmpty()) {
+            headers.put("Content-Range", "bytes */" + length);
+            return createResponse(416, null, 0, headers);
+        } else if (ranges != null && ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            headers.put("Content-Range", range.toContentRange(length));
+            response = createResponse(206, contentType, range.getLength(), headers);
+        } else {
+            // multiple ranges are not supported, the whole file is sent instead
+            ranges = new ArrayList<>();
+            if (length > 0) {
+                ranges.add(new ByteRange(0, length - 1));
+            }
+            response = createResponse(200, contentType, length, headers);
+        }
+
+        response.client = scheduler.register(file, ranges);
+        return response;
+    }
+
+    private static String getContentType(String name) {
+        int dot = name.lastIndexOf('.');
+        String extension = dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.US);
+        switch (extension) {
+            case "html":
+            case "htm":
+                return "text/html";
+            case "txt":
+                return "text/plain";
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "gif":
+                return "image/gif";
+            case "mp3":
+                return "audio/mpeg";
+            case "mp4":
+                return "video/mp4";
+            case "mkv":
+                return "video/x-matroska";
+            case "pdf":
+                return "application/pdf";
+            default:
+                return "application/octet-stream";
+        }
+    }
+}
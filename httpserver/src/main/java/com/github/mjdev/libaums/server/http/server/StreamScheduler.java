@@ -0,0 +1,334 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules the reads of all files which are currently served, so that
+ * concurrent clients share the mass storage device fairly.
+ * <p>
+ * The device can only process one command at a time. Instead of letting every
+ * connection read whenever it wants, a single thread reads for all connections
+ * in turn, one slice at a time. Every connection has a read-ahead buffer of a
+ * few slices, which the scheduler fills while the connection is busy sending.
+ * Thus the device is kept busy as long as any client can accept data, while
+ * a fast client cannot starve a slow one.
+ * <p>
+ * Optionally the bandwidth of every client can be limited.
+ */
+public class StreamScheduler {
+    public static final int DEFAULT_READ_AHEAD = 4;
+
+    private final int sliceSize;
+    private final int readAhead;
+    private volatile long bandwidthLimit = 0;
+
+    private final List<Client> clients = new ArrayList<>();
+    private int nextClient = 0;
+    private Thread thread;
+
+    /**
+     * @param sliceSize The number of bytes read for a client before the next
+     *                  client is served. Slices are aligned to multiples of
+     *                  this size, it should thus be a multiple of the cluster
+     *                  size.
+     * @param readAhead The number of slices buffered for every client.
+     */
+    public StreamScheduler(int sliceSize, int readAhead) {
+        this.sliceSize = sliceSize;
+        this.readAhead = readAhead;
+    }
+
+    public int getSliceSize() {
+        return sliceSize;
+    }
+
+    /**
+     * @return The maximum number of bytes per second sent to one client, 0 if
+     * unlimited.
+     */
+    public long getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    /**
+     * Sets the maximum number of bytes per second read for a single client.
+     *
+     * @param bytesPerSecond The limit, or 0 for no limit.
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        bandwidthLimit = bytesPerSecond;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Registers a new client which reads the given ranges of a file.
+     */
+    synchronized Client register(UsbFile file, List<ByteRange> ranges) {
+        Client client = new Client(file, ranges);
+        clients.add(client);
+
+        if (thread == null) {
+            thread = new Thread("USB stream scheduler") {
+                @Override
+                public void run() {
+                    schedule();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        notifyAll();
+        return client;
+    }
+
+    /**
+     * Stops the scheduler. All registered clients fail with an exception.
+     * The scheduler starts again when a client is registered.
+     */
+    public synchronized void shutdown() {
+        for (Client client : clients) {
+            client.fail(new IOException("Stream scheduler has been shut down"));
+        }
+        clients.clear();
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private synchronized void unregister(Client client) {
+        clients.remove(client);
+        notifyAll();
+    }
+
+    /**
+     * Returns the next client in round robin order which needs data, waits if
+     * there is none.
+     *
+     * @return The client or null if the scheduler shall stop.
+     */
+    private synchronized Client nextClient() throws InterruptedException {
+        while (thread == Thread.currentThread()) {
+            long now = System.currentTimeMillis();
+            long wakeUp = Long.MAX_VALUE;
+
+            for (int i = 0; i < clients.size(); i++) {
+                int index = (nextClient + i) % clients.size();
+                Client client = clients.get(index);
+                if (!client.needsData()) {
+                    continue;
+                }
+                if (client.allowedAt > now) {
+                    wakeUp = Math.min(wakeUp, client.allowedAt);
+                    continue;
+                }
+
+                nextClient = index + 1;
+                return client;
+            }
+
+            if (wakeUp == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(wakeUp - now);
+            }
+        }
+
+        return null;
+    }
+
+    private void schedule() {
+        try {
+            Client client;
+            while ((client = nextClient()) != null) {
+                client.readSlice();
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        }
+    }
+
+    /**
+     * A connection which reads ranges of a file. The slices are read by the
+     * scheduler and taken in order by the connection.
+     */
+    class Client {
+        private final UsbFile file;
+        private final List<ByteRange> ranges;
+        private final ArrayDeque<ByteBuffer> slices = new ArrayDeque<>();
+
+        private int rangeIndex = 0;
+        private long position;
+        private IOException error;
+        private boolean closed = false;
+        private Runnable dataListener;
+        /**
+         * Time at which the next slice may be read, used to limit the
+         * bandwidth.
+         */
+        private long allowedAt = 0;
+
+        private Client(UsbFile file, List<ByteRange> ranges) {
+            this.file = file;
+            this.ranges = ranges;
+            if (!ranges.isEmpty()) {
+                position = ranges.get(0).start;
+            }
+        }
+
+        /**
+         * Called with the lock of the scheduler held.
+         */
+        private boolean needsData() {
+            synchronized (this) {
+                return !closed && error == null && rangeIndex < ranges.size()
+                        && slices.size() < readAhead;
+            }
+        }
+
+        /**
+         * Reads the next slice, called by the scheduler thread only.
+         */
+        private void readSlice() {
+            ByteRange range = ranges.get(rangeIndex);
+            long sliceEnd = (position / sliceSize + 1) * sliceSize;
+            long end = Math.min(sliceEnd, range.end + 1);
+
+            ByteBuffer slice = ByteBuffer.allocate((int) (end - position));
+            try {
+                file.read(position, slice);
+            } catch (IOException e) {
+                // reported to the client by take or poll
+                fail(e);
+                return;
+            }
+            slice.flip();
+
+            long limit = bandwidthLimit;
+            if (limit > 0) {
+                long now = System.currentTimeMillis();
+                allowedAt = Math.max(allowedAt, now) + slice.remaining() * 1000 / limit;
+            }
+
+            synchronized (this) {
+                position = end;
+                if (position > range.end && ++rangeIndex < ranges.size()) {
+                    position = ranges.get(rangeIndex).start;
+                }
+                if (!closed) {
+                    slices.add(slice);
+                }
+                notifyAll();
+            }
+            notifyListener();
+        }
+
+        private void fail(IOException e) {
+            synchronized (this) {
+                error = e;
+                notifyAll();
+            }
+            notifyListener();
+        }
+
+        private void notifyListener() {
+            Runnable listener;
+            synchronized (this) {
+                listener = dataListener;
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Sets a listener which is called from the scheduler thread when a
+         * slice has been read or reading failed. Used together with
+         * {@link #poll()} by callers which must not block.
+         */
+        synchronized void setDataListener(Runnable listener) {
+            dataListener = listener;
+        }
+
+        /**
+         * @return True if all slices have been taken.
+         */
+        synchronized boolean isComplete() {
+            return slices.isEmpty() && rangeIndex >= ranges.size();
+        }
+
+        /**
+         * Takes the next slice if it is available, without waiting.
+         *
+         * @return The slice, or null if it has not been read yet or all
+         * ranges have been read.
+         */
+        ByteBuffer poll() throws IOException {
+            ByteBuffer slice;
+            synchronized (this) {
+                if (error != null) {
+                    throw error;
+                }
+                slice = slices.poll();
+            }
+
+            if (slice != null) {
+                onSliceTaken();
+            }
+            return slice;
+        }
+
+        private void onSliceTaken() {
+            // there is space in the read-ahead buffer now
+            synchronized (StreamScheduler.this) {
+                StreamScheduler.this.notifyAll();
+            }
+        }
+
+        /**
+         * Takes the next slice, waits until it is available.
+         *
+         * @return The slice, or null if all ranges have been read.
+         */
+        ByteBuffer take() throws IOException {
+            ByteBuffer slice;
+            synchronized (this) {
+                while (slices.isEmpty()) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    if (rangeIndex >= ranges.size()) {
+                        return null;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while waiting for data");
+                    }
+                }
+                slice = slices.poll();
+            }
+
+            onSliceTaken();
+            return slice;
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                slices.clear();
+            }
+            unregister(this);
+        }
+    }
+}
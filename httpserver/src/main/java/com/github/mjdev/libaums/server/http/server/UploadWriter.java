@@ -0,0 +1,243 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import android.util.Log;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+import com.github.mjdev.libaums.server.http.UsbFileProvider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the body of an upload to a {@link UsbFile} in the background.
+ * <p>
+ * The received data is collected in a fixed number of buffers of the chunk
+ * size. Full buffers are written by a separate thread while the next ones are
+ * filled, so the network is never waiting for the device as long as a buffer
+ * is free. Since the file is written sequentially from the start in whole
+ * chunks, every write is cluster aligned if the chunk size is a multiple of
+ * the cluster size.
+ * <p>
+ * If the length of the upload is known, the file is preallocated, which keeps
+ * it contiguous.
+ * <p>
+ * The data is written to a temporary file from
+ * {@link UsbFileProvider#createFileToUpload(String)}, which replaces the
+ * target only if the upload is complete and has been written without errors.
+ * Otherwise the temporary file is deleted.
+ */
+class UploadWriter {
+    private static final String TAG = UploadWriter.class.getSimpleName();
+
+    public static final int DEFAULT_BUFFERS = 4;
+
+    /**
+     * Marks the end of the upload in the queue of full buffers.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    interface Callback {
+        /**
+         * Called from the writer thread when the upload has been written
+         * completely or failed.
+         *
+         * @param e The error or null if successful.
+         */
+        void onFinished(IOException e);
+    }
+
+    private final UsbFileProvider provider;
+    private final String uri;
+    private final UsbFile file;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final BlockingQueue<ByteBuffer> fullBuffers;
+    private ByteBuffer current;
+    private volatile IOException error;
+    private volatile boolean aborted = false;
+    private volatile Runnable bufferFreedCallback;
+    private Callback finishedCallback;
+    private boolean finished = false;
+    private Thread thread;
+
+    /**
+     * @param length The length of the upload if known, -1 otherwise.
+     */
+    UploadWriter(UsbFileProvider provider, String uri, long length, int chunkSize, int buffers)
+            throws IOException {
+        this.provider = provider;
+        this.uri = uri;
+        this.file = provider.createFileToUpload(uri);
+        freeBuffers = new ArrayBlockingQueue<>(buffers);
+        fullBuffers = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            freeBuffers.add(ByteBuffer.allocate(chunkSize));
+        }
+
+        if (length > 0) {
+            try {
+                file.preallocate(length);
+            } catch (IOException e) {
+                provider.abortUpload(uri, file);
+                throw e;
+            }
+        }
+
+        thread = new Thread("USB upload " + file.getName()) {
+            @Override
+            public void run() {
+                writeBuffers();
+            }
+        };
+        thread.start();
+    }
+
+    /**
+     * Sets a callback which is called from the writer thread every time a
+     * buffer has been written and can be filled again.
+     */
+    void setBufferFreedCallback(Runnable callback) {
+        bufferFreedCallback = callback;
+    }
+
+    private void writeBuffers() {
+        long offset = 0;
+        try {
+            while (true) {
+                ByteBuffer buffer = fullBuffers.take();
+                if (buffer == END) {
+                    break;
+                }
+
+                if (error == null && !aborted) {
+                    buffer.flip();
+                    int size = buffer.remaining();
+                    try {
+                        file.write(offset, buffer);
+                    } catch (IOException e) {
+                        Log.e(TAG, "writing upload failed", e);
+                        error = e;
+                    }
+                    offset += size;
+                }
+
+                buffer.clear();
+                freeBuffers.add(buffer);
+                Runnable callback = bufferFreedCallback;
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Upload interrupted");
+        }
+
+        try {
+            if (aborted || error != null) {
+                provider.abortUpload(uri, file);
+            } else {
+                provider.commitUpload(uri, file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "finishing upload failed", e);
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        Callback callback;
+        synchronized (this) {
+            callback = finishedCallback;
+            finishedCallback = null;
+        }
+        if (callback != null) {
+            callback.onFinished(error);
+        }
+    }
+
+    /**
+     * Accepts data of the upload.
+     *
+     * @param block True to wait for a free buffer if all buffers are full.
+     * @return The number of bytes accepted, less than len only if block is false
+     * and all buffers are full.
+     */
+    int write(byte[] b, int off, int len, boolean block) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+
+        int written = 0;
+        while (written < len) {
+            if (current == null) {
+                try {
+                    current = block ? freeBuffers.take() : freeBuffers.poll();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for a buffer");
+                }
+                if (current == null) {
+                    break;
+                }
+            }
+
+            int size = Math.min(len - written, current.remaining());
+            current.put(b, off + written, size);
+            written += size;
+
+            if (!current.hasRemaining()) {
+                fullBuffers.add(current);
+                current = null;
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Writes the remaining data and commits the upload in the background.
+     *
+     * @param callback Called when the upload is complete.
+     */
+    void finish(Callback callback) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            finishedCallback = callback;
+        }
+        if (current != null) {
+            fullBuffers.add(current);
+            current = null;
+        }
+        fullBuffers.add(END);
+    }
+
+    /**
+     * Writes the remaining data, commits the upload and waits until
+     * everything is written.
+     */
+    void finish() throws IOException {
+        finish(null);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while finishing upload");
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Cancels the upload, the incomplete file is deleted and an existing
+     * file at the uri is kept.
+     */
+    void abort() {
+        aborted = true;
+        finish(null);
+    }
+}
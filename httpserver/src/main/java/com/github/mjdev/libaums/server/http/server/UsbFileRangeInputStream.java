@@ -0,0 +1,104 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * InputStream which reads one or more ranges of a {@link UsbFile}. Every range
+ * is read directly at its offset, without reading the bytes before it.
+ * <p>
+ * The file is read in chunks by a {@link StreamScheduler}, whose boundaries are
+ * multiples of its slice size relative to the start of the file.
+ */
+class UsbFileRangeInputStream extends InputStream {
+
+    private List<ByteRange> ranges;
+    private ByteBuffer buffer;
+    private StreamScheduler.Client client;
+
+    private int rangeIndex = 0;
+    private boolean rangeStarted = false;
+    /**
+     * Offset in the file the next chunk is read from.
+     */
+    private long position;
+
+    UsbFileRangeInputStream(UsbFile file, List<ByteRange> ranges, StreamScheduler scheduler) {
+        if(file.isDirectory()) {
+            throw new RuntimeException("UsbFileRangeInputStream cannot be created on directory!");
+        }
+
+        this.ranges = ranges;
+        buffer = ByteBuffer.allocate(0);
+        client = scheduler.register(file, ranges);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        if (read(b, 0, 1) < 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int byteOffset, int byteCount) throws IOException {
+        if (byteCount == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (buffer.hasRemaining()) {
+                int size = Math.min(byteCount, buffer.remaining());
+                buffer.get(b, byteOffset, size);
+                return size;
+            }
+
+            if (rangeIndex < ranges.size()) {
+                ByteRange range = ranges.get(rangeIndex);
+                if (!rangeStarted) {
+                    rangeStarted = true;
+                    position = range.start;
+                }
+
+                if (position > range.end) {
+                    rangeIndex++;
+                    rangeStarted = false;
+                    continue;
+                }
+
+                readChunk();
+                continue;
+            }
+
+            return -1;
+        }
+    }
+
+    private void readChunk() throws IOException {
+        if (client == null) {
+            throw new IOException("Stream closed");
+        }
+
+        // the scheduler reads the same chunks in the same order
+        ByteBuffer chunk = client.take();
+        if (chunk == null) {
+            throw new IOException("Scheduler has no more data");
+        }
+        buffer = chunk;
+        position += chunk.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+}
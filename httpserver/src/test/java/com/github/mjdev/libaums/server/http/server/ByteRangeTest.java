@@ -0,0 +1,77 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangeTest {
+
+    private static void assertRange(long start, long end, ByteRange range) {
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+    }
+
+    @Test
+    public void parsesClosedRange() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99", 1000);
+
+        assertEquals(1, ranges.size());
+        assertRange(0, 99, ranges.get(0));
+        assertEquals(100, ranges.get(0).getLength());
+        assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(1000));
+    }
+
+    @Test
+    public void parsesOpenRange() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=900-", 1000);
+
+        assertEquals(1, ranges.size());
+        assertRange(900, 999, ranges.get(0));
+    }
+
+    @Test
+    public void parsesSuffixRange() {
+        assertRange(900, 999, ByteRange.parse("bytes=-100", 1000).get(0));
+        // longer than the file
+        assertRange(0, 999, ByteRange.parse("bytes=-5000", 1000).get(0));
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    }
+
+    @Test
+    public void clampsEndToLength() {
+        assertRange(500, 999, ByteRange.parse("bytes=500-5000", 1000).get(0));
+    }
+
+    @Test
+    public void keepsOrderOfMultipleRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes= 500-599 , 0-9,-10", 1000);
+
+        assertEquals(3, ranges.size());
+        assertRange(500, 599, ranges.get(0));
+        assertRange(0, 9, ranges.get(1));
+        assertRange(990, 999, ranges.get(2));
+    }
+
+    @Test
+    public void skipsUnsatisfiableRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=1000-1100,10-19", 1000);
+
+        assertEquals(1, ranges.size());
+        assertRange(10, 19, ranges.get(0));
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+    }
+
+    @Test
+    public void ignoresMalformedHeaders() {
+        assertNull(ByteRange.parse("items=0-9", 1000));
+        assertNull(ByteRange.parse("bytes=5", 1000));
+        assertNull(ByteRange.parse("bytes=a-9", 1000));
+        assertNull(ByteRange.parse("bytes=9-0", 1000));
+        assertNull(ByteRange.parse("bytes=0-9,x", 1000));
+    }
+}
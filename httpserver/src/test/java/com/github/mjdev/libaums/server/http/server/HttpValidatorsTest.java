@@ -0,0 +1,99 @@
+package com.github.mjdev.libaums.server.http.server;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpValidatorsTest {
+
+    // Sun, 06 Nov 1994 08:49:37 GMT plus some milliseconds
+    private static final long MODIFIED = 784111777000L + 250;
+    private static final String MODIFIED_DATE = "Sun, 06 Nov 1994 08:49:37 GMT";
+
+    /**
+     * @return A file which only has the metadata the validators use.
+     */
+    private static UsbFile file(final long lastModified, final long length, final long createdAt) {
+        return (UsbFile) Proxy.newProxyInstance(UsbFile.class.getClassLoader(),
+                new Class<?>[] { UsbFile.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "lastModified":
+                                return lastModified;
+                            case "getLength":
+                                return length;
+                            case "createdAt":
+                                return createdAt;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void eTagChangesWithMetadata() {
+        String eTag = HttpValidators.getETag(file(MODIFIED, 100, 1));
+
+        assertTrue(eTag.startsWith("\"") && eTag.endsWith("\""));
+        assertEquals(eTag, HttpValidators.getETag(file(MODIFIED, 100, 1)));
+        assertNotEquals(eTag, HttpValidators.getETag(file(MODIFIED + 1, 100, 1)));
+        assertNotEquals(eTag, HttpValidators.getETag(file(MODIFIED, 101, 1)));
+        assertNotEquals(eTag, HttpValidators.getETag(file(MODIFIED, 100, 2)));
+    }
+
+    @Test
+    public void formatsLastModified() {
+        assertEquals(MODIFIED_DATE, HttpValidators.getLastModified(file(MODIFIED, 0, 0)));
+    }
+
+    @Test
+    public void ifNoneMatch() {
+        UsbFile file = file(MODIFIED, 100, 1);
+        String eTag = HttpValidators.getETag(file);
+
+        assertTrue(HttpValidators.isNotModified(file, eTag, null));
+        assertTrue(HttpValidators.isNotModified(file, "\"other\", W/" + eTag, null));
+        assertTrue(HttpValidators.isNotModified(file, "*", null));
+        assertFalse(HttpValidators.isNotModified(file, "\"other\"", null));
+        // If-Modified-Since is ignored if If-None-Match is present
+        assertFalse(HttpValidators.isNotModified(file, "\"other\"", MODIFIED_DATE));
+    }
+
+    @Test
+    public void ifModifiedSince() {
+        UsbFile file = file(MODIFIED, 100, 1);
+
+        // the milliseconds are not part of the date
+        assertTrue(HttpValidators.isNotModified(file, null, MODIFIED_DATE));
+        assertTrue(HttpValidators.isNotModified(file, null, "Sun, 06 Nov 1994 08:49:38 GMT"));
+        assertFalse(HttpValidators.isNotModified(file, null, "Sun, 06 Nov 1994 08:49:36 GMT"));
+        assertFalse(HttpValidators.isNotModified(file, null, "yesterday"));
+        assertFalse(HttpValidators.isNotModified(file, null, null));
+    }
+
+    @Test
+    public void ifRange() {
+        UsbFile file = file(MODIFIED, 100, 1);
+        String eTag = HttpValidators.getETag(file);
+
+        assertTrue(HttpValidators.isRangeValid(file, null));
+        assertTrue(HttpValidators.isRangeValid(file, eTag));
+        assertFalse(HttpValidators.isRangeValid(file, "\"other\""));
+        // a strong comparison is required
+        assertFalse(HttpValidators.isRangeValid(file, "W/" + eTag));
+        assertTrue(HttpValidators.isRangeValid(file, MODIFIED_DATE));
+        assertFalse(HttpValidators.isRangeValid(file, "Sun, 06 Nov 1994 08:49:38 GMT"));
+        assertFalse(HttpValidators.isRangeValid(file, "yesterday"));
+    }
+}
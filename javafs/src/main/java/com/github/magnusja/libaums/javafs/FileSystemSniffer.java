@@ -0,0 +1,104 @@
+package com.github.magnusja.libaums.javafs;
+
+import org.jnode.fs.FileSystemType;
+import org.jnode.fs.exfat.ExFatFileSystemType;
+import org.jnode.fs.ext2.Ext2FileSystemType;
+import org.jnode.fs.hfs.HfsWrapperFileSystemType;
+import org.jnode.fs.hfsplus.HfsPlusFileSystemType;
+import org.jnode.fs.iso9660.ISO9660FileSystemType;
+import org.jnode.fs.jfat.FatFileSystemType;
+import org.jnode.fs.ntfs.NTFSFileSystemType;
+import org.jnode.fs.xfs.XfsFileSystemType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Determines the file system of a partition from the signatures at the well
+ * known offsets of its start, so the matching types probe the partition
+ * first. All signatures are within the first {@link #SNIFF_SIZE} bytes.
+ * <p>
+ * The other types are still probed afterwards, because a partition can carry
+ * stale signatures of a previous file system, eg. an ext superblock left
+ * under a FAT volume.
+ */
+
+public class FileSystemSniffer {
+
+    /**
+     * The ISO 9660 volume descriptor at 0x8000 is the last signature.
+     */
+    public static final int SNIFF_SIZE = 0x8800;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private FileSystemSniffer() {}
+
+    /**
+     * @param head The start of the partition.
+     * @param types The known types in the order they shall be probed.
+     * @return All types, those whose signature matches first. Apart from
+     * that the order of types is kept.
+     */
+    public static List<FileSystemType> sniff(ByteBuffer head, List<FileSystemType> types) {
+        Set<Class<?>> matching = new HashSet<>();
+        ByteBuffer buffer = head.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        if (matches(buffer, 3, "NTFS    ")) {
+            matching.add(NTFSFileSystemType.class);
+        }
+        if (matches(buffer, 3, "EXFAT   ")) {
+            matching.add(ExFatFileSystemType.class);
+        }
+        if (matches(buffer, 0, "XFSB")) {
+            matching.add(XfsFileSystemType.class);
+        }
+        if (buffer.limit() >= 512 && (buffer.getShort(510) & 0xffff) == 0xaa55
+                && (matches(buffer, 0x36, "FAT") || matches(buffer, 0x52, "FAT"))) {
+            matching.add(FatFileSystemType.class);
+            matching.add(org.jnode.fs.fat.FatFileSystemType.class);
+        }
+        if (buffer.limit() >= 0x43a && (buffer.getShort(0x438) & 0xffff) == 0xef53) {
+            matching.add(Ext2FileSystemType.class);
+        }
+        if (matches(buffer, 0x400, "H+") || matches(buffer, 0x400, "HX")) {
+            matching.add(HfsPlusFileSystemType.class);
+        }
+        if (matches(buffer, 0x400, "BD")) {
+            matching.add(HfsWrapperFileSystemType.class);
+        }
+        if (matches(buffer, 0x8001, "CD001")) {
+            matching.add(ISO9660FileSystemType.class);
+        }
+
+        List<FileSystemType> result = new ArrayList<>(types.size());
+        List<FileSystemType> others = new ArrayList<>();
+        for (FileSystemType type : types) {
+            if (matching.contains(type.getClass())) {
+                result.add(type);
+            } else {
+                others.add(type);
+            }
+        }
+        result.addAll(others);
+        return result;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, String signature) {
+        byte[] bytes = signature.getBytes(ASCII);
+        if (offset + bytes.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
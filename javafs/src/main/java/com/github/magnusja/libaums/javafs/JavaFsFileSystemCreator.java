@@ -25,6 +25,7 @@ import org.jnode.fs.xfs.XfsFileSystemType;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import de.mindpipe.android.logging.log4j.LogCatAppender;
@@ -62,15 +63,22 @@ public class JavaFsFileSystemCreator implements FileSystemCreator {
 
     @Override
     public FileSystem read(PartitionTableEntry entry, BlockDeviceDriver blockDevice) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(blockDevice.getBlockSize());
-        blockDevice.read(0, buffer);
-
         FSBlockDeviceWrapper wrapper = new FSBlockDeviceWrapper(blockDevice, entry);
 
-        for(FileSystemType type : fsTypes) {
-            if(type.supports(wrapper.getPartitionTableEntry(), buffer.array(), wrapper)) {
+        // one command reads all signatures into the cache of the wrapper, the
+        // types read their superblocks from there when probing
+        int size = (int) Math.min(FileSystemSniffer.SNIFF_SIZE, wrapper.getLength());
+        wrapper.prefetch(0, size);
+        ByteBuffer head = ByteBuffer.allocate(size);
+        wrapper.read(0, head);
+        head.flip();
+
+        byte[] firstSector = Arrays.copyOf(head.array(), Math.min(blockDevice.getBlockSize(), size));
+
+        for(FileSystemType type : FileSystemSniffer.sniff(head, fsTypes)) {
+            if(type.supports(wrapper.getPartitionTableEntry(), firstSector, wrapper)) {
                 try {
-                    return new FileSystemWrapper(type.create(new DeviceWrapper(blockDevice, entry), false));
+                    return new FileSystemWrapper(type.create(new DeviceWrapper(wrapper), false));
                 } catch (FileSystemException e) {
                     Log.e(TAG, "e creating fs with type " + type.getName(), e);
                 }
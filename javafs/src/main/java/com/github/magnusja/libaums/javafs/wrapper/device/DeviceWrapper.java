@@ -14,8 +14,15 @@ import org.jnode.driver.block.FSBlockDeviceAPI;
 public class DeviceWrapper extends Device {
 
     public DeviceWrapper(BlockDeviceDriver blockDevice, PartitionTableEntry entry) {
+        this(new FSBlockDeviceWrapper(blockDevice, entry));
+    }
+
+    /**
+     * @param wrapper The wrapper to use, eg. the one which has been used to
+     *                probe the file system, with its cached sectors.
+     */
+    public DeviceWrapper(FSBlockDeviceWrapper wrapper) {
         super("");
-        FSBlockDeviceWrapper wrapper = new FSBlockDeviceWrapper(blockDevice, entry);
         registerAPI(FSBlockDeviceAPI.class, wrapper);
         registerAPI(BlockDeviceAPI.class, wrapper);
     }
@@ -1,7 +1,5 @@
 package com.github.magnusja.libaums.javafs.wrapper.device;
 
-import android.util.Log;
-
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 
 import org.jnode.driver.block.FSBlockDeviceAPI;
@@ -10,20 +8,69 @@ import org.jnode.partitions.PartitionTableEntry;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Created by magnusja on 2/28/17.
+ *
+ * The jnode file systems issue many small and unaligned reads, eg. exFAT reads
+ * single values of its tables. Thus the device is accessed through a cache of
+ * pages, which are a multiple of the sector size. A miss reads a few following
+ * pages as well, because the file systems mostly read forward. Writes are
+ * stored in the pages and written to the device when a page is evicted or on
+ * {@link #flush()}. Large transfers bypass the cache, only the parts of a
+ * large read which are cached are copied from there.
  */
 
 public class FSBlockDeviceWrapper implements FSBlockDeviceAPI {
 
     private static final String TAG = FSBlockDeviceWrapper.class.getSimpleName();
+
+    public static final int DEFAULT_PAGE_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_PAGES = 128;
+    /**
+     * Number of pages read at once on a miss.
+     */
+    private static final int READ_AROUND_PAGES = 4;
+
+    private static class Page {
+        final ByteBuffer data;
+        boolean dirty;
+
+        Page(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
     private BlockDeviceDriver blockDevice;
     private com.github.mjdev.libaums.partition.PartitionTableEntry partitionTableEntry;
+    private final int pageSize;
+    private final int maxPages;
+    private final long length;
+    // ordered by access, the eldest page is evicted first
+    private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
 
     public FSBlockDeviceWrapper(BlockDeviceDriver blockDevice, com.github.mjdev.libaums.partition.PartitionTableEntry partitionTableEntry) {
+        this(blockDevice, partitionTableEntry, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * @param pageSize Size of a cached page in bytes, rounded to a multiple of the sector size.
+     * @param maxPages Maximum number of cached pages.
+     */
+    public FSBlockDeviceWrapper(BlockDeviceDriver blockDevice, com.github.mjdev.libaums.partition.PartitionTableEntry partitionTableEntry,
+                                int pageSize, int maxPages) {
         this.blockDevice = blockDevice;
         this.partitionTableEntry = partitionTableEntry;
+        int sectorSize = blockDevice.getBlockSize();
+        this.pageSize = Math.max(pageSize / sectorSize, 1) * sectorSize;
+        this.maxPages = Math.max(maxPages, READ_AROUND_PAGES);
+        length = (long) partitionTableEntry.getTotalNumberOfSectors() * sectorSize;
     }
 
     @Override
@@ -53,21 +100,246 @@ public class FSBlockDeviceWrapper implements FSBlockDeviceAPI {
 
     @Override
     public long getLength() throws IOException {
-        return partitionTableEntry.getTotalNumberOfSectors() * blockDevice.getBlockSize();
+        return length;
     }
 
     @Override
-    public void read(long l, ByteBuffer byteBuffer) throws IOException {
-        blockDevice.read(l, byteBuffer);
+    public synchronized void read(long l, ByteBuffer byteBuffer) throws IOException {
+        if (isLarge(l, byteBuffer.remaining())) {
+            readAround(l, byteBuffer);
+            return;
+        }
+
+        while (byteBuffer.hasRemaining()) {
+            long index = l / pageSize;
+            int offset = (int) (l % pageSize);
+            Page page = getPage(index);
+
+            ByteBuffer source = page.data.duplicate();
+            source.position(Math.min(offset, source.limit()));
+            int count = Math.min(source.remaining(), byteBuffer.remaining());
+            if (count == 0) {
+                throw new IOException("Read beyond end of device: " + l);
+            }
+            source.limit(source.position() + count);
+            byteBuffer.put(source);
+            l += count;
+        }
     }
 
     @Override
-    public void write(long l, ByteBuffer byteBuffer) throws IOException {
-        blockDevice.write(l, byteBuffer);
+    public synchronized void write(long l, ByteBuffer byteBuffer) throws IOException {
+        if (isLarge(l, byteBuffer.remaining())) {
+            // cached pages in the range become stale, dirty parts outside of it are kept
+            writeBack(l, byteBuffer.remaining());
+            invalidate(l, byteBuffer.remaining());
+            blockDevice.write(l, byteBuffer);
+            return;
+        }
+
+        while (byteBuffer.hasRemaining()) {
+            long index = l / pageSize;
+            int offset = (int) (l % pageSize);
+            Page page = getPage(index);
+
+            ByteBuffer destination = page.data.duplicate();
+            destination.position(Math.min(offset, destination.limit()));
+            int count = Math.min(destination.remaining(), byteBuffer.remaining());
+            if (count == 0) {
+                throw new IOException("Write beyond end of device: " + l);
+            }
+            ByteBuffer source = byteBuffer.duplicate();
+            source.limit(source.position() + count);
+            destination.put(source);
+            byteBuffer.position(byteBuffer.position() + count);
+            page.dirty = true;
+            l += count;
+        }
+    }
+
+    /**
+     * Reads the range into the cache with as few commands as possible,
+     * eg. the start of the partition before probing the file systems.
+     */
+    public synchronized void prefetch(long offset, int size) throws IOException {
+        long last = Math.min(offset + size, length) - 1;
+        for (long index = offset / pageSize; index <= last / pageSize; index++) {
+            getPage(index);
+        }
     }
 
     @Override
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
+        writeBack(0, length);
+    }
+
+    /**
+     * @return True if the transfer is aligned and spans several pages, so
+     * caching it would only evict other pages.
+     */
+    private boolean isLarge(long offset, int size) throws IOException {
+        int sectorSize = blockDevice.getBlockSize();
+        return size >= READ_AROUND_PAGES * pageSize && offset % sectorSize == 0 && size % sectorSize == 0;
+    }
+
+    /**
+     * Reads a large transfer directly from the device, except for the parts
+     * which are cached, because they may be dirty or have been prefetched.
+     * The pages are not added to the cache.
+     */
+    private void readAround(long offset, ByteBuffer destination) throws IOException {
+        long end = offset + destination.remaining();
+        long runStart = offset;
+        while (offset < end) {
+            long index = offset / pageSize;
+            long pageEnd = Math.min((index + 1) * pageSize, end);
+            Page page = pages.get(index);
+            if (page != null) {
+                readDirect(runStart, offset, destination);
+
+                ByteBuffer source = page.data.duplicate();
+                source.position((int) (offset % pageSize));
+                if (source.remaining() < pageEnd - offset) {
+                    throw new IOException("Read beyond end of device: " + offset);
+                }
+                source.limit(source.position() + (int) (pageEnd - offset));
+                destination.put(source);
+                runStart = pageEnd;
+            }
+            offset = pageEnd;
+        }
+        readDirect(runStart, end, destination);
+    }
 
+    private void readDirect(long start, long end, ByteBuffer destination) throws IOException {
+        if (start >= end) {
+            return;
+        }
+        ByteBuffer part = destination.duplicate();
+        part.limit(part.position() + (int) (end - start));
+        blockDevice.read(start, part);
+        destination.position(part.limit());
+    }
+
+    /**
+     * Returns the page, reads it and a few following pages if it is not cached.
+     */
+    private Page getPage(long index) throws IOException {
+        Page page = pages.get(index);
+        if (page != null) {
+            return page;
+        }
+
+        long pageCount = (length + pageSize - 1) / pageSize;
+        int count = 1;
+        while (count < READ_AROUND_PAGES && index + count < pageCount && !pages.containsKey(index + count)) {
+            count++;
+        }
+
+        long offset = index * pageSize;
+        int size = (int) Math.min((long) count * pageSize, length - offset);
+        if (size <= 0) {
+            throw new IOException("Access beyond end of device: " + offset);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        blockDevice.read(offset, buffer);
+
+        for (int i = 0; i < count && i * pageSize < size; i++) {
+            buffer.limit(Math.min((i + 1) * pageSize, size));
+            buffer.position(i * pageSize);
+            Page read = new Page(buffer.slice());
+            pages.put(index + i, read);
+            if (i == 0) {
+                page = read;
+            }
+        }
+        // the requested page has to be the most recently used one
+        pages.get(index);
+        evict();
+        return page;
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<Long, Page>> iterator = pages.entrySet().iterator();
+        while (pages.size() > maxPages && iterator.hasNext()) {
+            Map.Entry<Long, Page> eldest = iterator.next();
+            if (eldest.getValue().dirty) {
+                writePage(eldest.getKey(), eldest.getValue());
+            }
+            iterator.remove();
+        }
+    }
+
+    private void writePage(long index, Page page) throws IOException {
+        ByteBuffer data = page.data.duplicate();
+        data.clear();
+        blockDevice.write(index * pageSize, data);
+        page.dirty = false;
+    }
+
+    /**
+     * Writes the dirty pages overlapping the range to the device, contiguous
+     * pages with one command.
+     */
+    private void writeBack(long offset, long size) throws IOException {
+        long first = offset / pageSize;
+        long last = (offset + size - 1) / pageSize;
+        TreeMap<Long, Page> dirty = new TreeMap<>();
+        for (Map.Entry<Long, Page> entry : pages.entrySet()) {
+            if (entry.getValue().dirty && entry.getKey() >= first && entry.getKey() <= last) {
+                dirty.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        List<Page> run = new ArrayList<>();
+        long runStart = -1;
+        for (Map.Entry<Long, Page> entry : dirty.entrySet()) {
+            if (!run.isEmpty() && entry.getKey() != runStart + run.size()) {
+                writePages(runStart, run);
+                run.clear();
+            }
+            if (run.isEmpty()) {
+                runStart = entry.getKey();
+            }
+            run.add(entry.getValue());
+        }
+        if (!run.isEmpty()) {
+            writePages(runStart, run);
+        }
+    }
+
+    private void writePages(long index, List<Page> run) throws IOException {
+        if (run.size() == 1) {
+            writePage(index, run.get(0));
+            return;
+        }
+
+        int size = 0;
+        for (Page page : run) {
+            size += page.data.capacity();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Page page : run) {
+            ByteBuffer data = page.data.duplicate();
+            data.clear();
+            buffer.put(data);
+        }
+        buffer.flip();
+        blockDevice.write(index * pageSize, buffer);
+        for (Page page : run) {
+            page.dirty = false;
+        }
+    }
+
+    private void invalidate(long offset, long size) {
+        long first = offset / pageSize;
+        long last = (offset + size - 1) / pageSize;
+        Iterator<Long> iterator = pages.keySet().iterator();
+        while (iterator.hasNext()) {
+            long index = iterator.next();
+            if (index >= first && index <= last) {
+                iterator.remove();
+            }
+        }
     }
 }
@@ -7,6 +7,7 @@ import com.github.mjdev.libaums.fs.UsbFile;
 
 import org.jnode.driver.ApiNotFoundException;
 import org.jnode.driver.block.FSBlockDeviceAPI;
+import org.jnode.fs.spi.AbstractFileSystem;
 
 import java.io.IOException;
 
@@ -19,19 +20,17 @@ public class FileSystemWrapper implements FileSystem {
     private static final String TAG = FileSystemWrapper.class.getSimpleName();
 
     private org.jnode.fs.FileSystem wrappedFs;
+    // created once, so that the cached children and the parents of all wrappers are shared
+    private UsbFileWrapper rootDirectory;
 
-    public FileSystemWrapper(org.jnode.fs.FileSystem wrappedFs) {
+    public FileSystemWrapper(org.jnode.fs.FileSystem wrappedFs) throws IOException {
         this.wrappedFs = wrappedFs;
+        rootDirectory = new UsbFileWrapper(wrappedFs.getRootEntry());
     }
 
     @Override
     public UsbFile getRootDirectory() {
-        try {
-            return new UsbFileWrapper(wrappedFs.getRootEntry());
-        } catch (IOException e) {
-            Log.e(TAG, "e getting root entry", e);
-            return null;
-        }
+        return rootDirectory;
     }
 
     @Override
@@ -87,4 +86,17 @@ public class FileSystemWrapper implements FileSystem {
             return 4096;
         }
     }
+
+    @Override
+    public void flush() throws IOException {
+        if(wrappedFs instanceof AbstractFileSystem) {
+            ((AbstractFileSystem) wrappedFs).flush();
+        }
+        try {
+            // the device wrapper caches writes
+            wrappedFs.getDevice().getAPI(FSBlockDeviceAPI.class).flush();
+        } catch (ApiNotFoundException e) {
+            Log.e(TAG, "api not found (this should not happen)", e);
+        }
+    }
 }
@@ -8,6 +8,8 @@ import android.util.Log;
 import com.github.mjdev.libaums.fs.AbstractUsbFile;
 import com.github.mjdev.libaums.fs.UsbFile;
 
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.block.FSBlockDeviceAPI;
 import org.jnode.fs.FSDirectory;
 import org.jnode.fs.FSEntry;
 import org.jnode.fs.FSEntryCreated;
@@ -15,13 +17,25 @@ import org.jnode.fs.FSEntryLastAccessed;
 import org.jnode.fs.FSFile;
 
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by magnusja on 01/03/17.
+ *
+ * The directory or file of an entry is only read from the jnode file system
+ * when it is used, so listing a directory only wraps the entries. Each
+ * directory caches the wrappers of its children, which know their parent.
+ * The children are only referenced weakly, so that the wrappers of a large
+ * tree can be collected once they are not used anymore.
+ * Paths are resolved with {@link FSDirectory#getEntry(String)}, which uses the
+ * index of the file system if it has one.
  */
 
 public class UsbFileWrapper extends AbstractUsbFile {
@@ -31,24 +45,99 @@ public class UsbFileWrapper extends AbstractUsbFile {
     private FSEntry entry;
     private FSDirectory dir;
     private FSFile file;
+    private UsbFileWrapper parent; // Null if this is the root directory.
+    // wrappers of the children by name, only used for directories
+    private final Map<String, ChildReference> children = new HashMap<>();
+    private final ReferenceQueue<UsbFileWrapper> collected = new ReferenceQueue<>();
+
+    private static class ChildReference extends WeakReference<UsbFileWrapper> {
+        final String name;
+
+        ChildReference(String name, UsbFileWrapper wrapper, ReferenceQueue<UsbFileWrapper> queue) {
+            super(wrapper, queue);
+            this.name = name;
+        }
+    }
 
     public UsbFileWrapper(FSEntry entry) throws IOException {
+        this(entry, null);
+    }
+
+    private UsbFileWrapper(FSEntry entry, UsbFileWrapper parent) {
         this.entry = entry;
+        this.parent = parent;
+    }
+
+    public UsbFileWrapper(FSDirectory dir) {
+        this.dir = dir;
+    }
 
-        if(entry.isDirectory()) {
+    private FSDirectory getDir() throws IOException {
+        if(!isDirectory()) {
+            throw new UnsupportedOperationException("This is a file!");
+        }
+        if(dir == null) {
             dir = entry.getDirectory();
-        } else {
+        }
+        return dir;
+    }
+
+    private FSFile getFile() throws IOException {
+        if(isDirectory()) {
+            throw new UnsupportedOperationException("This is a directory!");
+        }
+        if(file == null) {
             file = entry.getFile();
         }
+        return file;
     }
 
-    public UsbFileWrapper(FSDirectory dir) {
-        this.dir = dir;
+    /**
+     * Returns the cached wrapper of a child entry, or wraps it if it is not
+     * cached or the cached one belongs to another entry with that name.
+     */
+    private UsbFileWrapper wrap(FSEntry child) {
+        synchronized (children) {
+            UsbFileWrapper wrapper = getChild(child.getName());
+            if(wrapper == null || (wrapper.entry != child && !wrapper.entry.getId().equals(child.getId()))) {
+                wrapper = new UsbFileWrapper(child, this);
+                putChild(child.getName(), wrapper);
+            }
+            return wrapper;
+        }
+    }
+
+    // the following methods have to be called while holding the lock of children
+
+    private UsbFileWrapper getChild(String name) {
+        removeCollected();
+        ChildReference reference = children.get(name);
+        return reference != null ? reference.get() : null;
+    }
+
+    private void putChild(String name, UsbFileWrapper wrapper) {
+        children.put(name, new ChildReference(name, wrapper, collected));
+    }
+
+    private void removeChild(String name, UsbFileWrapper wrapper) {
+        if(getChild(name) == wrapper) {
+            children.remove(name);
+        }
+    }
+
+    private void removeCollected() {
+        ChildReference reference;
+        while((reference = (ChildReference) collected.poll()) != null) {
+            // the name may already be used by a newer wrapper
+            if(children.get(reference.name) == reference) {
+                children.remove(reference.name);
+            }
+        }
     }
 
     @Override
     public boolean isDirectory() {
-        return dir != null;
+        return entry != null ? entry.isDirectory() : dir != null;
     }
 
     @Override
@@ -58,7 +147,14 @@ public class UsbFileWrapper extends AbstractUsbFile {
 
     @Override
     public void setName(String newName) throws IOException {
+        String oldName = entry.getName();
         entry.setName(newName);
+        if(parent != null) {
+            synchronized (parent.children) {
+                parent.removeChild(oldName, this);
+                parent.putChild(newName, this);
+            }
+        }
     }
 
     @Override
@@ -99,19 +195,39 @@ public class UsbFileWrapper extends AbstractUsbFile {
 
     @Override
     public UsbFile getParent() {
-        // TODO implement me
-        throw new UnsupportedOperationException("not implemented");
+        return parent;
     }
 
+    /**
+     * Looks up every part of the path in the index of the file system instead
+     * of listing the directories.
+     */
     @Override
-    public String[] list() throws IOException {
-        if(dir == null) {
-            throw new UnsupportedOperationException("This is a file!");
+    public UsbFile search(String path) throws IOException {
+        UsbFileWrapper current = this;
+        for(String name : path.split(UsbFile.separator)) {
+            if(name.isEmpty()) {
+                continue;
+            }
+            if(!current.isDirectory()) {
+                return null;
+            }
+
+            FSEntry child = current.getDir().getEntry(name);
+            if(child == null) {
+                return null;
+            }
+            current = current.wrap(child);
         }
 
+        return current;
+    }
+
+    @Override
+    public String[] list() throws IOException {
         List<String> list = new ArrayList<>();
 
-        Iterator<? extends FSEntry> iterator = dir.iterator();
+        Iterator<? extends FSEntry> iterator = getDir().iterator();
 
         while(iterator.hasNext()) {
             FSEntry entry = iterator.next();
@@ -126,13 +242,9 @@ public class UsbFileWrapper extends AbstractUsbFile {
 
     @Override
     public String[] list(UsbDeviceConnection deviceConnection) throws IOException {
-        if(dir == null) {
-            throw new UnsupportedOperationException("This is a file!");
-        }
-
         List<String> list = new ArrayList<>();
 
-        Iterator<? extends FSEntry> iterator = dir.iterator();
+        Iterator<? extends FSEntry> iterator = getDir().iterator();
 
         while(iterator.hasNext()) {
             FSEntry entry = iterator.next();
@@ -147,17 +259,13 @@ public class UsbFileWrapper extends AbstractUsbFile {
 
     @Override
     public UsbFile[] listFiles() throws IOException {
-        if(dir == null) {
-            throw new UnsupportedOperationException("This is a file!");
-        }
-
         List<UsbFile> list = new ArrayList<>();
 
-        Iterator<? extends FSEntry> iterator = dir.iterator();
+        Iterator<? extends FSEntry> iterator = getDir().iterator();
 
         while(iterator.hasNext()) {
             FSEntry entry = iterator.next();
-            list.add(new UsbFileWrapper(entry));
+            list.add(wrap(entry));
         }
 
         UsbFile[] array = new UsbFile[list.size()];
@@ -168,17 +276,13 @@ public class UsbFileWrapper extends AbstractUsbFile {
 
     @Override
     public UsbFile[] listFiles(UsbDeviceConnection deviceConnection) throws IOException {
-        if(dir == null) {
-            throw new UnsupportedOperationException("This is a file!");
-        }
-
         List<UsbFile> list = new ArrayList<>();
 
-        Iterator<? extends FSEntry> iterator = dir.iterator();
+        Iterator<? extends FSEntry> iterator = getDir().iterator();
 
         while(iterator.hasNext()) {
             FSEntry entry = iterator.next();
-            list.add(new UsbFileWrapper(entry));
+            list.add(wrap(entry));
         }
 
         UsbFile[] array = new UsbFile[list.size()];
@@ -187,67 +291,66 @@ public class UsbFileWrapper extends AbstractUsbFile {
         return array;
     }
 
+    /**
+     * @return The length, or -1 if it could not be read, so that a failure
+     * cannot be mistaken for an empty file.
+     */
     @Override
     public long getLength() {
-        if(dir != null) {
-            throw new UnsupportedOperationException("This is a directory!");
+        try {
+            return getFile().getLength();
+        } catch (IOException e) {
+            Log.e(TAG, "e getting length", e);
+            return -1;
         }
-
-        return file.getLength();
     }
 
     @Override
     public void setLength(long newLength) throws IOException {
-        if(dir != null) {
+        getFile().setLength(newLength);
+    }
+
+    @Override
+    public void preallocate(long length) throws IOException {
+        if(isDirectory()) {
             throw new UnsupportedOperationException("This is a directory!");
         }
 
-        file.setLength(newLength);
+        // jnode file systems do not support reserving space, this is only a hint
     }
 
     @Override
     public void read(long offset, ByteBuffer destination) throws IOException {
-        if(dir != null) {
-            throw new UnsupportedOperationException("This is a directory!");
-        }
-
-        file.read(offset, destination);
+        getFile().read(offset, destination);
     }
 
     @Override
     public void read(UsbDeviceConnection deviceConnection, long offset, ByteBuffer destination) throws IOException {
-        if(dir != null) {
-            throw new UnsupportedOperationException("This is a directory!");
-        }
-
-        file.read(offset, destination);
+        getFile().read(offset, destination);
     }
 
     @Override
     public void write(long offset, ByteBuffer source) throws IOException {
-        if(dir != null) {
-            throw new UnsupportedOperationException("This is a directory!");
-        }
-
-        file.write(offset, source);
+        getFile().write(offset, source);
     }
 
     @Override
     public void write(UsbDeviceConnection deviceConnection, long offset, ByteBuffer source) throws IOException {
-        if(dir != null) {
-            throw new UnsupportedOperationException("This is a directory!");
-        }
-
-        file.write(offset, source);
+        getFile().write(offset, source);
     }
 
+    /**
+     * Also writes the sectors cached by the device wrapper, otherwise the data
+     * would only reach the device when the file system is flushed.
+     */
     @Override
     public void flush() throws IOException {
-        if(dir != null) {
-            throw new UnsupportedOperationException("This is a directory!");
+        getFile().flush();
+        try {
+            entry.getFileSystem().getDevice().getAPI(FSBlockDeviceAPI.class).flush();
+        } catch (ApiNotFoundException e) {
+            Log.e(TAG, "api not found (this should not happen)", e);
         }
-
-        file.flush();
     }
 
     @Override
@@ -257,19 +360,12 @@ public class UsbFileWrapper extends AbstractUsbFile {
 
     @Override
     public UsbFile createDirectory(String name) throws IOException {
-        if(dir == null) {
-            throw new UnsupportedOperationException("This is a file!");
-        }
-        return new UsbFileWrapper(dir.addDirectory(name));
+        return wrap(getDir().addDirectory(name));
     }
 
     @Override
     public UsbFile createFile(String name) throws IOException {
-        if(dir == null) {
-            throw new UnsupportedOperationException("This is a file!");
-        }
-
-        return new UsbFileWrapper(dir.addFile(name));
+        return wrap(getDir().addFile(name));
     }
 
     @Override
@@ -287,6 +383,11 @@ public class UsbFileWrapper extends AbstractUsbFile {
     @Override
     public void delete() throws IOException {
         entry.getParent().remove(entry.getName());
+        if(parent != null) {
+            synchronized (parent.children) {
+                parent.removeChild(entry.getName(), this);
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,150 @@
+package com.github.magnusja.libaums.javafs;
+
+import org.jnode.fs.FileSystemType;
+import org.jnode.fs.exfat.ExFatFileSystemType;
+import org.jnode.fs.ext2.Ext2FileSystemType;
+import org.jnode.fs.hfs.HfsWrapperFileSystemType;
+import org.jnode.fs.hfsplus.HfsPlusFileSystemType;
+import org.jnode.fs.iso9660.ISO9660FileSystemType;
+import org.jnode.fs.jfat.FatFileSystemType;
+import org.jnode.fs.ntfs.NTFSFileSystemType;
+import org.jnode.fs.xfs.XfsFileSystemType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileSystemSnifferTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private List<FileSystemType> types;
+    private ByteBuffer head;
+
+    @Before
+    public void setUp() {
+        types = Arrays.<FileSystemType>asList(new NTFSFileSystemType(), new ExFatFileSystemType(),
+                new XfsFileSystemType(), new FatFileSystemType(), new org.jnode.fs.fat.FatFileSystemType(),
+                new Ext2FileSystemType(), new HfsPlusFileSystemType(), new HfsWrapperFileSystemType(),
+                new ISO9660FileSystemType());
+        head = ByteBuffer.allocate(FileSystemSniffer.SNIFF_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void put(int offset, String signature) {
+        byte[] bytes = signature.getBytes(ASCII);
+        for (int i = 0; i < bytes.length; i++) {
+            head.put(offset + i, bytes[i]);
+        }
+    }
+
+    /**
+     * @return The types the sniffer shall put first, followed by the other
+     * types in their original order.
+     */
+    private List<FileSystemType> expected(Class<?>... first) {
+        List<FileSystemType> result = new ArrayList<>();
+        List<Class<?>> classes = Arrays.asList(first);
+        for (FileSystemType type : types) {
+            if (classes.contains(type.getClass())) {
+                result.add(type);
+            }
+        }
+        for (FileSystemType type : types) {
+            if (!classes.contains(type.getClass())) {
+                result.add(type);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void keepsOrderWithoutSignature() {
+        assertEquals(types, FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsNtfs() {
+        put(3, "NTFS    ");
+        assertEquals(expected(NTFSFileSystemType.class), FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsExFat() {
+        put(3, "EXFAT   ");
+        assertEquals(expected(ExFatFileSystemType.class), FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsXfs() {
+        put(0, "XFSB");
+        assertEquals(expected(XfsFileSystemType.class), FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsFat() {
+        put(0x52, "FAT32   ");
+        // the boot sector signature is required
+        assertEquals(types, FileSystemSniffer.sniff(head, types));
+
+        head.putShort(510, (short) 0xaa55);
+        assertEquals(expected(FatFileSystemType.class, org.jnode.fs.fat.FatFileSystemType.class),
+                FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsFat16() {
+        put(0x36, "FAT16   ");
+        head.putShort(510, (short) 0xaa55);
+        assertEquals(expected(FatFileSystemType.class, org.jnode.fs.fat.FatFileSystemType.class),
+                FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsExt() {
+        head.putShort(0x438, (short) 0xef53);
+        assertEquals(expected(Ext2FileSystemType.class), FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsHfs() {
+        put(0x400, "H+");
+        assertEquals(expected(HfsPlusFileSystemType.class), FileSystemSniffer.sniff(head, types));
+
+        put(0x400, "HX");
+        assertEquals(expected(HfsPlusFileSystemType.class), FileSystemSniffer.sniff(head, types));
+
+        put(0x400, "BD");
+        assertEquals(expected(HfsWrapperFileSystemType.class), FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void sniffsIso9660() {
+        put(0x8001, "CD001");
+        assertEquals(expected(ISO9660FileSystemType.class), FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void putsAllMatchingTypesFirst() {
+        // eg. a stale ext superblock under a FAT volume
+        put(0x52, "FAT32   ");
+        head.putShort(510, (short) 0xaa55);
+        head.putShort(0x438, (short) 0xef53);
+        assertEquals(expected(FatFileSystemType.class, org.jnode.fs.fat.FatFileSystemType.class,
+                Ext2FileSystemType.class), FileSystemSniffer.sniff(head, types));
+    }
+
+    @Test
+    public void ignoresSignaturesBeyondHead() {
+        // a partition shorter than the sniffed size
+        put(0x400, "H+");
+        head.limit(0x401);
+        assertEquals(types, FileSystemSniffer.sniff(head, types));
+    }
+}
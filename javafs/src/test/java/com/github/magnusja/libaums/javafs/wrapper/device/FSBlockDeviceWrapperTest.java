@@ -0,0 +1,225 @@
+package com.github.magnusja.libaums.javafs.wrapper.device;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.github.mjdev.libaums.driver.BlockDeviceDriver;
+import com.github.mjdev.libaums.partition.PartitionTableEntry;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FSBlockDeviceWrapperTest {
+
+    private static final int SECTOR_SIZE = 512;
+    private static final int PAGE_SIZE = 16 * 1024;
+
+    /**
+     * Block device in memory, which only accepts whole sectors and counts
+     * the commands.
+     */
+    private static class MemoryBlockDevice implements BlockDeviceDriver {
+        final byte[] data;
+        int reads;
+        int writes;
+
+        MemoryBlockDevice(int sectors) {
+            data = new byte[sectors * SECTOR_SIZE];
+        }
+
+        private static void checkAligned(long offset, ByteBuffer buffer) throws IOException {
+            if (offset % SECTOR_SIZE != 0 || buffer.remaining() % SECTOR_SIZE != 0) {
+                throw new IOException("Unaligned access: " + offset + " " + buffer.remaining());
+            }
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void read(long deviceOffset, ByteBuffer buffer) throws IOException {
+            checkAligned(deviceOffset, buffer);
+            reads++;
+            buffer.put(data, (int) deviceOffset, buffer.remaining());
+        }
+
+        @Override
+        public void read(UsbDeviceConnection usbDeviceConnection, long deviceOffset, ByteBuffer buffer) throws IOException {
+            read(deviceOffset, buffer);
+        }
+
+        @Override
+        public void write(long deviceOffset, ByteBuffer buffer) throws IOException {
+            checkAligned(deviceOffset, buffer);
+            writes++;
+            buffer.get(data, (int) deviceOffset, buffer.remaining());
+        }
+
+        @Override
+        public void write(UsbDeviceConnection usbDeviceConnection, long deviceOffset, ByteBuffer buffer) throws IOException {
+            write(deviceOffset, buffer);
+        }
+
+        @Override
+        public int getBlockSize() {
+            return SECTOR_SIZE;
+        }
+    }
+
+    private static FSBlockDeviceWrapper wrap(MemoryBlockDevice device, int maxPages) {
+        PartitionTableEntry entry = new PartitionTableEntry(0, 0, device.data.length / SECTOR_SIZE);
+        return new FSBlockDeviceWrapper(device, entry, PAGE_SIZE, maxPages);
+    }
+
+    private static byte[] read(FSBlockDeviceWrapper wrapper, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        wrapper.read(offset, buffer);
+        return buffer.array();
+    }
+
+    @Test
+    public void prefetchReadsWithOneCommand() throws IOException {
+        MemoryBlockDevice device = new MemoryBlockDevice(2000);
+        new Random(2).nextBytes(device.data);
+        FSBlockDeviceWrapper wrapper = wrap(device, 8);
+
+        wrapper.prefetch(0, 4 * PAGE_SIZE);
+        assertEquals(1, device.reads);
+
+        // unaligned reads are served from the cache
+        assertArrayEquals(Arrays.copyOfRange(device.data, 3, 4 * PAGE_SIZE - 5),
+                read(wrapper, 3, 4 * PAGE_SIZE - 8));
+        assertEquals(1, device.reads);
+    }
+
+    @Test
+    public void largeReadUsesCachedPages() throws IOException {
+        MemoryBlockDevice device = new MemoryBlockDevice(2000);
+        new Random(2).nextBytes(device.data);
+        FSBlockDeviceWrapper wrapper = wrap(device, 8);
+        wrapper.prefetch(0, 4 * PAGE_SIZE);
+        wrapper.write(40000, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        byte[] expected = Arrays.copyOf(device.data, 8 * PAGE_SIZE);
+        expected[40000] = 1;
+        expected[40001] = 2;
+        expected[40002] = 3;
+
+        // the first half is cached and dirty, only the second half is read
+        int reads = device.reads;
+        assertArrayEquals(expected, read(wrapper, 0, 8 * PAGE_SIZE));
+        assertEquals(reads + 1, device.reads);
+        // the dirty page is not written by a read
+        assertEquals(0, device.writes);
+    }
+
+    @Test
+    public void flushWritesContiguousPagesWithOneCommand() throws IOException {
+        MemoryBlockDevice device = new MemoryBlockDevice(2000);
+        FSBlockDeviceWrapper wrapper = wrap(device, 16);
+        byte[] expected = device.data.clone();
+        Random random = new Random(4);
+        for (long page : new long[] { 0, 1, 2, 5 }) {
+            byte[] bytes = new byte[100];
+            random.nextBytes(bytes);
+            int offset = (int) (page * PAGE_SIZE + 1000);
+            wrapper.write(offset, ByteBuffer.wrap(bytes));
+            System.arraycopy(bytes, 0, expected, offset, bytes.length);
+        }
+        assertEquals(0, device.writes);
+
+        wrapper.flush();
+        // pages 0 to 2 and page 5
+        assertEquals(2, device.writes);
+        assertArrayEquals(expected, device.data);
+
+        wrapper.flush();
+        assertEquals(2, device.writes);
+    }
+
+    @Test
+    public void evictionWritesDirtyPage() throws IOException {
+        MemoryBlockDevice device = new MemoryBlockDevice(2000);
+        FSBlockDeviceWrapper wrapper = wrap(device, 4);
+        wrapper.write(10, ByteBuffer.wrap(new byte[] { 42 }));
+
+        // the read around pages replace the whole cache
+        read(wrapper, 20 * PAGE_SIZE, 1);
+        assertEquals(1, device.writes);
+        assertEquals(42, device.data[10]);
+        assertEquals(42, read(wrapper, 10, 1)[0]);
+    }
+
+    @Test
+    public void largeWriteReplacesCachedPages() throws IOException {
+        MemoryBlockDevice device = new MemoryBlockDevice(2000);
+        FSBlockDeviceWrapper wrapper = wrap(device, 16);
+        // dirty pages inside and behind the large write
+        wrapper.write(PAGE_SIZE + 7, ByteBuffer.wrap(new byte[] { 1 }));
+        wrapper.write(6 * PAGE_SIZE + 7, ByteBuffer.wrap(new byte[] { 2 }));
+
+        byte[] large = new byte[4 * PAGE_SIZE];
+        Arrays.fill(large, (byte) 9);
+        wrapper.write(0, ByteBuffer.wrap(large));
+
+        assertEquals(9, device.data[PAGE_SIZE + 7]);
+        assertEquals(9, read(wrapper, PAGE_SIZE + 7, 1)[0]);
+        // the page behind the write stays dirty in the cache
+        assertEquals(0, device.data[6 * PAGE_SIZE + 7]);
+        wrapper.flush();
+        assertEquals(2, device.data[6 * PAGE_SIZE + 7]);
+    }
+
+    @Test(expected = IOException.class)
+    public void readBeyondEndFails() throws IOException {
+        MemoryBlockDevice device = new MemoryBlockDevice(100);
+        read(wrap(device, 8), 100 * SECTOR_SIZE - 1, 2);
+    }
+
+    /**
+     * Reads and writes random ranges through the wrapper and compares them
+     * with a copy of the device content. The device size is not a multiple
+     * of the page size.
+     */
+    @Test
+    public void matchesDeviceContent() throws IOException {
+        MemoryBlockDevice device = new MemoryBlockDevice(2001);
+        Random random = new Random(1);
+        random.nextBytes(device.data);
+        byte[] expected = device.data.clone();
+        int length = expected.length;
+        FSBlockDeviceWrapper wrapper = wrap(device, 8);
+
+        for (int i = 0; i < 50000; i++) {
+            int size = random.nextInt(10) == 0 ? SECTOR_SIZE * (1 + random.nextInt(300)) : 1 + random.nextInt(600);
+            int offset = random.nextInt(10) == 0 ? SECTOR_SIZE * random.nextInt(length / SECTOR_SIZE)
+                    : random.nextInt(length);
+            size = Math.min(size, length - offset);
+            if (size <= 0) {
+                continue;
+            }
+
+            if (random.nextInt(3) == 0) {
+                byte[] bytes = new byte[size];
+                random.nextBytes(bytes);
+                wrapper.write(offset, ByteBuffer.wrap(bytes));
+                System.arraycopy(bytes, 0, expected, offset, size);
+            } else {
+                assertArrayEquals("step " + i, Arrays.copyOfRange(expected, offset, offset + size),
+                        read(wrapper, offset, size));
+            }
+            if (random.nextInt(5000) == 0) {
+                wrapper.flush();
+            }
+        }
+
+        wrapper.flush();
+        assertArrayEquals(expected, device.data);
+    }
+}
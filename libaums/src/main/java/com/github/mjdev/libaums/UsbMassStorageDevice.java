@@ -21,6 +21,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -35,6 +38,8 @@ import android.util.Log;
 
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 import com.github.mjdev.libaums.driver.BlockDeviceDriverFactory;
+import com.github.mjdev.libaums.fs.FileSystem;
+import com.github.mjdev.libaums.fs.fat32.Fat32FileSystem;
 import com.github.mjdev.libaums.partition.Partition;
 import com.github.mjdev.libaums.partition.PartitionTable;
 import com.github.mjdev.libaums.partition.PartitionTableEntry;
@@ -87,6 +92,7 @@ public class UsbMassStorageDevice {
 	private BlockDeviceDriver blockDevice;
 	private PartitionTable partitionTable;
 	private List<Partition> partitions = new ArrayList<Partition>(); // Partition contain FileSystem Object
+	private ScheduledExecutorService ioExecutor;
 
 	private UsbMassStorageDevice(UsbManager usbManager, UsbDevice usbDevice,
 			UsbInterface usbInterface, UsbEndpoint inEndpoint, UsbEndpoint outEndpoint) {
@@ -184,6 +190,10 @@ public class UsbMassStorageDevice {
 		for (PartitionTableEntry entry : partitionEntrys) {
 			Partition partition = Partition.createPartition(entry, blockDevice); // Partition contain FileSystem
 			if (partition != null) {
+				FileSystem fileSystem = partition.getFileSystem();
+				if (fileSystem instanceof Fat32FileSystem) {
+					((Fat32FileSystem) fileSystem).setIoExecutor(getIoExecutor());
+				}
 				partitions.add(partition);
 			}
 		}
@@ -192,7 +202,22 @@ public class UsbMassStorageDevice {
 	public void close() {
 		CustomLog.d(TAG, "close device");
 		if(deviceConnection == null) return;
-		
+
+		for (Partition partition : partitions) {
+			try {
+				partition.getFileSystem().flush();
+			} catch (IOException e) {
+				Log.e(TAG, "could not flush file system", e);
+			}
+		}
+
+		synchronized (this) {
+			if (ioExecutor != null) {
+				ioExecutor.shutdownNow();
+				ioExecutor = null;
+			}
+		}
+
 		boolean release = deviceConnection.releaseInterface(usbInterface);
 		if (!release) {
 			Log.e(TAG, "could not release interface!");
@@ -200,6 +225,32 @@ public class UsbMassStorageDevice {
 		deviceConnection.close();
 	}
 
+	/**
+	 * Returns the worker thread of this device. Submitting all I/O of the
+	 * device to its worker serializes it, while I/O of different devices runs
+	 * in parallel. Thus copying from one device to another reads and writes at
+	 * the same time, see {@link com.github.mjdev.libaums.fs.CopyEngine}.
+	 * <p>
+	 * The worker executes tasks in the order they are submitted. The file
+	 * systems of the device also schedule their background work on it. It is
+	 * shut down when the device is closed.
+	 *
+	 * @return The executor of the worker thread.
+	 */
+	public synchronized ScheduledExecutorService getIoExecutor() {
+		if (ioExecutor == null) {
+			ioExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "USB I/O " + usbDevice.getDeviceName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return ioExecutor;
+	}
+
 	public UsbDeviceConnection getDeviceConnection() {
         return deviceConnection;
     }
@@ -1,10 +1,12 @@
 package com.github.mjdev.libaums.fs;
 
+import android.hardware.usb.UsbDeviceConnection;
 import android.util.Log;
 
 import com.github.mjdev.libaums.CustomLog;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 /**
  * Created by magnusja on 3/1/17.
@@ -13,6 +15,34 @@ import java.io.IOException;
 public abstract class AbstractUsbFile implements UsbFile {
     private static final String TAG = AbstractUsbFile.class.getSimpleName();
 
+    @Override
+    public ListFilesTask listFilesAsync(final UsbDeviceConnection deviceConnection, Executor executor,
+                                        ListFilesTask.Callback callback) {
+        // lists everything at once, subclasses can deliver smaller batches
+        ListFilesTask task = new ListFilesTask(callback) {
+            @Override
+            protected void list() throws IOException {
+                deliver(deviceConnection != null ? listFiles(deviceConnection) : listFiles());
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    @Override
+    public void moveFiles(UsbFile[] files) throws IOException {
+        for(UsbFile file: files) {
+            file.moveTo(this);
+        }
+    }
+
+    @Override
+    public void moveFiles(UsbDeviceConnection deviceConnection, UsbFile[] files) throws IOException {
+        for(UsbFile file: files) {
+            file.moveTo(deviceConnection, this);
+        }
+    }
+
     @Override
     public UsbFile search(String path) throws IOException {
         CustomLog.d(TAG, "search file: " + path);
@@ -0,0 +1,748 @@
+/*
+ * (C) Copyright 2014-2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.util.Log;
+
+import com.github.mjdev.libaums.UsbMassStorageDevice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Copies files and directory trees between {@link UsbFile}s and files of the
+ * local file system.
+ * <p>
+ * Reading and writing run in parallel: the calling thread reads into a small
+ * number of buffers while a second thread writes the buffers which have been
+ * filled. Thus a copy runs at the speed of the slower side instead of the
+ * sum of both. The buffers are a multiple of the chunk size of the file
+ * system, so every read and write is cluster aligned. Targets are
+ * preallocated, which keeps them contiguous. A target which has not been
+ * copied completely because of an error or cancellation is deleted.
+ * <p>
+ * When copying between two devices, the reads are executed by the worker of
+ * the source device and the writes by the worker of the target device, see
+ * {@link UsbMassStorageDevice#getIoExecutor()}. Each side uses buffers aligned
+ * to its own chunk size and the copy runs at the speed of the slower device,
+ * while other work for the devices is still serialized with the copy.
+ * <p>
+ * The progress, the throughput and the remaining time are reported to a
+ * {@link Listener} from the writing thread.
+ *
+ * @author mjahnen
+ *
+ */
+public class CopyEngine {
+
+	private static final String TAG = CopyEngine.class.getSimpleName();
+
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	public static final int DEFAULT_BUFFERS = 3;
+
+	/**
+	 * Minimum time between two progress reports in milliseconds.
+	 */
+	private static final long REPORT_INTERVAL = 500;
+
+	public interface Listener {
+		/**
+		 * Called when data has been written.
+		 *
+		 * @param copied The number of bytes copied so far.
+		 * @param total The total number of bytes to copy.
+		 * @param bytesPerSecond The current throughput.
+		 * @param remainingMillis Estimation of the remaining time, -1 if unknown.
+		 */
+		void onProgress(long copied, long total, long bytesPerSecond, long remainingMillis);
+	}
+
+	/**
+	 * Reads the content of a file at an offset.
+	 */
+	private interface Source {
+		long getLength() throws IOException;
+
+		void read(long offset, ByteBuffer destination) throws IOException;
+
+		void close() throws IOException;
+	}
+
+	/**
+	 * Writes the content of a file at an offset.
+	 */
+	private interface Sink {
+		void preallocate(long length) throws IOException;
+
+		void write(long offset, ByteBuffer source) throws IOException;
+
+		void close() throws IOException;
+
+		/**
+		 * Deletes the incomplete target after it has been closed.
+		 */
+		void delete() throws IOException;
+	}
+
+	private final UsbDeviceConnection sourceConnection;
+	private final UsbDeviceConnection targetConnection;
+	private final Executor sourceExecutor;
+	private final Executor targetExecutor;
+	private final int bufferSize;
+	private final int buffers;
+	private Listener listener;
+
+	private volatile boolean cancelled = false;
+	private long total;
+	private long copied;
+	private long lastReport;
+	private long lastReportCopied;
+	private long bytesPerSecond;
+
+	/**
+	 * @param chunkSize The chunk size of the file system, see {@link FileSystem#getChunkSize()}.
+	 */
+	public CopyEngine(int chunkSize) {
+		this(null, chunkSize, DEFAULT_BUFFERS);
+	}
+
+	/**
+	 * @param deviceConnection The connection used to access UsbFiles, or null
+	 *                         to use the default one.
+	 * @param chunkSize The chunk size of the file system, see {@link FileSystem#getChunkSize()}.
+	 * @param buffers The number of buffers, at least two.
+	 */
+	public CopyEngine(UsbDeviceConnection deviceConnection, int chunkSize, int buffers) {
+		this(deviceConnection, chunkSize, null, deviceConnection, chunkSize, null, buffers);
+	}
+
+	/**
+	 * Creates an engine copying from one device to another. Reads and writes
+	 * are executed by the I/O workers of the devices.
+	 *
+	 * @param sourceFs The file system of the source device the files are copied from.
+	 * @param targetFs The file system of the target device the files are copied to.
+	 */
+	public CopyEngine(UsbMassStorageDevice source, FileSystem sourceFs,
+					  UsbMassStorageDevice target, FileSystem targetFs) {
+		this(source.getDeviceConnection(), sourceFs.getChunkSize(), source.getIoExecutor(),
+				target.getDeviceConnection(), targetFs.getChunkSize(), target.getIoExecutor(),
+				DEFAULT_BUFFERS);
+	}
+
+	/**
+	 * @param sourceExecutor Executes the reads, or null to read on the calling thread.
+	 * @param targetExecutor Executes the writes in the order they are submitted,
+	 *                       or null to use a thread of the engine.
+	 */
+	private CopyEngine(UsbDeviceConnection sourceConnection, int sourceChunkSize, Executor sourceExecutor,
+					   UsbDeviceConnection targetConnection, int targetChunkSize, Executor targetExecutor,
+					   int buffers) {
+		this.sourceConnection = sourceConnection;
+		this.targetConnection = targetConnection;
+		this.sourceExecutor = sourceExecutor;
+		this.targetExecutor = targetExecutor;
+		// aligned to the chunks of both sides
+		int chunkSize = leastCommonMultiple(sourceChunkSize, targetChunkSize);
+		bufferSize = Math.max(DEFAULT_BUFFER_SIZE / chunkSize, 1) * chunkSize;
+		this.buffers = Math.max(buffers, 2);
+	}
+
+	private static int leastCommonMultiple(int a, int b) {
+		int x = a;
+		int y = b;
+		while (y != 0) {
+			int remainder = x % y;
+			x = y;
+			y = remainder;
+		}
+		return a / x * b;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Cancels a running copy, the copy method throws an
+	 * {@link InterruptedIOException} then.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Copies a file or directory tree of the device to the local file system.
+	 *
+	 * @param to The target file, or the target directory if from is a directory.
+	 */
+	public void copy(UsbFile from, File to) throws IOException {
+		total = getLength(from, sourceConnection, sourceExecutor);
+		run(new Copy() {
+			@Override
+			void copy(Copier copier, Object from, Object to) throws IOException {
+				UsbFile source = (UsbFile) from;
+				File target = (File) to;
+				if (source.isDirectory()) {
+					if (!target.isDirectory() && !target.mkdirs())
+						throw new IOException("Could not create " + target);
+					for (UsbFile child : listFiles(source, sourceConnection, sourceExecutor)) {
+						copy(copier, child, new File(target, child.getName()));
+					}
+				} else {
+					copier.copy(createSource(source), createSink(target));
+				}
+			}
+		}, from, to);
+	}
+
+	/**
+	 * Copies a file or directory tree of the local file system into a
+	 * directory of the device.
+	 *
+	 * @param toDirectory The directory the file or directory is created in.
+	 */
+	public void copy(File from, UsbFile toDirectory) throws IOException {
+		total = getLength(from);
+		run(new Copy() {
+			@Override
+			void copy(Copier copier, Object from, Object to) throws IOException {
+				File source = (File) from;
+				UsbFile directory = (UsbFile) to;
+				if (source.isDirectory()) {
+					UsbFile target = createDirectory(directory, source.getName());
+					File[] children = source.listFiles();
+					if (children == null)
+						throw new IOException("Could not list " + source);
+					for (File child : children) {
+						copy(copier, child, target);
+					}
+				} else {
+					copier.copy(createSource(source), createSink(createFile(directory, source.getName())));
+				}
+			}
+		}, from, toDirectory);
+	}
+
+	/**
+	 * Copies a file or directory tree into a directory, eg. of another device.
+	 *
+	 * @param toDirectory The directory the file or directory is created in.
+	 */
+	public void copy(UsbFile from, UsbFile toDirectory) throws IOException {
+		copy(new UsbFile[] { from }, toDirectory);
+	}
+
+	/**
+	 * Copies several files or directory trees into a directory in one run, so
+	 * that the progress covers all of them.
+	 *
+	 * @param toDirectory The directory the files and directories are created in.
+	 */
+	public void copy(UsbFile[] from, UsbFile toDirectory) throws IOException {
+		total = 0;
+		for (UsbFile file : from) {
+			total += getLength(file, sourceConnection, sourceExecutor);
+		}
+		run(new Copy() {
+			@Override
+			void copy(Copier copier, Object from, Object to) throws IOException {
+				if (from instanceof UsbFile[]) {
+					for (UsbFile file : (UsbFile[]) from) {
+						copy(copier, file, to);
+					}
+					return;
+				}
+
+				UsbFile source = (UsbFile) from;
+				UsbFile directory = (UsbFile) to;
+				if (source.isDirectory()) {
+					UsbFile target = createDirectory(directory, source.getName());
+					for (UsbFile child : listFiles(source, sourceConnection, sourceExecutor)) {
+						copy(copier, child, target);
+					}
+				} else {
+					copier.copy(createSource(source), createSink(createFile(directory, source.getName())));
+				}
+			}
+		}, from, toDirectory);
+	}
+
+	/**
+	 * Executes a task on an I/O worker and waits for its result.
+	 *
+	 * @param executor The worker, or null to execute it on the calling thread.
+	 */
+	private static <T> T call(Executor executor, Callable<T> callable) throws IOException {
+		try {
+			if (executor == null)
+				return callable.call();
+
+			FutureTask<T> task = new FutureTask<>(callable);
+			executor.execute(task);
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while copying");
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Device has been closed", e);
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static UsbFile[] listFiles(final UsbFile directory, final UsbDeviceConnection connection,
+									   Executor executor) throws IOException {
+		return call(executor, new Callable<UsbFile[]>() {
+			@Override
+			public UsbFile[] call() throws IOException {
+				return connection != null ? directory.listFiles(connection) : directory.listFiles();
+			}
+		});
+	}
+
+	private UsbFile createDirectory(final UsbFile directory, final String name) throws IOException {
+		return call(targetExecutor, new Callable<UsbFile>() {
+			@Override
+			public UsbFile call() throws IOException {
+				return directory.createDirectory(name);
+			}
+		});
+	}
+
+	private UsbFile createFile(final UsbFile directory, final String name) throws IOException {
+		return call(targetExecutor, new Callable<UsbFile>() {
+			@Override
+			public UsbFile call() throws IOException {
+				return directory.createFile(name);
+			}
+		});
+	}
+
+	private static long getLength(UsbFile file, UsbDeviceConnection connection,
+								  Executor executor) throws IOException {
+		if (!file.isDirectory())
+			return file.getLength();
+		long length = 0;
+		for (UsbFile child : listFiles(file, connection, executor)) {
+			length += getLength(child, connection, executor);
+		}
+		return length;
+	}
+
+	private static long getLength(File file) {
+		if (!file.isDirectory())
+			return file.length();
+		long length = 0;
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				length += getLength(child);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Walks the tree to copy and passes every file to the copier.
+	 */
+	private abstract static class Copy {
+		abstract void copy(Copier copier, Object from, Object to) throws IOException;
+	}
+
+	private void run(Copy copy, Object from, Object to) throws IOException {
+		cancelled = false;
+		copied = 0;
+		lastReport = System.currentTimeMillis();
+		lastReportCopied = 0;
+		bytesPerSecond = 0;
+
+		ExecutorService writer = null;
+		Executor executor = targetExecutor;
+		if (executor == null) {
+			executor = writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "USB copy writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		Copier copier = new Copier(executor);
+		try {
+			copy.copy(copier, from, to);
+			copier.finish();
+		} catch (IOException e) {
+			cancelled = true;
+			try {
+				// lets the pending blocks close their files
+				copier.finish();
+			} catch (IOException ignored) {
+				// the first error is reported
+			}
+			throw e;
+		} finally {
+			if (writer != null)
+				writer.shutdown();
+		}
+		report(true);
+	}
+
+	/**
+	 * The reading side of the pipeline, which runs on the calling thread or
+	 * the worker of the source, and submits the filled buffers to the writing
+	 * executor. The writing executor never waits for the reading side, so
+	 * copies in both directions between two devices cannot block each other.
+	 */
+	private class Copier {
+		private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(buffers);
+		private final Executor writer;
+		private volatile IOException error;
+
+		Copier(Executor writer) {
+			this.writer = writer;
+			for (int i = 0; i < buffers; i++) {
+				freeBuffers.add(ByteBuffer.allocate(bufferSize));
+			}
+		}
+
+		/**
+		 * Reads the source into buffers and submits them to the writer.
+		 * Returns as soon as the last buffer has been submitted.
+		 */
+		void copy(final Source source, Sink sink) throws IOException {
+			try {
+				long length = source.getLength();
+				submit(new Preallocation(sink, length));
+
+				if (length == 0) {
+					// nothing to read, the writer only closes the sink
+					submit(new Block(sink, 0, null, true, false));
+					return;
+				}
+
+				long offset = 0;
+				do {
+					checkState();
+					final ByteBuffer buffer = take();
+					buffer.clear();
+					buffer.limit((int) Math.min(bufferSize, length - offset));
+					final long position = offset;
+					call(sourceExecutor, new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							source.read(position, buffer);
+							return null;
+						}
+					});
+					buffer.flip();
+
+					offset += buffer.limit();
+					submit(new Block(sink, position, buffer, offset >= length, false));
+				} while (offset < length);
+			} catch (IOException e) {
+				// closes and deletes the sink after the writes which have been submitted
+				submit(new Block(sink, 0, null, true, true));
+				throw e;
+			} finally {
+				source.close();
+			}
+		}
+
+		/**
+		 * Preallocates a file on the writer, in order with the writes, so the
+		 * writes of the previous file do not have to be waited for.
+		 */
+		private class Preallocation implements Runnable {
+			final Sink sink;
+			final long length;
+
+			Preallocation(Sink sink, long length) {
+				this.sink = sink;
+				this.length = length;
+			}
+
+			@Override
+			public void run() {
+				try {
+					if (error == null && !cancelled)
+						sink.preallocate(length);
+				} catch (IOException e) {
+					Log.e(TAG, "preallocating failed", e);
+					if (error == null)
+						error = e;
+				}
+			}
+		}
+
+		private void checkState() throws IOException {
+			if (error != null)
+				throw error;
+			if (cancelled)
+				throw new InterruptedIOException("Copy has been cancelled");
+		}
+
+		private ByteBuffer take() throws IOException {
+			try {
+				return freeBuffers.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while copying");
+			}
+		}
+
+		private void submit(Runnable block) throws IOException {
+			try {
+				writer.execute(block);
+			} catch (RejectedExecutionException e) {
+				throw new IOException("Device has been closed", e);
+			}
+		}
+
+		/**
+		 * Writes a filled buffer or closes a file.
+		 */
+		private class Block implements Runnable {
+			final Sink sink;
+			final long offset;
+			final ByteBuffer buffer;
+			final boolean last;
+			final boolean failed;
+
+			/**
+			 * @param last True to close the file afterwards.
+			 * @param failed True if the file could not be read completely.
+			 */
+			Block(Sink sink, long offset, ByteBuffer buffer, boolean last, boolean failed) {
+				this.sink = sink;
+				this.offset = offset;
+				this.buffer = buffer;
+				this.last = last;
+				this.failed = failed;
+			}
+
+			@Override
+			public void run() {
+				int size = buffer != null ? buffer.remaining() : 0;
+				try {
+					if (buffer != null && error == null && !cancelled) {
+						sink.write(offset, buffer);
+						onCopied(size);
+					}
+					if (last) {
+						sink.close();
+						// writes of the file have been skipped after an error
+						if (failed || error != null || cancelled)
+							delete(sink);
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "writing failed", e);
+					if (error == null)
+						error = e;
+					if (last)
+						delete(sink);
+				} finally {
+					if (buffer != null)
+						freeBuffers.add(buffer);
+				}
+			}
+		}
+
+		private void delete(Sink sink) {
+			try {
+				sink.delete();
+			} catch (IOException e) {
+				Log.e(TAG, "deleting incomplete file failed", e);
+			}
+		}
+
+		/**
+		 * Waits until everything which has been submitted has been written.
+		 */
+		void finish() throws IOException {
+			final CountDownLatch latch = new CountDownLatch(1);
+			submit(new Runnable() {
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			});
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while copying");
+			}
+			if (error != null)
+				throw error;
+		}
+	}
+
+	private void onCopied(long size) {
+		copied += size;
+		report(false);
+	}
+
+	private void report(boolean force) {
+		long now = System.currentTimeMillis();
+		long elapsed = now - lastReport;
+		if (!force && elapsed < REPORT_INTERVAL)
+			return;
+
+		if (elapsed > 0) {
+			long current = (copied - lastReportCopied) * 1000 / elapsed;
+			// smooth the throughput, it varies between reports
+			bytesPerSecond = bytesPerSecond == 0 ? current : (bytesPerSecond + current) / 2;
+		}
+		lastReport = now;
+		lastReportCopied = copied;
+
+		Listener listener = this.listener;
+		if (listener != null) {
+			long remaining = bytesPerSecond > 0 ? (total - copied) * 1000 / bytesPerSecond : -1;
+			listener.onProgress(copied, total, bytesPerSecond, remaining);
+		}
+	}
+
+	private Source createSource(final UsbFile file) {
+		return new Source() {
+			@Override
+			public long getLength() {
+				return file.getLength();
+			}
+
+			@Override
+			public void read(long offset, ByteBuffer destination) throws IOException {
+				if (sourceConnection != null)
+					file.read(sourceConnection, offset, destination);
+				else
+					file.read(offset, destination);
+			}
+
+			@Override
+			public void close() throws IOException {
+				// reading does not need to be finished
+			}
+		};
+	}
+
+	private Sink createSink(final UsbFile file) {
+		return new Sink() {
+			@Override
+			public void preallocate(long length) throws IOException {
+				file.preallocate(length);
+			}
+
+			@Override
+			public void write(long offset, ByteBuffer source) throws IOException {
+				if (targetConnection != null)
+					file.write(targetConnection, offset, source);
+				else
+					file.write(offset, source);
+			}
+
+			@Override
+			public void close() throws IOException {
+				file.close();
+			}
+
+			@Override
+			public void delete() throws IOException {
+				file.delete();
+			}
+		};
+	}
+
+	private static Source createSource(File file) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		final FileChannel channel = randomAccessFile.getChannel();
+		return new Source() {
+			@Override
+			public long getLength() throws IOException {
+				return channel.size();
+			}
+
+			@Override
+			public void read(long offset, ByteBuffer destination) throws IOException {
+				while (destination.hasRemaining()) {
+					int read = channel.read(destination, offset);
+					if (read < 0)
+						throw new IOException("Unexpected end of file");
+					offset += read;
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				randomAccessFile.close();
+			}
+		};
+	}
+
+	private static Sink createSink(final File file) throws IOException {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+		final FileChannel channel = randomAccessFile.getChannel();
+		return new Sink() {
+			@Override
+			public void preallocate(long length) throws IOException {
+				randomAccessFile.setLength(length);
+			}
+
+			@Override
+			public void write(long offset, ByteBuffer source) throws IOException {
+				while (source.hasRemaining()) {
+					offset += channel.write(source, offset);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				randomAccessFile.close();
+			}
+
+			@Override
+			public void delete() throws IOException {
+				if (!file.delete())
+					throw new IOException("Could not delete " + file);
+			}
+		};
+	}
+}
@@ -17,6 +17,8 @@
 
 package com.github.mjdev.libaums.fs;
 
+import java.io.IOException;
+
 /**
  * This class represents a file system.
  *
@@ -68,4 +70,12 @@ public interface FileSystem {
 	 * @return returns the optimal chuck size in bytes (you should read and write in multiples of that)
 	 */
 	int getChunkSize();
+
+	/**
+	 * Writes all file system metadata which is only cached in memory to the
+	 * disk. This should be called before the device is detached.
+	 *
+	 * @throws IOException If writing fails.
+	 */
+	void flush() throws IOException;
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2014-2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs;
+
+import java.io.IOException;
+
+/**
+ * Lists the items of a directory in the background, see
+ * {@link UsbFile#listFilesAsync}. The items are delivered in batches as soon
+ * as they have been read, so the first items can be shown before the whole
+ * directory has been read.
+ * <p>
+ * The task is also the handle to cancel the listing. After it has been
+ * cancelled, the callback is not called anymore.
+ *
+ * @author mjahnen
+ *
+ */
+public abstract class ListFilesTask implements Runnable {
+
+	public interface Callback {
+		/**
+		 * Called for every batch of items, in the order of the directory.
+		 */
+		void onFiles(UsbFile[] files);
+
+		/**
+		 * Called after the last batch.
+		 */
+		void onComplete();
+
+		void onError(IOException e);
+	}
+
+	private final Callback callback;
+	private volatile boolean cancelled = false;
+
+	protected ListFilesTask(Callback callback) {
+		this.callback = callback;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public final void run() {
+		if (cancelled)
+			return;
+
+		try {
+			list();
+		} catch (IOException e) {
+			if (!cancelled)
+				callback.onError(e);
+			return;
+		} catch (RuntimeException e) {
+			// eg. a corrupt directory, the callback must still be told that
+			// the listing ended
+			if (!cancelled)
+				callback.onError(new IOException("Listing directory failed", e));
+			return;
+		}
+		if (!cancelled)
+			callback.onComplete();
+	}
+
+	/**
+	 * Reads the directory and calls {@link #deliver} for every batch.
+	 * Implementations should stop early if the task has been cancelled.
+	 */
+	protected abstract void list() throws IOException;
+
+	/**
+	 * Passes a batch of items to the callback, unless the task has been
+	 * cancelled.
+	 */
+	public void deliver(UsbFile[] files) {
+		if (!cancelled && files.length > 0)
+			callback.onFiles(files);
+	}
+}
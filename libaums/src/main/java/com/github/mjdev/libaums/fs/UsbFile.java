@@ -24,6 +24,7 @@ import android.support.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 /**
  * This class represents either an file or an directory. This can be determined
@@ -90,6 +91,19 @@ public interface UsbFile extends Closeable {
 	UsbFile[] listFiles() throws IOException;
 	UsbFile[] listFiles(UsbDeviceConnection deviceConnection) throws IOException;
 
+	/**
+	 * Lists all files in the directory in the background. The files are
+	 * delivered in batches while the directory is read, in the order of the
+	 * directory. The callback is called on the thread of the executor.
+	 *
+	 * @param deviceConnection The connection to use, or null to use the default one.
+	 * @param executor Executes the listing, eg. the I/O worker of the device.
+	 * @param callback Receives the files.
+	 * @return The task, which can be used to cancel the listing.
+	 */
+	ListFilesTask listFilesAsync(UsbDeviceConnection deviceConnection, Executor executor,
+								 ListFilesTask.Callback callback);
+
 	/**
 	 * Get the file length in bytes or throws an exception if called on a directory.
 	 */
@@ -100,6 +114,18 @@ public interface UsbFile extends Closeable {
 	 */
 	void setLength(long newLength) throws IOException;
 
+	/**
+	 * Reserves space on the disk so that the file can grow up to the given
+	 * length without further allocations. The file length as returned by
+	 * {@link #getLength()} is not changed. The space is kept when the file is
+	 * flushed, space which has not been written when the file is closed is
+	 * released again. Throws an exception if called on a directory.
+	 *
+	 * @param length The length in bytes the file is expected to grow to.
+	 * @throws IOException If allocating the space fails.
+	 */
+	void preallocate(long length) throws IOException;
+
 	/**
 	 * Reads from a file or throws an exception if called on a directory.
 	 * 
@@ -166,6 +192,19 @@ public interface UsbFile extends Closeable {
 	void moveTo(UsbFile destination) throws IOException;
 	void moveTo(UsbDeviceConnection deviceConnection, UsbFile destination) throws IOException;
 
+	/**
+	 * This methods moves several items into this directory. The items can be
+	 * in different directories, but have to be on the same file system as
+	 * this directory. Compared to calling {@link #moveTo(UsbFile)} for every
+	 * item, each directory involved is written to the disk only once.
+	 *
+	 * @param files The items which should be moved into this directory.
+	 * @throws IOException If writing fails, or the operation cannot be done (eg. item
+	 *             already exists in this directory). In the latter case no item is moved.
+	 */
+	void moveFiles(UsbFile[] files) throws IOException;
+	void moveFiles(UsbDeviceConnection deviceConnection, UsbFile[] files) throws IOException;
+
 	/**
 	 * Deletes this file or directory from the parent directory.
 	 * @throws IOException If operation fails due to write errors.
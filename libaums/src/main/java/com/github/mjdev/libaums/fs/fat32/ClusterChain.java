@@ -19,6 +19,7 @@ package com.github.mjdev.libaums.fs.fat32;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import android.hardware.usb.UsbDeviceConnection;
 import android.util.Log;
@@ -31,6 +32,17 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
  * FAT32 file system. You can {@link #read(long, ByteBuffer) read} from or
  * {@link #write(long, ByteBuffer) write} to it easily without having to worry
  * about the specific clusters.
+ * <p>
+ * The chain is not read completely when it is created. It is only followed as
+ * far as an access needs it, so reading the end of a large file does not
+ * require the whole chain to be in memory first, only the part before it. The
+ * part which is known is stored as runs of consecutive clusters, which are
+ * binary searched to find the cluster for an offset. A file without
+ * fragmentation thus needs only one run, regardless of its size.
+ * <p>
+ * The known part of the chain is guarded by the chain itself, so several
+ * threads can read the same file. The data is transferred without holding
+ * the lock.
  *
  * @author mjahnen
  *
@@ -39,31 +51,137 @@ public class ClusterChain {
 
 	private static final String TAG = ClusterChain.class.getSimpleName();
 
+	private static final int INITIAL_RUNS = 4;
+
 	private BlockDeviceDriver blockDevice;
+	private UsbDeviceConnection usbDeviceConnection;
 	private FAT fat;
-	private Long[] chain;
 	private long clusterSize;
 	private long dataAreaOffset;
 
+	/**
+	 * Chain index of the first cluster of every run.
+	 */
+	private long[] runIndex = new long[INITIAL_RUNS];
+	/**
+	 * The first cluster of every run.
+	 */
+	private long[] runCluster = new long[INITIAL_RUNS];
+	private int runCount;
+	/**
+	 * The run of the last lookup, checked first for sequential access.
+	 */
+	private int lastRun;
+	/**
+	 * Number of clusters at the start of the chain which are already known.
+	 */
+	private long knownClusters;
+	/**
+	 * True if the end of the chain has been reached.
+	 */
+	private boolean complete;
+
 	ClusterChain(long startCluster, BlockDeviceDriver blockDevice, FAT fat, Fat32BootSector bootSector) throws IOException {
-		CustomLog.d(TAG, "Init a cluster chain, reading from FAT");
-		this.fat = fat;
-		this.blockDevice = blockDevice;
-		chain = fat.getChain(startCluster); // ------> 5
-		clusterSize = bootSector.getBytesPerCluster();
-		dataAreaOffset = bootSector.getDataAreaOffset();
-		CustomLog.d(TAG, "Finished init of a cluster chain");
+		this(null, startCluster, blockDevice, fat, bootSector);
 	}
 
 	ClusterChain(UsbDeviceConnection usbDeviceConnection, long startCluster, BlockDeviceDriver blockDevice,
 				 FAT fat, Fat32BootSector bootSector) throws IOException {
-		CustomLog.d(TAG, "Init a cluster chain, reading from FAT");
+		CustomLog.d(TAG, "Init a cluster chain, start cluster: " + startCluster);
+		this.usbDeviceConnection = usbDeviceConnection;
 		this.fat = fat;
 		this.blockDevice = blockDevice;
-		chain = fat.getChain(usbDeviceConnection, startCluster); // ------> 5
 		clusterSize = bootSector.getBytesPerCluster();
 		dataAreaOffset = bootSector.getDataAreaOffset();
-		CustomLog.d(TAG, "Finished init of a cluster chain");
+
+		if (startCluster == 0) {
+			// if the start cluster is 0, we have an empty file
+			complete = true;
+		} else {
+			addCluster(startCluster);
+		}
+	}
+
+	private long getLastKnownCluster() {
+		if (knownClusters == 0)
+			return 0;
+		return runCluster[runCount - 1] + knownClusters - 1 - runIndex[runCount - 1];
+	}
+
+	private void addCluster(long cluster) {
+		if (runCount > 0 && cluster == getLastKnownCluster() + 1) {
+			knownClusters++;
+			return;
+		}
+
+		if (runCount == runIndex.length) {
+			runIndex = Arrays.copyOf(runIndex, runCount * 2);
+			runCluster = Arrays.copyOf(runCluster, runCount * 2);
+		}
+		runIndex[runCount] = knownClusters;
+		runCluster[runCount] = cluster;
+		runCount++;
+		knownClusters++;
+	}
+
+	/**
+	 * Follows the chain in the FAT until the cluster with the given index is
+	 * known or the end of the chain is reached.
+	 *
+	 * @throws IOException If the chain is longer than the FAT, which means it
+	 *                     contains a loop.
+	 */
+	private synchronized void walkTo(UsbDeviceConnection deviceConnection, long index) throws IOException {
+		while (knownClusters <= index && !complete) {
+			if (knownClusters > fat.getClusterCount())
+				throw new IOException("cluster chain contains a loop");
+
+			long next = fat.getNextCluster(deviceConnection, getLastKnownCluster());
+			if (next == 0) {
+				complete = true;
+			} else {
+				addCluster(next);
+			}
+		}
+	}
+
+	private synchronized long getCluster(UsbDeviceConnection deviceConnection, long index) throws IOException {
+		walkTo(deviceConnection, index);
+		if (index >= knownClusters)
+			throw new IOException("Index " + index + " is beyond the end of the cluster chain");
+
+		int run = lastRun;
+		long runEnd = run + 1 < runCount ? runIndex[run + 1] : knownClusters;
+		if (index < runIndex[run] || index >= runEnd) {
+			int low = 0;
+			int high = runCount - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (runIndex[mid] <= index)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			run = low;
+			lastRun = run;
+		}
+
+		return runCluster[run] + index - runIndex[run];
+	}
+
+	private long getCluster(long index) throws IOException {
+		return getCluster(usbDeviceConnection, index);
+	}
+
+	/**
+	 * Forgets all known clusters from the given index on.
+	 */
+	private void truncate(long numberOfClusters) {
+		while (runCount > 0 && runIndex[runCount - 1] >= numberOfClusters) {
+			runCount--;
+		}
+		knownClusters = numberOfClusters;
+		lastRun = 0;
 	}
 
 	void read(long offset, ByteBuffer dest) throws IOException {
@@ -76,7 +194,7 @@ public class ClusterChain {
 			int size = Math.min(length, (int) (clusterSize - clusterOffset));
 			dest.limit(dest.position() + size);
 
-			blockDevice.read(getFileSystemOffset(chain[chainIndex], clusterOffset), dest);
+			blockDevice.read(getFileSystemOffset(getCluster(chainIndex), clusterOffset), dest);
 
 			// round up to next cluster in the chain
 			chainIndex++;
@@ -89,7 +207,7 @@ public class ClusterChain {
 			int size = (int) Math.min(clusterSize, length);
 			dest.limit(dest.position() + size);
 
-			blockDevice.read(getFileSystemOffset(chain[chainIndex], 0), dest);
+			blockDevice.read(getFileSystemOffset(getCluster(chainIndex), 0), dest);
 
 			chainIndex++;
 			length -= size;
@@ -106,7 +224,7 @@ public class ClusterChain {
 			int size = Math.min(length, (int) (clusterSize - clusterOffset));
 			dest.limit(dest.position() + size);
 
-			blockDevice.read(getFileSystemOffset(chain[chainIndex], clusterOffset), dest);
+			blockDevice.read(getFileSystemOffset(getCluster(deviceConnection, chainIndex), clusterOffset), dest);
 
 			// round up to next cluster in the chain
 			chainIndex++;
@@ -119,7 +237,7 @@ public class ClusterChain {
 			int size = (int) Math.min(clusterSize, length);
 			dest.limit(dest.position() + size);
 
-			blockDevice.read(deviceConnection, getFileSystemOffset(chain[chainIndex], 0), dest);
+			blockDevice.read(deviceConnection, getFileSystemOffset(getCluster(deviceConnection, chainIndex), 0), dest);
 
 			chainIndex++;
 			length -= size;
@@ -135,7 +253,7 @@ public class ClusterChain {
 			int size = Math.min(length, (int) (clusterSize - clusterOffset));
 			source.limit(source.position() + size);
 
-			blockDevice.write(getFileSystemOffset(chain[chainIndex], clusterOffset), source);
+			blockDevice.write(getFileSystemOffset(getCluster(chainIndex), clusterOffset), source);
 
 			// round up to next cluster in the chain
 			chainIndex++;
@@ -147,7 +265,7 @@ public class ClusterChain {
 			int size = (int) Math.min(clusterSize, length);
 			source.limit(source.position() + size);
 
-			blockDevice.write(getFileSystemOffset(chain[chainIndex], 0), source);
+			blockDevice.write(getFileSystemOffset(getCluster(chainIndex), 0), source);
 
 			chainIndex++;
 			length -= size;
@@ -163,7 +281,7 @@ public class ClusterChain {
 			int size = Math.min(length, (int) (clusterSize - clusterOffset));
 			source.limit(source.position() + size);
 
-			blockDevice.write(usbDeviceConnection, getFileSystemOffset(chain[chainIndex], clusterOffset), source);
+			blockDevice.write(usbDeviceConnection, getFileSystemOffset(getCluster(usbDeviceConnection, chainIndex), clusterOffset), source);
 
 			// round up to next cluster in the chain
 			chainIndex++;
@@ -175,7 +293,7 @@ public class ClusterChain {
 			int size = (int) Math.min(clusterSize, length);
 			source.limit(source.position() + size);
 
-			blockDevice.write(usbDeviceConnection, getFileSystemOffset(chain[chainIndex], 0), source);
+			blockDevice.write(usbDeviceConnection, getFileSystemOffset(getCluster(usbDeviceConnection, chainIndex), 0), source);
 
 			chainIndex++;
 			length -= size;
@@ -186,30 +304,35 @@ public class ClusterChain {
 		return dataAreaOffset + clusterOffset + (cluster - 2) * clusterSize;
 	}
 
-	void setClusters(int newNumberOfClusters) throws IOException {
-		int oldNumberOfClusters = getClusters();
-		if (newNumberOfClusters == oldNumberOfClusters)
-			return;
-
-		if (newNumberOfClusters > oldNumberOfClusters) {
-			CustomLog.d(TAG, "grow chain");
-			chain = fat.alloc(chain, newNumberOfClusters - oldNumberOfClusters);
-		} else {
+	synchronized void setClusters(int newNumberOfClusters) throws IOException {
+		// only the clusters up to the new end have to be known to shrink
+		walkTo(usbDeviceConnection, newNumberOfClusters);
+		if (knownClusters > newNumberOfClusters) {
 			CustomLog.d(TAG, "shrink chain");
-			chain = fat.free(chain, oldNumberOfClusters - newNumberOfClusters);
+			long lastCluster = newNumberOfClusters == 0 ? 0 : getCluster(newNumberOfClusters - 1);
+			fat.free(lastCluster, getCluster(newNumberOfClusters));
+			truncate(newNumberOfClusters);
+			complete = true;
+		} else if (knownClusters < newNumberOfClusters) {
+			CustomLog.d(TAG, "grow chain");
+			long[] clusters = fat.alloc(getLastKnownCluster(), (int) (newNumberOfClusters - knownClusters));
+			for (long cluster : clusters) {
+				addCluster(cluster);
+			}
 		}
 	}
 
-	int getClusters() {
-		return chain.length;
+	synchronized int getClusters() throws IOException {
+		walkTo(usbDeviceConnection, Long.MAX_VALUE);
+		return (int) knownClusters;
 	}
 
-	void setLength(long newLength) throws IOException {
+	synchronized void setLength(long newLength) throws IOException {
 		final long newNumberOfClusters = ((newLength + clusterSize - 1) / clusterSize);
 		setClusters((int) newNumberOfClusters);
 	}
 
-	long getLength() {
-		return chain.length * clusterSize;
+	synchronized long getLength() throws IOException {
+		return getClusters() * clusterSize;
 	}
 }
@@ -20,8 +20,11 @@ package com.github.mjdev.libaums.fs.fat32;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import android.hardware.usb.UsbDeviceConnection;
 import android.util.Log;
@@ -39,6 +42,13 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
  * . Every entry in the FAT is 32 bit. The FAT is a (linked) list where the
  * clusters can be followed until a cluster chain ends.
  * <p>
+ * Changes to the FAT are collected in memory and written by {@link #flush()}
+ * to every copy of the FAT, if the FAT is mirrored. This happens at the latest
+ * before a directory is written, so that directory entries never point to
+ * clusters which are not yet allocated on the disk. The FAT is also written
+ * before the {@link FsInfoStructure}, so the free cluster count on the disk
+ * never describes allocations which are not on the disk.
+ * <p>
  * For more information you should refer to the official documentation of FAT32.
  *
  * @author mjahnen
@@ -50,10 +60,58 @@ public class FAT {
 
 	private static final int FAT32_EOF_CLUSTER = 0x0FFFFFF8;
 
+	/**
+	 * Maximum number of dirty blocks kept in memory before they are flushed.
+	 */
+	private static final int MAX_DIRTY_BLOCKS = 128;
+
 	private BlockDeviceDriver blockDevice;
 	private long fatOffset[];
 	private int fatNumbers[];
 	private FsInfoStructure fsInfoStructure;
+	/**
+	 * Number of clusters in the data area. Valid cluster numbers range from 2
+	 * to clusterCount + 1.
+	 */
+	private long clusterCount;
+	/**
+	 * Size of the blocks the FAT is read and cached in.
+	 */
+	private int blockSize;
+	/**
+	 * Blocks which have been changed but not yet written to the disk. The key
+	 * is the offset of the block relative to the start of the FAT, so it is the
+	 * same for every copy of the FAT. Guarded by this.
+	 */
+	private TreeMap<Long, ByteBuffer> dirtyBlocks = new TreeMap<Long, ByteBuffer>();
+	private ByteBuffer readBuffer;
+	/**
+	 * Offset of the block currently held in readBuffer, -1 if none.
+	 */
+	private long readBufferOffset = -1;
+
+	/**
+	 * Incremented whenever dirty blocks are written, so the free cluster scan
+	 * can detect that a block it has read outside the lock is outdated.
+	 * Guarded by this.
+	 */
+	private long flushCount;
+
+	/**
+	 * True if the free cluster count is invalid and has to be computed by a
+	 * scan once an executor is available, see {@link #setExecutor}.
+	 */
+	private boolean scanNeeded;
+	/**
+	 * The next cluster the free cluster scan will look at, -1 if no scan is
+	 * running. Guarded by this.
+	 */
+	private long scanPosition = -1;
+	/**
+	 * Free clusters found so far by the free cluster scan. Guarded by this.
+	 */
+	private long scannedFreeClusters;
+	private long firstFreeCluster;
 
 	FAT(BlockDeviceDriver blockDevice, Fat32BootSector bootSector, FsInfoStructure fsInfoStructure) {
 		this.blockDevice = blockDevice;
@@ -75,255 +133,438 @@ public class FAT {
 		for (int i = 0; i < fatOffset.length; i++) {
 			fatOffset[i] = bootSector.getFatOffset(fatNumbers[i]);
 		}
+
+		blockSize = blockDevice.getBlockSize() * 2;
+		readBuffer = ByteBuffer.allocate(blockSize);
+		readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		clusterCount = (bootSector.getTotalNumberOfSectors() * bootSector.getBytesPerSector()
+				- bootSector.getDataAreaOffset()) / bootSector.getBytesPerCluster();
+
+		long freeClusterCount = fsInfoStructure.getFreeClusterCount();
+		if (freeClusterCount == FsInfoStructure.INVALID_VALUE || freeClusterCount < 0
+				|| freeClusterCount > clusterCount) {
+			CustomLog.w(TAG, "free cluster count invalid, has to be scanned");
+			scanNeeded = true;
+		}
 	}
 
-	Long[] getChain(long startCluster) throws IOException {
-		
-		if(startCluster == 0) {
-			// if the start cluster is 0, we have an empty file 
-			return new Long[0];
+	/**
+	 * Sets the executor background work of the FAT is done on. This should be
+	 * the I/O worker of the device, so the work does not compete with other
+	 * I/O of the device for the connection. A free cluster scan, if needed,
+	 * is started and changes are written periodically, so that the
+	 * {@link FsInfoStructure} on the disk is updated even if the volume is
+	 * idle.
+	 */
+	void setExecutor(ScheduledExecutorService executor) {
+		synchronized (this) {
+			if (scanNeeded) {
+				scanNeeded = false;
+				startFreeClusterScan(executor);
+			}
 		}
-		
-		final ArrayList<Long> result = new ArrayList<Long>();
-		final int bufferSize = blockDevice.getBlockSize() * 2;
 
-		final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					CustomLog.e(TAG, "periodic checkpoint failed: " + e.getMessage());
+				}
+			}
+		}, FsInfoStructure.CHECKPOINT_INTERVAL, FsInfoStructure.CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
 
-		long currentCluster = startCluster;
-		long offset;
-		long offsetInBlock;
-		long lastOffset = -1;
+	private long getBlockOffset(long cluster) {
+		return ((cluster * 4) / blockSize) * blockSize;
+	}
 
-		do {
-			result.add(currentCluster);
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
+	private int getOffsetInBlock(long cluster) {
+		return (int) ((cluster * 4) % blockSize);
+	}
 
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.read(offset, buffer); // ------> 6
-				lastOffset = offset;
+	/**
+	 * Returns the block of the FAT at the given offset. If the block has been
+	 * changed, the cached block is returned. Otherwise the block is read from
+	 * the disk into a shared buffer which is only valid until the next call.
+	 * The last block read from the disk is kept.
+	 *
+	 * @param deviceConnection The connection to use, or null for the default one.
+	 * @param offset The offset of the block relative to the start of the FAT.
+	 */
+	private ByteBuffer readBlock(UsbDeviceConnection deviceConnection, long offset) throws IOException {
+		ByteBuffer block = dirtyBlocks.get(offset);
+		if (block != null)
+			return block;
+
+		if (offset == readBufferOffset)
+			return readBuffer;
+
+		readBuffer.clear();
+		readBufferOffset = -1;
+		if (deviceConnection != null) {
+			blockDevice.read(deviceConnection, fatOffset[0] + offset, readBuffer);
+		} else {
+			blockDevice.read(fatOffset[0] + offset, readBuffer);
+		}
+		readBufferOffset = offset;
+		return readBuffer;
+	}
+
+	/**
+	 * Sets the entry of the given cluster to a new value. The change is only
+	 * made in memory until {@link #flush()} is called.
+	 */
+	private void setEntry(long cluster, long value) throws IOException {
+		long offset = getBlockOffset(cluster);
+		ByteBuffer block = dirtyBlocks.get(offset);
+		if (block == null) {
+			ByteBuffer original = readBlock(null, offset);
+			block = ByteBuffer.allocate(blockSize);
+			block.order(ByteOrder.LITTLE_ENDIAN);
+			block.put(original.array(), 0, blockSize);
+			dirtyBlocks.put(offset, block);
+		}
+		block.putInt(getOffsetInBlock(cluster), (int) value);
+	}
+
+	/**
+	 * Writes all changed blocks to every copy of the FAT. Adjacent blocks are
+	 * merged, so that every contiguous range of changed blocks is written with
+	 * one command per copy. The first FAT is written completely before its
+	 * mirrors.
+	 * <p>
+	 * Directories call this before they are written, so that their entries
+	 * never reference clusters which are not allocated on the disk. The
+	 * {@link FsInfoStructure} is left to {@link #flush()} and
+	 * {@link #checkpoint()}.
+	 */
+	synchronized void writeDirtyBlocks() throws IOException {
+		if (dirtyBlocks.isEmpty())
+			return;
+
+		CustomLog.d(TAG, "writing " + dirtyBlocks.size() + " dirty blocks to " + fatOffset.length + " fat(s)");
+
+		for (long fat : fatOffset) {
+			long rangeStart = -1;
+			long rangeEnd = -1;
+			for (long offset : dirtyBlocks.keySet()) {
+				if (offset != rangeEnd) {
+					if (rangeStart != -1)
+						writeRange(fat, rangeStart, rangeEnd);
+					rangeStart = offset;
+				}
+				rangeEnd = offset + blockSize;
 			}
+			writeRange(fat, rangeStart, rangeEnd);
+		}
 
-			currentCluster = buffer.getInt((int) offsetInBlock);
-		} while (currentCluster < FAT32_EOF_CLUSTER);
+		dirtyBlocks.clear();
+		flushCount++;
+		// the cached block may be older than what has just been written
+		readBufferOffset = -1;
+	}
 
-		return result.toArray(new Long[0]);
+	private void writeRange(long fat, long start, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+		for (ByteBuffer block : dirtyBlocks.subMap(start, end).values()) {
+			buffer.put(block.array(), 0, blockSize);
+		}
+		buffer.flip();
+		blockDevice.write(fat + start, buffer);
 	}
 
-    Long[] getChain(UsbDeviceConnection usbDeviceConnection, long startCluster) throws IOException {
+	/**
+	 * Starts counting the free clusters in the FAT on the given executor and
+	 * stores the result in the {@link FsInfoStructure}. Every task scans one
+	 * part of the FAT and then submits the next one, so other work of the
+	 * executor is not blocked for the whole scan. Allocations can happen while
+	 * the scan is running, they are taken into account by
+	 * {@link #onClusterChanged(long, int)}.
+	 */
+	private void startFreeClusterScan(final ScheduledExecutorService executor) {
+		scanPosition = 2;
+		scannedFreeClusters = 0;
+		firstFreeCluster = -1;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(blockSize * 32);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
 
-        if(startCluster == 0) {
-            // if the start cluster is 0, we have an empty file
-            return new Long[0];
-        }
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (scanFreeClusters(buffer)) {
+						executor.execute(this);
+					}
+				} catch (IOException | RejectedExecutionException e) {
+					CustomLog.e(TAG, "scanning free clusters failed: " + e.getMessage());
+					synchronized (FAT.this) {
+						scanPosition = -1;
+					}
+				}
+			}
+		});
+	}
 
-        final ArrayList<Long> result = new ArrayList<Long>();
-        final int bufferSize = blockDevice.getBlockSize() * 2;
+	/**
+	 * Scans the part of the FAT the next cluster to scan is in. The part is
+	 * read without holding the lock. If dirty blocks have been written in the
+	 * meantime, it is read again.
+	 *
+	 * @return True if there are clusters left to scan.
+	 */
+	private boolean scanFreeClusters(ByteBuffer buffer) throws IOException {
+		final int bufferSize = buffer.capacity();
+		final long lastCluster = clusterCount + 1;
+
+		while (true) {
+			long offset;
+			long readFlushCount;
+			synchronized (this) {
+				offset = ((scanPosition * 4) / bufferSize) * bufferSize;
+				readFlushCount = flushCount;
+			}
 
-        final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.clear();
+			blockDevice.read(fatOffset[0] + offset, buffer);
+
+			synchronized (this) {
+				if (readFlushCount != flushCount) {
+					continue;
+				}
 
-        long currentCluster = startCluster;
-        long offset;
-        long offsetInBlock;
-        long lastOffset = -1;
+				// changes which are not yet on the disk
+				for (Map.Entry<Long, ByteBuffer> dirty : dirtyBlocks.subMap(offset, offset + bufferSize).entrySet()) {
+					System.arraycopy(dirty.getValue().array(), 0, buffer.array(),
+							(int) (dirty.getKey() - offset), blockSize);
+				}
 
-        do {
-            result.add(currentCluster);
-            offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-            offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
+				// scan up to the end of the buffer, but not past the last cluster
+				long endCluster = Math.min((offset + bufferSize) / 4, lastCluster + 1);
+				for (long cluster = scanPosition; cluster < endCluster; cluster++) {
+					if (buffer.getInt((int) (cluster * 4 - offset)) == 0) {
+						if (firstFreeCluster == -1)
+							firstFreeCluster = cluster;
+						scannedFreeClusters++;
+					}
+				}
+				scanPosition = endCluster;
+
+				if (scanPosition > lastCluster) {
+					CustomLog.i(TAG, "free cluster scan finished, free clusters: " + scannedFreeClusters);
+					fsInfoStructure.setFreeClusterCount(scannedFreeClusters);
+					if (fsInfoStructure.getLastAllocatedClusterHint() == FsInfoStructure.INVALID_VALUE
+							&& firstFreeCluster > 2) {
+						fsInfoStructure.setLastAllocatedClusterHint(firstFreeCluster - 1);
+					}
+					scanPosition = -1;
+					return false;
+				}
+				return true;
+			}
+		}
+	}
 
-            // if we have a new offset we are forced to read again
-            if (lastOffset != offset) {
-                buffer.clear();
-                blockDevice.read(usbDeviceConnection, offset, buffer); // ------> 6
-                lastOffset = offset;
-            }
+	/**
+	 * Keeps the result of a running free cluster scan correct if a cluster,
+	 * which has already been scanned, is allocated or freed.
+	 *
+	 * @param cluster The cluster which has been changed.
+	 * @param delta -1 if the cluster has been allocated, 1 if it has been freed.
+	 */
+	private void onClusterChanged(long cluster, int delta) {
+		if (scanPosition != -1 && cluster < scanPosition) {
+			scannedFreeClusters += delta;
+		}
+	}
 
-            currentCluster = buffer.getInt((int) offsetInBlock);
-        } while (currentCluster < FAT32_EOF_CLUSTER);
+	/**
+	 * Writes all changes which are only cached in memory to the disk. The FAT
+	 * is written before the {@link FsInfoStructure}.
+	 */
+	synchronized void flush() throws IOException {
+		writeDirtyBlocks();
+		fsInfoStructure.write();
+	}
 
-        return result.toArray(new Long[0]);
-    }
+	/**
+	 * Writes all changes if too many blocks are dirty or the
+	 * {@link FsInfoStructure} is due to be written, see
+	 * {@link FsInfoStructure#isCheckpointDue()}.
+	 */
+	synchronized void checkpoint() throws IOException {
+		if (dirtyBlocks.size() > MAX_DIRTY_BLOCKS || fsInfoStructure.isCheckpointDue()) {
+			flush();
+		}
+	}
 
-	Long[] alloc(Long[] chain, int numberOfClusters) throws IOException {
-        
-        // save original number of clusters for fs i structure
-        final int originalNumberOfClusters = numberOfClusters;
-        
-		final ArrayList<Long> result = new ArrayList<Long>(chain.length + numberOfClusters);
-		result.addAll(Arrays.asList(chain));
+	/**
+	 * Returns the cluster which follows the given cluster in its chain.
+	 * Consecutive calls for clusters in the same block of the FAT do not
+	 * access the disk again.
+	 *
+	 * @param usbDeviceConnection The connection to use, or null for the default one.
+	 * @param cluster The current cluster.
+	 * @return The next cluster, or 0 if the given cluster is the last one.
+	 */
+	synchronized long getNextCluster(UsbDeviceConnection usbDeviceConnection, long cluster) throws IOException {
+		ByteBuffer buffer = readBlock(usbDeviceConnection, getBlockOffset(cluster));
+		long next = buffer.getInt(getOffsetInBlock(cluster)) & 0x0FFFFFFF;
+		if (next >= FAT32_EOF_CLUSTER || next < 2) {
+			return 0;
+		}
+		return next;
+	}
 
-		final int bufferSize = blockDevice.getBlockSize() * 2;
-		final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	/**
+	 * @return The number of clusters in the data area.
+	 */
+	long getClusterCount() {
+		return clusterCount;
+	}
 
-		final long cluster;
-		if (chain.length != 0)
-			cluster = chain[chain.length - 1];
-		else
-			cluster = -1;
+	/**
+	 * @return The number of free clusters, or -1 if it is not known yet.
+	 */
+	synchronized long getFreeClusterCount() {
+		long freeClusterCount = fsInfoStructure.getFreeClusterCount();
+		if (freeClusterCount == FsInfoStructure.INVALID_VALUE || freeClusterCount < 0
+				|| freeClusterCount > clusterCount) {
+			return -1;
+		}
+		return freeClusterCount;
+	}
 
-		long lastAllocated = fsInfoStructure.getLastAllocatedClusterHint();
-		if (lastAllocated == FsInfoStructure.INVALID_VALUE) {
-			// we have to start from the beginning because there is no hint!
-			lastAllocated = 2;
+	/**
+	 * Allocates new clusters and appends them to a chain. The FAT is not
+	 * changed if there are not enough free clusters.
+	 *
+	 * @param lastCluster The last cluster of the chain, or 0 for a new chain.
+	 * @param numberOfClusters The number of clusters to allocate.
+	 * @return The newly allocated clusters in chain order.
+	 * @throws IOException If there are not enough free clusters.
+	 */
+	synchronized long[] alloc(long lastCluster, int numberOfClusters) throws IOException {
+		long freeClusterCount = getFreeClusterCount();
+		if (freeClusterCount != -1 && freeClusterCount < numberOfClusters) {
+			throw new IOException("No space left on device, need " + numberOfClusters
+					+ " clusters, " + freeClusterCount + " free");
 		}
 
-		long currentCluster = lastAllocated;
+		final long[] result = new long[numberOfClusters];
+		final long maxCluster = clusterCount + 1;
+
+		long currentCluster;
+		if (lastCluster != 0) {
+			// try to continue right after the end of the chain to keep it contiguous
+			currentCluster = lastCluster;
+		} else {
+			currentCluster = fsInfoStructure.getLastAllocatedClusterHint();
+			if (currentCluster == FsInfoStructure.INVALID_VALUE || currentCluster < 2
+					|| currentCluster > maxCluster) {
+				// we have to start from the beginning because there is no hint!
+				currentCluster = 2;
+			}
+		}
 
 		long offset;
-		long offsetInBlock;
 		long lastOffset = -1;
+		ByteBuffer buffer = null;
+		int found = 0;
+		long scanned = 0;
 
 		// first we search all needed cluster and save them
-		while (numberOfClusters > 0) {
+		while (found < numberOfClusters) {
+			if (scanned++ >= clusterCount) {
+				throw new IOException("No space left on device, need " + numberOfClusters
+						+ " clusters, " + found + " free");
+			}
+
 			currentCluster++;
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
+			if (currentCluster > maxCluster) {
+				// wrap around to the first cluster of the data area
+				currentCluster = 2;
+			}
+			offset = getBlockOffset(currentCluster);
 
 			// if we have a new offset we are forced to read again
 			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.read(offset, buffer);
+				buffer = readBlock(null, offset);
 				lastOffset = offset;
 			}
 
-			if (buffer.getInt((int) offsetInBlock) == 0) {
-				result.add(currentCluster);
-				numberOfClusters--;
+			if (buffer.getInt(getOffsetInBlock(currentCluster)) == 0) {
+				result[found++] = currentCluster;
 			}
 		}
 
-		// TODO we should write in in all FATs when they are mirrored!
-		if (cluster != -1) {
-			offset = ((fatOffset[0] + cluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + cluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
-			}
-			buffer.putInt((int) offsetInBlock, (int) result.get(chain.length).longValue());
+		for (long cluster : result) {
+			onClusterChanged(cluster, -1);
 		}
 
-		// write the new allocated clusters now
-		for (int i = chain.length; i < result.size() - 1; i++) {
-			currentCluster = result.get(i);
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.write(lastOffset, buffer);
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
-			}
+		// link the last cluster of the old chain to the new clusters
+		if (lastCluster != 0) {
+			setEntry(lastCluster, result[0]);
+		}
 
-			buffer.putInt((int) offsetInBlock, (int) result.get(i + 1).longValue());
+		// link the new allocated clusters now
+		for (int i = 0; i < result.length - 1; i++) {
+			setEntry(result[i], result[i + 1]);
 		}
 
 		// write end mark to last newly allocated cluster now
-		currentCluster = result.get(result.size() - 1);
-		offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-		offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-		// if we have a new offset we are forced to read again
-		if (lastOffset != offset) {
-			buffer.clear();
-			blockDevice.write(lastOffset, buffer);
-			buffer.clear();
-			blockDevice.read(offset, buffer);
-			lastOffset = offset;
-		}
-		buffer.putInt((int) offsetInBlock, FAT32_EOF_CLUSTER);
-		buffer.clear();
-		blockDevice.write(offset, buffer);
+		setEntry(currentCluster, FAT32_EOF_CLUSTER);
 
 		// refresh the i structure
 		fsInfoStructure.setLastAllocatedClusterHint(currentCluster);
-		fsInfoStructure.decreaseClusterCount(originalNumberOfClusters);
-		fsInfoStructure.write();
+		fsInfoStructure.decreaseClusterCount(numberOfClusters);
+
+		checkpoint();
 
 		CustomLog.i(TAG, "allocating clusters finished");
 
-		return result.toArray(new Long[0]);
+		return result;
 	}
 
-	Long[] free(Long[] chain, int numberOfClusters) throws IOException {
-		final int offsetInChain = chain.length - numberOfClusters;
-
-		final int bufferSize = blockDevice.getBlockSize() * 2;
-		final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-		if (offsetInChain < 0)
-			throw new IllegalStateException(
-					"trying to remove more clusters in chain than currently exist!");
-
-		long currentCluster;
-
-		long offset;
-		long offsetInBlock;
-		long lastOffset = -1;
+	/**
+	 * Frees the end of a chain, starting at the given cluster.
+	 *
+	 * @param lastCluster The cluster which becomes the new end of the chain, or
+	 *                    0 if the whole chain is freed.
+	 * @param firstCluster The first cluster to free.
+	 * @return The number of freed clusters.
+	 */
+	synchronized int free(long lastCluster, long firstCluster) throws IOException {
+		int numberOfClusters = 0;
+		long cluster = firstCluster;
 
 		// free all unneeded clusters
-		for (int i = offsetInChain; i < chain.length; i++) {
-			currentCluster = chain[i];
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				if (lastOffset != -1) {
-					buffer.clear();
-					blockDevice.write(lastOffset, buffer);
-				}
-
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
-			}
-
-			buffer.putInt((int) offsetInBlock, 0);
+		while (cluster != 0) {
+			if (numberOfClusters > clusterCount)
+				throw new IOException("cluster chain contains a loop");
+
+			long next = getNextCluster(null, cluster);
+			setEntry(cluster, 0);
+			onClusterChanged(cluster, 1);
+			numberOfClusters++;
+			cluster = next;
 		}
 
-		// TODO we should write in in all FATs when they are mirrored!
-		if (offsetInChain > 0) {
+		if (lastCluster != 0) {
 			// write the end mark to last cluster in the new chain
-			currentCluster = chain[offsetInChain - 1];
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.write(lastOffset, buffer);
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
-			}
-			buffer.putInt((int) offsetInBlock, FAT32_EOF_CLUSTER);
-			buffer.clear();
-			blockDevice.write(offset, buffer);
-		} else {
-			buffer.clear();
-			blockDevice.write(lastOffset, buffer);
+			setEntry(lastCluster, FAT32_EOF_CLUSTER);
 		}
 
 		CustomLog.i(TAG, "freed " + numberOfClusters + " clusters");
 
 		// increase the free cluster count by decreasing with a negative value
 		fsInfoStructure.decreaseClusterCount(-numberOfClusters);
-		fsInfoStructure.write();
 
-		return Arrays.copyOfRange(chain, 0, offsetInChain);
+		checkpoint();
+
+		return numberOfClusters;
 	}
 }
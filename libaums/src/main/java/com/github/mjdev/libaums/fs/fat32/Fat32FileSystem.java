@@ -21,6 +21,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 import com.github.mjdev.libaums.fs.FileSystem;
@@ -42,6 +43,7 @@ public class Fat32FileSystem implements FileSystem {
 	private FAT fat;
 	private FsInfoStructure fsInfoStructure;
 	private FatDirectory rootDirectory;
+	private Fat32MountOptions mountOptions = new Fat32MountOptions();
 
 	/**
 	 * This method constructs a FAT32 file system for the given block device.
@@ -61,7 +63,7 @@ public class Fat32FileSystem implements FileSystem {
 		fsInfoStructure = FsInfoStructure.read(blockDevice, bootSector.getFsInfoStartSector()
 				* bootSector.getBytesPerSector());
 		fat = new FAT(blockDevice, bootSector, fsInfoStructure);
-		rootDirectory = FatDirectory.readRoot(blockDevice, fat, bootSector);
+		rootDirectory = FatDirectory.readRoot(blockDevice, fat, bootSector, mountOptions);
 
 		Log.d(TAG, bootSector.toString());
 	}
@@ -81,6 +83,30 @@ public class Fat32FileSystem implements FileSystem {
 		return new Fat32FileSystem(blockDevice);
 	}
 
+	/**
+	 * Returns the options the file system is mounted with. The returned object
+	 * can be changed, changes take effect immediately.
+	 *
+	 * @return The mount options of this file system.
+	 */
+	public Fat32MountOptions getMountOptions() {
+		return mountOptions;
+	}
+
+	/**
+	 * Sets the executor for background work of the file system, usually the
+	 * I/O worker of the device. If the free cluster count on the disk is
+	 * invalid, it is computed on this executor. Changes to the FAT are also
+	 * written from there periodically. Until an executor is set, the free
+	 * cluster count may be unknown.
+	 *
+	 * @param executor The executor, see
+	 *                 {@link com.github.mjdev.libaums.UsbMassStorageDevice#getIoExecutor()}.
+	 */
+	public void setIoExecutor(ScheduledExecutorService executor) {
+		fat.setExecutor(executor);
+	}
+
 	@Override
 	public UsbFile getRootDirectory() {
 		return rootDirectory;
@@ -114,4 +140,9 @@ public class Fat32FileSystem implements FileSystem {
 	public int getChunkSize() {
 		return bootSector.getBytesPerCluster();
 	}
+
+	@Override
+	public void flush() throws IOException {
+		fat.flush();
+	}
 }
@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+/**
+ * This class holds the options a {@link Fat32FileSystem} is mounted with. The
+ * options control when timestamps of files are updated and when these updates
+ * are written to the disk. Changes take effect immediately for all files of
+ * the file system.
+ * <p>
+ * Timestamp updates are always collected in memory and written at most once
+ * when a file is flushed or closed.
+ *
+ * @author mjahnen
+ *
+ */
+public class Fat32MountOptions {
+
+	public enum AccessTimeMode {
+		/**
+		 * Update the last accessed date on every read.
+		 */
+		STRICT,
+		/**
+		 * Only update the last accessed date if it differs from the current
+		 * date. Since FAT32 only stores the date, no information is lost.
+		 */
+		RELATIME,
+		/**
+		 * Never update the last accessed date. Files which are only read never
+		 * cause any writes to the disk.
+		 */
+		NOATIME
+	}
+
+	private AccessTimeMode accessTimeMode = AccessTimeMode.RELATIME;
+	private boolean lazyTime;
+
+	public AccessTimeMode getAccessTimeMode() {
+		return accessTimeMode;
+	}
+
+	public void setAccessTimeMode(AccessTimeMode accessTimeMode) {
+		this.accessTimeMode = accessTimeMode;
+	}
+
+	/**
+	 * @return True if changed timestamps are only written when the file is
+	 *         closed, or when the directory entry has to be written anyway.
+	 */
+	public boolean isLazyTime() {
+		return lazyTime;
+	}
+
+	/**
+	 * If set, {@link FatFile#flush()} does not write the directory entry if
+	 * only timestamps have changed. The timestamps are written on
+	 * {@link FatFile#close()}.
+	 */
+	public void setLazyTime(boolean lazyTime) {
+		this.lazyTime = lazyTime;
+	}
+
+	@Override
+	public String toString() {
+		return "Fat32MountOptions{" +
+				"accessTimeMode=" + accessTimeMode +
+				", lazyTime=" + lazyTime +
+				'}';
+	}
+}
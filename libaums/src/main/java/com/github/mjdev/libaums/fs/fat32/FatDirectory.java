@@ -22,9 +22,13 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import android.hardware.usb.UsbDeviceConnection;
 import android.util.Log;
@@ -32,6 +36,7 @@ import android.util.Log;
 import com.github.mjdev.libaums.CustomLog;
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 import com.github.mjdev.libaums.fs.AbstractUsbFile;
+import com.github.mjdev.libaums.fs.ListFilesTask;
 import com.github.mjdev.libaums.fs.UsbFile;
 
 /**
@@ -49,6 +54,7 @@ public class FatDirectory extends AbstractUsbFile {
 	private BlockDeviceDriver blockDevice;
 	private FAT fat;
 	private Fat32BootSector bootSector;
+	private Fat32MountOptions mountOptions;
 
 	private String volumeLabel;
 	private boolean hasBeenInited;
@@ -62,29 +68,32 @@ public class FatDirectory extends AbstractUsbFile {
 	/**
 	 * Constructs a new FatDirectory with the given information.
 	 */
-	private FatDirectory(BlockDeviceDriver blockDevice, FAT fat, Fat32BootSector bootSector, FatDirectory parent) {
+	private FatDirectory(BlockDeviceDriver blockDevice, FAT fat, Fat32BootSector bootSector,
+						 Fat32MountOptions mountOptions, FatDirectory parent) {
 		this.blockDevice = blockDevice;
 		this.fat = fat;
 		this.bootSector = bootSector;
+		this.mountOptions = mountOptions;
 		this.parent = parent;
 		lfnMap = new HashMap<String, FatLfnDirectoryEntry>();
 		shortNameMap = new HashMap<ShortName, FatDirectoryEntry>();
 	}
 
 	static FatDirectory create(FatLfnDirectoryEntry entry, BlockDeviceDriver blockDevice, FAT fat, Fat32BootSector bootSector, FatDirectory parent) {
-		FatDirectory result = new FatDirectory(blockDevice, fat, bootSector, parent);
+		FatDirectory result = new FatDirectory(blockDevice, fat, bootSector, parent.mountOptions, parent);
 		result.entry = entry;
 		return result;
 	}
 
-	static FatDirectory readRoot(BlockDeviceDriver blockDevice, FAT fat, Fat32BootSector bootSector) throws IOException {
-		FatDirectory result = new FatDirectory(blockDevice, fat, bootSector, null);
+	static FatDirectory readRoot(BlockDeviceDriver blockDevice, FAT fat, Fat32BootSector bootSector,
+								 Fat32MountOptions mountOptions) throws IOException {
+		FatDirectory result = new FatDirectory(blockDevice, fat, bootSector, mountOptions, null);
 		result.chain = new ClusterChain(bootSector.getRootDirStartCluster(), blockDevice, fat, bootSector);
 		result.init();
 		return result;
 	}
 
-	private void init() throws IOException {
+	private synchronized void init() throws IOException {
 		if (chain == null) {
 			chain = new ClusterChain(entry.getStartCluster(), blockDevice, fat, bootSector); // ------> 4
 		}
@@ -100,7 +109,7 @@ public class FatDirectory extends AbstractUsbFile {
 		hasBeenInited = true;
 	}
 
-	private void init(UsbDeviceConnection deviceConnection) throws IOException {
+	private synchronized void init(UsbDeviceConnection deviceConnection) throws IOException {
 		if (chain == null) {
 			chain = new ClusterChain(deviceConnection, entry.getStartCluster(), blockDevice, fat, bootSector); // ------> 4
 		}
@@ -122,73 +131,22 @@ public class FatDirectory extends AbstractUsbFile {
 	private void readEntries() throws IOException {
 		ByteBuffer buffer = ByteBuffer.allocate((int) chain.getLength());
 		chain.read(0, buffer);
-
-		ArrayList<FatDirectoryEntry> list = new ArrayList<FatDirectoryEntry>();
 		buffer.flip();
-		while (buffer.remaining() > 0) {
-			FatDirectoryEntry e = FatDirectoryEntry.read(buffer);
-			if (e == null) {
-				break;
-			}
-
-			if (e.isLfnEntry()) {
-				list.add(e);
-				continue;
-			}
-
-			if (e.isVolumeLabel()) {
-				if (!isRoot()) {
-					CustomLog.w(TAG, "volume label in non root dir!");
-				}
-				volumeLabel = e.getVolumeLabel();
-				CustomLog.w(TAG, "volume label: " + volumeLabel);
-				continue;
-			}
-
-			if (e.isDeleted()) {
-				list.clear();
-				continue;
-			}
-
-			FatLfnDirectoryEntry lfnEntry = FatLfnDirectoryEntry.read(e, list);
-			addEntry(lfnEntry, e);
-			list.clear();
-		}
+		addEntries(buffer);
 	}
 
 	private void readEntries(UsbDeviceConnection deviceConnection) throws IOException {
 		ByteBuffer buffer = ByteBuffer.allocate((int) chain.getLength());
 		chain.read(deviceConnection, 0, buffer);
-		ArrayList<FatDirectoryEntry> list = new ArrayList<FatDirectoryEntry>();
 		buffer.flip();
-		while (buffer.remaining() > 0) {
-			FatDirectoryEntry e = FatDirectoryEntry.read(buffer);
-			if (e == null) {
-				break;
-			}
-
-			if (e.isLfnEntry()) {
-				list.add(e);
-				continue;
-			}
-
-			if (e.isVolumeLabel()) {
-				if (!isRoot()) {
-					CustomLog.w(TAG, "volume label in non root dir!");
-				}
-				volumeLabel = e.getVolumeLabel();
-				CustomLog.w(TAG, "volume label: " + volumeLabel);
-				continue;
-			}
-
-			if (e.isDeleted()) {
-				list.clear();
-				continue;
-			}
+		addEntries(buffer);
+	}
 
-			FatLfnDirectoryEntry lfnEntry = FatLfnDirectoryEntry.read(e, list);
-			addEntry(lfnEntry, e);
-			list.clear();
+	private void addEntries(ByteBuffer buffer) {
+		List<FatLfnDirectoryEntry> read = new ArrayList<FatLfnDirectoryEntry>();
+		parseEntries(buffer, new ArrayList<FatDirectoryEntry>(), read);
+		for (FatLfnDirectoryEntry lfnEntry : read) {
+			addEntry(lfnEntry, lfnEntry.getActualEntry());
 		}
 	}
 
@@ -220,7 +178,7 @@ public class FatDirectory extends AbstractUsbFile {
 	/**
 	 * Writes the entries to the disk.
 	 */
-	void write() throws IOException {
+	synchronized void write() throws IOException {
 		init();
 		final boolean writeVolumeLabel = isRoot() && volumeLabel != null;
 		// first lookup the total entries needed
@@ -251,10 +209,12 @@ public class FatDirectory extends AbstractUsbFile {
 		}
 
 		buffer.flip();
+		// the clusters of the entries have to be allocated on disk first
+		fat.writeDirtyBlocks();
 		chain.write(0, buffer);
 	}
 
-	void write(UsbDeviceConnection usbDeviceConnection) throws IOException {
+	synchronized void write(UsbDeviceConnection usbDeviceConnection) throws IOException {
 		init();
 		final boolean writeVolumeLabel = isRoot() && volumeLabel != null;
 		// first lookup the total entries needed
@@ -285,6 +245,8 @@ public class FatDirectory extends AbstractUsbFile {
 		}
 
 		buffer.flip();
+		// the clusters of the entries have to be allocated on disk first
+		fat.writeDirtyBlocks();
 		chain.write(usbDeviceConnection, 0, buffer);
 	}
 
@@ -293,10 +255,22 @@ public class FatDirectory extends AbstractUsbFile {
 		return entry == null;
 	}
 
+	/**
+	 * @return The first cluster of the directory on the disk. Can be used to
+	 *         read directories in the order they are stored.
+	 */
+	public long getStartCluster() {
+		return isRoot() ? bootSector.getRootDirStartCluster() : entry.getStartCluster();
+	}
+
 	String getVolumeLabel() {
 		return volumeLabel;
 	}
 
+	Fat32MountOptions getMountOptions() {
+		return mountOptions;
+	}
+
 	@Override
 	public FatFile createFile(String name) throws IOException {
 		if (lfnMap.containsKey(name.toLowerCase(Locale.getDefault())))
@@ -308,7 +282,7 @@ public class FatDirectory extends AbstractUsbFile {
 
 		FatLfnDirectoryEntry entry = FatLfnDirectoryEntry.createNew(name, shortName);
 		// alloc completely new chain
-		long newStartCluster = fat.alloc(new Long[0], 1)[0];
+		long newStartCluster = fat.alloc(0, 1)[0];
 		entry.setStartCluster(newStartCluster);
 
 		CustomLog.d(TAG, "adding entry: " + entry + " with short name: " + shortName);
@@ -331,7 +305,7 @@ public class FatDirectory extends AbstractUsbFile {
 		FatLfnDirectoryEntry entry = FatLfnDirectoryEntry.createNew(name, shortName);
 		entry.setDirectory();
 		// alloc completely new chain
-		long newStartCluster = fat.alloc(new Long[0], 1)[0];
+		long newStartCluster = fat.alloc(0, 1)[0];
 		entry.setStartCluster(newStartCluster);
 
 		CustomLog.d(TAG, "adding entry: " + entry + " with short name: " + shortName);
@@ -353,7 +327,7 @@ public class FatDirectory extends AbstractUsbFile {
 
 		FatLfnDirectoryEntry dotDotEntry = FatLfnDirectoryEntry.createNew(null, new ShortName("..", ""));
 		dotDotEntry.setDirectory();
-		dotDotEntry.setStartCluster(isRoot() ? 0 : entry.getStartCluster());
+		dotDotEntry.setStartCluster(isRoot() ? 0 : getStartCluster());
 		FatLfnDirectoryEntry.copyDateTime(entry, dotDotEntry);
 		result.addEntry(dotDotEntry, dotDotEntry.getActualEntry());
 
@@ -372,6 +346,11 @@ public class FatDirectory extends AbstractUsbFile {
 		throw new UnsupportedOperationException("This is a directory!");
 	}
 
+	@Override
+	public void preallocate(long length) {
+		throw new UnsupportedOperationException("This is a directory!");
+	}
+
 	@Override
 	public boolean isDirectory() {
 		return true;
@@ -452,29 +431,16 @@ public class FatDirectory extends AbstractUsbFile {
 	@Override
 	public UsbFile[] listFiles() throws IOException {
         init(); // ------> 3
-        List<UsbFile> list = new ArrayList<UsbFile>(entries.size());
-        for (int i = 0; i < entries.size(); i++) {
-            FatLfnDirectoryEntry entry = entries.get(i);
-            String name = entry.getName();
-            if (name.equals(".") || name.equals(".."))
-                continue;
-
-            if (entry.isDirectory()) {
-                list.add(FatDirectory.create(entry, blockDevice, fat, bootSector, this));
-            } else {
-                list.add(FatFile.create(entry, blockDevice, fat, bootSector, this));
-            }
-        }
-
-        UsbFile[] array = new UsbFile[list.size()];
-        array = list.toArray(array);
-
-        return array;
+        return createFiles(entries);
 	}
 
 	@Override
 	public UsbFile[] listFiles(UsbDeviceConnection deviceConnection) throws IOException {
 		init(deviceConnection); // ------> 3
+		return createFiles(entries);
+	}
+
+	private UsbFile[] createFiles(List<FatLfnDirectoryEntry> entries) throws IOException {
 		List<UsbFile> list = new ArrayList<UsbFile>(entries.size());
 		for (int i = 0; i < entries.size(); i++) {
 			FatLfnDirectoryEntry entry = entries.get(i);
@@ -495,6 +461,112 @@ public class FatDirectory extends AbstractUsbFile {
 		return array;
 	}
 
+	/**
+	 * Reads the directory one cluster after the other and delivers the items
+	 * of every cluster as soon as it has been read. If the entries have been
+	 * read before, they are delivered at once.
+	 */
+	@Override
+	public ListFilesTask listFilesAsync(final UsbDeviceConnection deviceConnection, Executor executor,
+										ListFilesTask.Callback callback) {
+		ListFilesTask task = new ListFilesTask(callback) {
+			@Override
+			protected void list() throws IOException {
+				readEntriesInBatches(deviceConnection, this);
+			}
+		};
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Reads the entries like {@link #init(UsbDeviceConnection)}, but passes
+	 * them to the task after every cluster. The lock is held while reading, so
+	 * that the directory cannot be read or changed meanwhile. The entries are
+	 * only kept if the whole directory has been read.
+	 */
+	private synchronized void readEntriesInBatches(UsbDeviceConnection deviceConnection, ListFilesTask task)
+			throws IOException {
+		if (chain == null) {
+			chain = deviceConnection != null ?
+					new ClusterChain(deviceConnection, entry.getStartCluster(), blockDevice, fat, bootSector) :
+					new ClusterChain(entry.getStartCluster(), blockDevice, fat, bootSector);
+		}
+		if (hasBeenInited) {
+			task.deliver(createFiles(entries));
+			return;
+		}
+
+		int clusterSize = bootSector.getBytesPerCluster();
+		long length = chain.getLength();
+		ByteBuffer buffer = ByteBuffer.allocate(clusterSize);
+		List<FatDirectoryEntry> lfnParts = new ArrayList<FatDirectoryEntry>();
+		List<FatLfnDirectoryEntry> read = new ArrayList<FatLfnDirectoryEntry>();
+		boolean end = false;
+		for (long offset = 0; offset < length && !end; offset += clusterSize) {
+			if (task.isCancelled())
+				return;
+
+			buffer.clear();
+			if (deviceConnection != null)
+				chain.read(deviceConnection, offset, buffer);
+			else
+				chain.read(offset, buffer);
+			buffer.flip();
+
+			int start = read.size();
+			end = parseEntries(buffer, lfnParts, read);
+			task.deliver(createFiles(read.subList(start, read.size())));
+		}
+
+		if (entries == null)
+			entries = new ArrayList<FatLfnDirectoryEntry>();
+		for (FatLfnDirectoryEntry lfnEntry : read) {
+			addEntry(lfnEntry, lfnEntry.getActualEntry());
+		}
+		hasBeenInited = true;
+	}
+
+	/**
+	 * Parses the entries of a part of the directory.
+	 *
+	 * @param lfnParts The long file name entries of an item which started in
+	 *                 a previous part.
+	 * @param result The list the items are added to.
+	 * @return True if the end of the directory has been reached.
+	 */
+	private boolean parseEntries(ByteBuffer buffer, List<FatDirectoryEntry> lfnParts,
+								 List<FatLfnDirectoryEntry> result) {
+		while (buffer.remaining() > 0) {
+			FatDirectoryEntry e = FatDirectoryEntry.read(buffer);
+			if (e == null) {
+				return true;
+			}
+
+			if (e.isLfnEntry()) {
+				lfnParts.add(e);
+				continue;
+			}
+
+			if (e.isVolumeLabel()) {
+				if (!isRoot()) {
+					CustomLog.w(TAG, "volume label in non root dir!");
+				}
+				volumeLabel = e.getVolumeLabel();
+				continue;
+			}
+
+			if (e.isDeleted()) {
+				lfnParts.clear();
+				continue;
+			}
+
+			result.add(FatLfnDirectoryEntry.read(e, lfnParts));
+			lfnParts.clear();
+		}
+		return false;
+	}
+
 	@Override
 	public void read(long offset, ByteBuffer destination) throws IOException {
 		throw new UnsupportedOperationException("This is a directory!");
@@ -619,6 +691,171 @@ public class FatDirectory extends AbstractUsbFile {
 		destinationDir.write();
 	}
 
+	@Override
+	public void moveFiles(UsbFile[] files) throws IOException {
+		moveFiles(null, files);
+	}
+
+	/**
+	 * Moves the items into this directory. The entries are moved in memory
+	 * first, afterwards every source directory and this directory are written
+	 * once. All items are checked before anything is changed.
+	 * <p>
+	 * Items whose short name is already used in this directory get a new one,
+	 * the ".." entry of moved directories is changed to point to this
+	 * directory.
+	 */
+	@Override
+	public void moveFiles(UsbDeviceConnection deviceConnection, UsbFile[] files) throws IOException {
+		init(this, deviceConnection);
+
+		FatLfnDirectoryEntry[] movedEntries = new FatLfnDirectoryEntry[files.length];
+		FatDirectory[] sources = new FatDirectory[files.length];
+		Set<String> names = new HashSet<String>();
+		for (int i = 0; i < files.length; i++) {
+			UsbFile file = files[i];
+			if (file instanceof FatFile) {
+				movedEntries[i] = ((FatFile) file).getEntry();
+				sources[i] = ((FatFile) file).getParentDirectory();
+			} else if (file instanceof FatDirectory) {
+				FatDirectory directory = (FatDirectory) file;
+				if (directory.isRoot())
+					throw new IllegalStateException("cannot move root dir!");
+				if (isInside(directory, deviceConnection))
+					throw new IllegalStateException("cannot move dir into itself!");
+				movedEntries[i] = directory.entry;
+				sources[i] = directory.parent;
+			} else {
+				throw new IllegalStateException("cannot move between different filesystems!");
+			}
+			// the entries only reference clusters of the FAT they come from
+			if (sources[i].fat != fat)
+				throw new IllegalStateException("cannot move between different devices or partitions!");
+
+			String name = movedEntries[i].getName().toLowerCase(Locale.getDefault());
+			if ((!isSameDirectory(sources[i]) && lfnMap.containsKey(name)) || !names.add(name))
+				throw new IOException("item already exists in destination!");
+		}
+
+		Set<FatDirectory> changed = new LinkedHashSet<FatDirectory>();
+		for (int i = 0; i < files.length; i++) {
+			FatDirectory source = sources[i];
+			if (isSameDirectory(source))
+				continue;
+
+			init(source, deviceConnection);
+			FatLfnDirectoryEntry movedEntry = movedEntries[i];
+			source.removeEntry(movedEntry);
+			if (ShortNameGenerator.containShortName(shortNameMap.keySet(),
+					movedEntry.getActualEntry().getShortName())) {
+				String name = movedEntry.getName();
+				movedEntry.setName(name, ShortNameGenerator.generateShortName(name, shortNameMap.keySet()));
+			}
+			addEntry(movedEntry, movedEntry.getActualEntry());
+			changed.add(source);
+
+			if (files[i] instanceof FatFile) {
+				((FatFile) files[i]).setParentDirectory(this);
+			} else {
+				FatDirectory directory = (FatDirectory) files[i];
+				directory.parent = this;
+				init(directory, deviceConnection);
+				for (FatLfnDirectoryEntry child : directory.entries) {
+					if ("..".equals(child.getActualEntry().getShortName().getString())) {
+						// the root directory is referenced as cluster 0
+						child.setStartCluster(isRoot() ? 0 : entry.getStartCluster());
+						changed.add(directory);
+						break;
+					}
+				}
+			}
+		}
+
+		if (changed.isEmpty())
+			return;
+
+		changed.add(this);
+		for (FatDirectory directory : changed) {
+			if (deviceConnection != null)
+				directory.write(deviceConnection);
+			else
+				directory.write();
+		}
+	}
+
+	/**
+	 * Directories are compared by their first cluster, because listing a
+	 * directory creates new objects for its items every time.
+	 */
+	private boolean isSameDirectory(FatDirectory directory) {
+		return directory.getStartCluster() == getStartCluster();
+	}
+
+	/**
+	 * Checks if this directory is the given directory or lies below it. The
+	 * ".." entries are followed on the disk, because the parents of the
+	 * objects in memory may be outdated after a move.
+	 * <p>
+	 * Older versions wrote the cluster of a subdirectory itself into its ".."
+	 * entry, if its parent was not the root. The parents in memory are used
+	 * for such directories.
+	 */
+	private boolean isInside(FatDirectory directory, UsbDeviceConnection deviceConnection) throws IOException {
+		long rootCluster = bootSector.getRootDirStartCluster();
+		long cluster = getStartCluster();
+		Set<Long> visited = new HashSet<Long>();
+		while (cluster != rootCluster) {
+			if (cluster == directory.getStartCluster())
+				return true;
+			if (!visited.add(cluster))
+				throw new IOException("directory tree contains a loop!");
+			long parentCluster = readParentCluster(cluster, deviceConnection);
+			if (parentCluster == cluster)
+				return isInMemoryInside(directory);
+			// the root directory is referenced as cluster 0
+			cluster = parentCluster == 0 ? rootCluster : parentCluster;
+		}
+		return false;
+	}
+
+	private boolean isInMemoryInside(FatDirectory directory) {
+		for (FatDirectory current = this; current != null; current = current.parent) {
+			if (current.isSameDirectory(directory))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the ".." entry of the directory starting at the given cluster.
+	 * It is one of the first two entries, so only the first sector is read.
+	 */
+	private long readParentCluster(long cluster, UsbDeviceConnection deviceConnection) throws IOException {
+		ClusterChain chain = deviceConnection != null ?
+				new ClusterChain(deviceConnection, cluster, blockDevice, fat, bootSector) :
+				new ClusterChain(cluster, blockDevice, fat, bootSector);
+		ByteBuffer buffer = ByteBuffer.allocate(bootSector.getBytesPerSector());
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (deviceConnection != null)
+			chain.read(deviceConnection, 0, buffer);
+		else
+			chain.read(0, buffer);
+		buffer.flip();
+		while (buffer.remaining() > 0) {
+			FatDirectoryEntry e = FatDirectoryEntry.read(buffer);
+			if (e != null && !e.isLfnEntry() && "..".equals(e.getShortName().getString()))
+				return e.getStartCluster();
+		}
+		throw new IOException("directory has no .. entry!");
+	}
+
+	private static void init(FatDirectory directory, UsbDeviceConnection deviceConnection) throws IOException {
+		if (deviceConnection != null)
+			directory.init(deviceConnection);
+		else
+			directory.init();
+	}
+
 	@Override
 	public void delete() throws IOException {
 		if (isRoot())
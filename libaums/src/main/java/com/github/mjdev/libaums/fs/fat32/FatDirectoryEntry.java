@@ -212,6 +212,20 @@ class FatDirectoryEntry {
 		setUnsignedInt16(LAST_ACCESSED_DATE_OFF, encodeDate(dateTime));
 	}
 
+	/**
+	 * Sets the last accessed date only if it differs from the stored one.
+	 *
+	 * @return True if the entry has been changed.
+	 */
+	boolean updateLastAccessedDateTime(long dateTime) {
+		int date = encodeDate(dateTime);
+		if (getUnsignedInt16(LAST_ACCESSED_DATE_OFF) == date)
+			return false;
+
+		setUnsignedInt16(LAST_ACCESSED_DATE_OFF, date);
+		return true;
+	}
+
 	ShortName getShortName() {
 		if (data.get(0) == 0)
 			return null;
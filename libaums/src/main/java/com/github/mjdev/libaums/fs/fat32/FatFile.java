@@ -21,12 +21,25 @@ import android.hardware.usb.UsbDeviceConnection;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
+import com.github.mjdev.libaums.fs.ListFilesTask;
 import com.github.mjdev.libaums.fs.UsbFile;
 
 public class FatFile implements UsbFile {
 
+	/**
+	 * Lower bound for the space reserved ahead of the write pointer when a
+	 * file grows.
+	 */
+	private static final long MIN_GROWTH = 1024 * 1024;
+	/**
+	 * Upper bound for the space reserved ahead of the write pointer when a
+	 * file grows.
+	 */
+	private static final long MAX_GROWTH = 32 * 1024 * 1024;
+
 	private BlockDeviceDriver blockDevice;
 	private FAT fat;
 	private Fat32BootSector bootSector;
@@ -34,6 +47,34 @@ public class FatFile implements UsbFile {
 	private FatDirectory parent;
 	private ClusterChain chain;
 	private FatLfnDirectoryEntry entry;
+	/**
+	 * True if the cluster chain holds more clusters than needed for the
+	 * current file length.
+	 */
+	private boolean hasReservedClusters;
+	/**
+	 * The length requested by {@link #preallocate(long)}, 0 if none. The
+	 * clusters up to this length are kept when the file is flushed.
+	 */
+	private long preallocatedLength;
+	/**
+	 * True if the directory entry has changed apart from its timestamps, eg.
+	 * the file size.
+	 */
+	private boolean entryChanged;
+	/**
+	 * True if only the timestamps of the directory entry have changed.
+	 */
+	private boolean timesChanged;
+	/**
+	 * True if the file has been written since the last flush. The last
+	 * modified time is set once on the next flush instead of on every write.
+	 */
+	private boolean modified;
+	/**
+	 * True if the last accessed time has already been updated by this instance.
+	 */
+	private boolean accessTimeUpdated;
 
 	private FatFile(BlockDeviceDriver blockDevice, FAT fat, Fat32BootSector bootSector,
 			FatLfnDirectoryEntry entry, FatDirectory parent) {
@@ -126,24 +167,172 @@ public class FatFile implements UsbFile {
 		return entry.getFileSize();
 	}
 
+	/**
+	 * @return The first cluster of the file on the disk, 0 if the file is
+	 *         empty. Can be used to access files in the order they are stored.
+	 */
+	public long getStartCluster() {
+		return entry.getStartCluster();
+	}
+
 	@Override
 	public void setLength(long newLength) throws IOException {
-        	initChain();
+		initChain();
 		chain.setLength(newLength);
 		entry.setFileSize(newLength);
+		hasReservedClusters = false;
+		preallocatedLength = 0;
+		entryChanged = true;
+		modified = true;
+	}
+
+	@Override
+	public void preallocate(long length) throws IOException {
+		initChain();
+		if (length > chain.getLength()) {
+			chain.setLength(length);
+			hasReservedClusters = true;
+		}
+		preallocatedLength = Math.max(preallocatedLength, length);
+	}
+
+	/**
+	 * Grows the file to the given length. If the cluster chain is too short,
+	 * more space than currently needed is allocated at once, proportional to
+	 * the current size of the file. This keeps the number of allocations low
+	 * and the chain mostly contiguous when a file is written in small chunks.
+	 * The unused tail is released in {@link #flush()} and {@link #close()},
+	 * except for the part requested by {@link #preallocate(long)} which is
+	 * kept until the file is closed.
+	 * <p>
+	 * The additional space is never more than what is left after the needed
+	 * clusters have been allocated. If the free cluster count is not known
+	 * and the additional space does not fit, only the needed clusters are
+	 * allocated.
+	 */
+	private void grow(long newLength) throws IOException {
+		long chainLength = chain.getLength();
+		if (newLength > chainLength) {
+			long clusterSize = bootSector.getBytesPerCluster();
+			long growth = Math.min(Math.max(chainLength, MIN_GROWTH), MAX_GROWTH);
+			long freeClusters = fat.getFreeClusterCount();
+			if (freeClusters != -1) {
+				long neededClusters = (newLength - chainLength + clusterSize - 1) / clusterSize;
+				growth = Math.min(growth, Math.max(freeClusters - neededClusters, 0) * clusterSize);
+			}
+
+			if (growth > 0) {
+				try {
+					chain.setLength(newLength + growth);
+					hasReservedClusters = true;
+				} catch (IOException e) {
+					// alloc does not change the FAT if there is not enough space
+					chain.setLength(newLength);
+				}
+			} else {
+				chain.setLength(newLength);
+			}
+		}
+		entry.setFileSize(newLength);
+		entryChanged = true;
+	}
+
+	/**
+	 * Frees the clusters which have been reserved by {@link #grow(long)} or
+	 * {@link #preallocate(long)} but are not covered by the file length.
+	 *
+	 * @param keepPreallocated True if the clusters requested by
+	 *                         {@link #preallocate(long)} shall be kept and
+	 *                         only the look ahead of {@link #grow(long)} is
+	 *                         freed.
+	 * @return True if the FAT has been changed.
+	 */
+	private boolean releaseReservedClusters(boolean keepPreallocated) throws IOException {
+		if (!hasReservedClusters)
+			return false;
+
+		long length = getLength();
+		if (keepPreallocated && preallocatedLength > length) {
+			long clusterSize = bootSector.getBytesPerCluster();
+			long keep = (preallocatedLength + clusterSize - 1) / clusterSize * clusterSize;
+			if (chain.getLength() <= keep)
+				return false;
+			chain.setLength(keep);
+			return true;
+		}
+
+		// keep at least the start cluster the directory entry points to
+		chain.setLength(Math.max(length, 1));
+		hasReservedClusters = false;
+		preallocatedLength = 0;
+		return true;
+	}
+
+	/**
+	 * Updates the last accessed time according to the
+	 * {@link Fat32MountOptions.AccessTimeMode} of the file system. The change
+	 * is only made in memory.
+	 */
+	private void updateAccessTime() {
+		switch (parent.getMountOptions().getAccessTimeMode()) {
+		case STRICT:
+			entry.setLastAccessedTimeToNow();
+			timesChanged = true;
+			break;
+		case RELATIME:
+			if (!accessTimeUpdated && entry.updateLastAccessedTimeToNow()) {
+				timesChanged = true;
+			}
+			break;
+		case NOATIME:
+			return;
+		}
+		accessTimeUpdated = true;
+	}
+
+	/**
+	 * Applies the last modified time if the file has been written since the
+	 * last call.
+	 */
+	private void updateModifiedTime() {
+		if (modified) {
+			entry.setLastModifiedTimeToNow();
+			modified = false;
+			timesChanged = true;
+		}
+	}
+
+	/**
+	 * Writes the directory entry to the disk if needed.
+	 *
+	 * @param includeTimes True if the entry shall also be written if only the
+	 *                     timestamps have changed.
+	 * @param fatChanged True if the FAT has to be written even if the entry
+	 *                   is not, eg. because reserved clusters have been freed.
+	 */
+	private void writeEntry(boolean includeTimes, boolean fatChanged) throws IOException {
+		updateModifiedTime();
+		if (entryChanged || (includeTimes && timesChanged)) {
+			// writing the directory flushes the FAT first
+			parent.write();
+			entryChanged = false;
+			timesChanged = false;
+		} else if (fatChanged) {
+			fat.writeDirtyBlocks();
+		}
 	}
 
 	@Override
 	public void read(long offset, ByteBuffer destination) throws IOException {
 		initChain();
-		entry.setLastAccessedTimeToNow();
+		updateAccessTime();
 		chain.read(offset, destination);
 	}
 
 	@Override
 	public void read(UsbDeviceConnection deviceConnection, long offset, ByteBuffer destination) throws IOException {
 		initChain(deviceConnection);
-		entry.setLastAccessedTimeToNow();
+		updateAccessTime();
 		chain.read(offset, destination);
 	}
 
@@ -152,8 +341,8 @@ public class FatFile implements UsbFile {
 		initChain();
 		long length = offset + source.remaining();
 		if (length > getLength())
-			setLength(length);
-		entry.setLastModifiedTimeToNow();
+			grow(length);
+		modified = true;
 		chain.write(offset, source);
 	}
 
@@ -162,19 +351,23 @@ public class FatFile implements UsbFile {
 		initChain(deviceConnection);
 		long length = offset + source.remaining();
 		if (length > getLength())
-			setLength(length);
-		entry.setLastModifiedTimeToNow();
+			grow(length);
+		modified = true;
 		chain.write(offset, source);
 	}
 
 	@Override
 	public void flush() throws IOException {
-		parent.write();
+		// the look ahead would be lost if the file is never closed, the
+		// caller still expects the preallocated space to be there though
+		boolean fatChanged = releaseReservedClusters(true);
+		writeEntry(!parent.getMountOptions().isLazyTime(), fatChanged);
 	}
 
 	@Override
 	public void close() throws IOException {
-		flush();
+		boolean fatChanged = releaseReservedClusters(false);
+		writeEntry(true, fatChanged);
 	}
 
 	@Override
@@ -199,12 +392,42 @@ public class FatFile implements UsbFile {
 		parent = (FatDirectory) destination;
 	}
 
+	@Override
+	public ListFilesTask listFilesAsync(UsbDeviceConnection deviceConnection, Executor executor,
+										ListFilesTask.Callback callback) {
+		throw new UnsupportedOperationException("This is a file!");
+	}
+
+	@Override
+	public void moveFiles(UsbFile[] files) throws IOException {
+		throw new UnsupportedOperationException("This is a file!");
+	}
+
+	@Override
+	public void moveFiles(UsbDeviceConnection deviceConnection, UsbFile[] files) throws IOException {
+		throw new UnsupportedOperationException("This is a file!");
+	}
+
+	FatLfnDirectoryEntry getEntry() {
+		return entry;
+	}
+
+	FatDirectory getParentDirectory() {
+		return parent;
+	}
+
+	void setParentDirectory(FatDirectory parent) {
+		this.parent = parent;
+	}
+
 	@Override
 	public void delete() throws IOException {
 		initChain();
 		parent.removeEntry(entry);
 		parent.write();
 		chain.setLength(0);
+		hasReservedClusters = false;
+		preallocatedLength = 0;
 	}
 
 	@Override
@@ -160,6 +160,10 @@ class FatLfnDirectoryEntry {
 		actualEntry.setLastAccessedDateTime(System.currentTimeMillis());
 	}
 
+	boolean updateLastAccessedTimeToNow() {
+		return actualEntry.updateLastAccessedDateTime(System.currentTimeMillis());
+	}
+
 	void setLastModifiedTimeToNow() {
 		actualEntry.setLastModifiedDateTime(System.currentTimeMillis());
 	}
@@ -51,9 +51,22 @@ class FsInfoStructure {
 
 	private static final String TAG = FsInfoStructure.class.getSimpleName();
 
+	/**
+	 * Minimum time in ms between two checkpoints, see
+	 * {@link #isCheckpointDue()}.
+	 */
+	static final long CHECKPOINT_INTERVAL = 5000;
+
 	private int offset;
 	private BlockDeviceDriver blockDevice;
 	private ByteBuffer buffer;
+	/**
+	 * False if the sector does not hold a valid fs info structure. In this
+	 * case the values are only kept in memory and never written.
+	 */
+	private boolean writable = true;
+	private boolean dirty;
+	private long lastWriteTime;
 
 	private FsInfoStructure(BlockDeviceDriver blockDevice, int offset) throws IOException {
 		this.blockDevice = blockDevice;
@@ -66,7 +79,10 @@ class FsInfoStructure {
 		if (buffer.getInt(LEAD_SIGNATURE_OFF) != LEAD_SIGNATURE
 				|| buffer.getInt(STRUCT_SIGNATURE_OFF) != STRUCT_SIGNATURE
 				|| buffer.getInt(TRAIL_SIGNATURE_OFF) != TRAIL_SIGNATURE) {
-			throw new IOException("invalid fs i structure!");
+			Log.w(TAG, "invalid fs i structure, values have to be recomputed");
+			writable = false;
+			setFreeClusterCount(INVALID_VALUE);
+			setLastAllocatedClusterHint(INVALID_VALUE);
 		}
 	}
 
@@ -77,6 +93,7 @@ class FsInfoStructure {
 
 	void setFreeClusterCount(long value) {
 		buffer.putInt(FREE_COUNT_OFF, (int) value);
+		dirty = true;
 	}
 
 	long getFreeClusterCount() {
@@ -85,6 +102,7 @@ class FsInfoStructure {
 
 	void setLastAllocatedClusterHint(long value) {
 		buffer.putInt(NEXT_FREE_OFFSET, (int) value);
+		dirty = true;
 	}
 
 	long getLastAllocatedClusterHint() {
@@ -98,9 +116,27 @@ class FsInfoStructure {
 		}
 	}
 
+	/**
+	 * Returns true if the structure has been changed and the last write is
+	 * longer ago than {@link #CHECKPOINT_INTERVAL}. The {@link FAT} writes its
+	 * changes and the structure then. This limits the amount of writes when
+	 * many allocations happen in a short time.
+	 */
+	boolean isCheckpointDue() {
+		return dirty && writable && System.currentTimeMillis() - lastWriteTime >= CHECKPOINT_INTERVAL;
+	}
+
+	/**
+	 * Writes the structure to the disk if it has been changed.
+	 */
 	void write() throws IOException {
+		if (!dirty || !writable)
+			return;
+
 		Log.d(TAG, "writing to device");
 		blockDevice.write(offset, buffer);
 		buffer.clear();
+		dirty = false;
+		lastWriteTime = System.currentTimeMillis();
 	}
 }
@@ -0,0 +1,224 @@
+/*
+ * (C) Copyright 2014-2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs;
+
+import com.github.mjdev.libaums.fs.fat32.Fat32FileSystem;
+import com.github.mjdev.libaums.fs.fat32.Fat32Image;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CopyEngineTest {
+
+	private static final int FILE_SIZE = 1024 * 1024 + 100;
+	private static final int FILES = 3;
+	private static final int CLUSTERS = 20000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] content;
+	private File source;
+
+	/**
+	 * Image which calls {@link #onWrite(long)} before every write. The
+	 * directories and the FAT are small compared to the files, so the bytes
+	 * written are roughly the content written.
+	 */
+	private static class ObservedImage extends Fat32Image {
+		private long written;
+
+		ObservedImage() {
+			super(CLUSTERS);
+		}
+
+		@Override
+		public synchronized void write(long deviceOffset, ByteBuffer buffer) throws IOException {
+			written += buffer.remaining();
+			onWrite(written);
+			super.write(deviceOffset, buffer);
+		}
+
+		/**
+		 * @param written The bytes written so far including this write.
+		 */
+		void onWrite(long written) throws IOException {
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		content = new byte[FILE_SIZE];
+		new Random(1).nextBytes(content);
+		source = folder.newFolder("source");
+		for (int i = 0; i < FILES; i++) {
+			FileOutputStream out = new FileOutputStream(new File(source, "file" + i));
+			out.write(content);
+			out.close();
+		}
+	}
+
+	private static byte[] read(UsbFile file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) file.getLength());
+		file.read(0, buffer);
+		return buffer.array();
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] result = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		int offset = 0;
+		while (offset < result.length) {
+			offset += in.read(result, offset, result.length - offset);
+		}
+		in.close();
+		return result;
+	}
+
+	@Test
+	public void copiesTreeToDeviceAndBack() throws IOException {
+		Fat32FileSystem fs = Fat32FileSystem.read(new Fat32Image(CLUSTERS));
+		UsbFile root = fs.getRootDirectory();
+		CopyEngine engine = new CopyEngine(fs.getChunkSize());
+		final long[] progress = new long[2];
+		engine.setListener(new CopyEngine.Listener() {
+			@Override
+			public void onProgress(long copied, long total, long bytesPerSecond, long remainingMillis) {
+				progress[0] = copied;
+				progress[1] = total;
+			}
+		});
+
+		engine.copy(source, root);
+
+		assertEquals(FILES * FILE_SIZE, progress[0]);
+		assertEquals(FILES * FILE_SIZE, progress[1]);
+		UsbFile directory = root.search("source");
+		assertEquals(FILES, directory.list().length);
+		for (UsbFile file : directory.listFiles()) {
+			assertArrayEquals(file.getName(), content, read(file));
+		}
+
+		File target = new File(folder.getRoot(), "target");
+		engine.copy(directory, target);
+		for (int i = 0; i < FILES; i++) {
+			assertArrayEquals(content, read(new File(target, "file" + i)));
+		}
+	}
+
+	@Test
+	public void copiesSeveralItemsWithinDevice() throws IOException {
+		Fat32FileSystem fs = Fat32FileSystem.read(new Fat32Image(CLUSTERS));
+		UsbFile root = fs.getRootDirectory();
+		CopyEngine engine = new CopyEngine(fs.getChunkSize());
+		engine.copy(source, root);
+		UsbFile directory = root.search("source");
+		UsbFile target = root.createDirectory("target");
+		UsbFile empty = directory.createFile("empty");
+		empty.close();
+
+		engine.copy(new UsbFile[] { directory.search("file0"), directory.search("empty") }, target);
+
+		String[] names = target.list();
+		Arrays.sort(names);
+		assertArrayEquals(new String[] { "empty", "file0" }, names);
+		assertArrayEquals(content, read(target.search("file0")));
+		assertEquals(0, target.search("empty").getLength());
+	}
+
+	@Test
+	public void cancelDeletesIncompleteFile() throws IOException {
+		final CopyEngine[] engine = new CopyEngine[1];
+		Fat32FileSystem fs = Fat32FileSystem.read(new ObservedImage() {
+			@Override
+			void onWrite(long written) {
+				// within the second file
+				if (written > FILE_SIZE * 3 / 2)
+					engine[0].cancel();
+			}
+		});
+		UsbFile root = fs.getRootDirectory();
+		root.createFile("keep").close();
+		long freeSpace = fs.getFreeSpace();
+		engine[0] = new CopyEngine(fs.getChunkSize());
+
+		try {
+			engine[0].copy(source, root);
+			fail("copy has not been cancelled");
+		} catch (InterruptedIOException e) {
+			// expected
+		}
+
+		UsbFile directory = root.search("source");
+		String[] names = directory.list();
+		assertTrue(names.length < FILES);
+		for (UsbFile file : directory.listFiles()) {
+			assertArrayEquals(file.getName(), content, read(file));
+		}
+
+		// nothing is left behind
+		directory.delete();
+		assertEquals(freeSpace, fs.getFreeSpace());
+	}
+
+	@Test
+	public void writeErrorDeletesIncompleteFile() throws IOException {
+		ObservedImage image = new ObservedImage() {
+			private boolean failed;
+
+			@Override
+			void onWrite(long written) throws IOException {
+				// a single failure, the incomplete file can be deleted afterwards
+				if (written > FILE_SIZE / 2 && !failed) {
+					failed = true;
+					throw new IOException("write failed");
+				}
+			}
+		};
+		Fat32FileSystem fs = Fat32FileSystem.read(image);
+		UsbFile target = fs.getRootDirectory().createDirectory("target");
+		long freeSpace = fs.getFreeSpace();
+		CopyEngine engine = new CopyEngine(fs.getChunkSize());
+
+		try {
+			engine.copy(new File(source, "file0"), target);
+			fail("write error has not been reported");
+		} catch (IOException e) {
+			assertEquals("write failed", e.getMessage());
+		}
+
+		assertEquals(freeSpace, fs.getFreeSpace());
+		assertEquals(0, Fat32FileSystem.read(image).getRootDirectory().search("target").list().length);
+	}
+}
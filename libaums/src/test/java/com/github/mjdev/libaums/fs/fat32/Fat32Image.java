@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2014-2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.github.mjdev.libaums.driver.BlockDeviceDriver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Block device in memory holding an empty FAT32 file system, with one sector
+ * per cluster, two FATs and the root directory in cluster 2.
+ */
+public class Fat32Image implements BlockDeviceDriver {
+
+	private static final int SECTOR_SIZE = 512;
+	private static final int RESERVED_SECTORS = 32;
+	private static final int FS_INFO_SECTOR = 1;
+
+	private final byte[] data;
+	private final int sectorsPerFat;
+
+	/**
+	 * @param clusters The number of data clusters.
+	 */
+	public Fat32Image(int clusters) {
+		sectorsPerFat = ((clusters + 2) * 4 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+		int totalSectors = RESERVED_SECTORS + 2 * sectorsPerFat + clusters;
+		data = new byte[totalSectors * SECTOR_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+		// boot sector
+		buffer.putShort(11, (short) SECTOR_SIZE);
+		buffer.put(13, (byte) 1);
+		buffer.putShort(14, (short) RESERVED_SECTORS);
+		buffer.put(16, (byte) 2);
+		buffer.putInt(32, totalSectors);
+		buffer.putInt(36, sectorsPerFat);
+		buffer.putInt(44, 2);
+		buffer.putShort(48, (short) FS_INFO_SECTOR);
+		buffer.putShort(510, (short) 0xaa55);
+
+		// fs info, the root directory uses one cluster
+		int fsInfo = FS_INFO_SECTOR * SECTOR_SIZE;
+		buffer.putInt(fsInfo, 0x41615252);
+		buffer.putInt(fsInfo + 484, 0x61417272);
+		buffer.putInt(fsInfo + 488, clusters - 1);
+		buffer.putInt(fsInfo + 492, 2);
+		buffer.putInt(fsInfo + 508, 0xaa550000);
+
+		for (int i = 0; i < 2; i++) {
+			int fat = (RESERVED_SECTORS + i * sectorsPerFat) * SECTOR_SIZE;
+			buffer.putInt(fat, 0x0ffffff8);
+			buffer.putInt(fat + 4, 0x0fffffff);
+			// end of the chain of the root directory
+			buffer.putInt(fat + 8, 0x0ffffff8);
+		}
+	}
+
+	/**
+	 * @return The entry of the cluster in the first FAT.
+	 */
+	public int getFatEntry(long cluster) {
+		return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+				.getInt((int) (RESERVED_SECTORS * SECTOR_SIZE + cluster * 4)) & 0x0fffffff;
+	}
+
+	private int getClusterOffset(long cluster) {
+		return (RESERVED_SECTORS + 2 * sectorsPerFat + (int) (cluster - 2)) * SECTOR_SIZE;
+	}
+
+	/**
+	 * @return The content of the cluster.
+	 */
+	public ByteBuffer readCluster(long cluster) {
+		ByteBuffer buffer = ByteBuffer.allocate(SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(data, getClusterOffset(cluster), SECTOR_SIZE);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Replaces the content of the cluster, eg. to damage a directory.
+	 */
+	public void writeCluster(long cluster, ByteBuffer buffer) {
+		buffer.get(data, getClusterOffset(cluster), SECTOR_SIZE);
+	}
+
+	private void check(long offset, ByteBuffer buffer) throws IOException {
+		if (offset % SECTOR_SIZE != 0 || offset + buffer.remaining() > data.length)
+			throw new IOException("Invalid access: " + offset + " " + buffer.remaining());
+	}
+
+	@Override
+	public void init() {
+	}
+
+	@Override
+	public synchronized void read(long deviceOffset, ByteBuffer buffer) throws IOException {
+		check(deviceOffset, buffer);
+		buffer.put(data, (int) deviceOffset, buffer.remaining());
+	}
+
+	@Override
+	public void read(UsbDeviceConnection usbDeviceConnection, long deviceOffset, ByteBuffer buffer) throws IOException {
+		read(deviceOffset, buffer);
+	}
+
+	@Override
+	public synchronized void write(long deviceOffset, ByteBuffer buffer) throws IOException {
+		check(deviceOffset, buffer);
+		buffer.get(data, (int) deviceOffset, buffer.remaining());
+	}
+
+	@Override
+	public void write(UsbDeviceConnection usbDeviceConnection, long deviceOffset, ByteBuffer buffer) throws IOException {
+		write(deviceOffset, buffer);
+	}
+
+	@Override
+	public int getBlockSize() {
+		return SECTOR_SIZE;
+	}
+}
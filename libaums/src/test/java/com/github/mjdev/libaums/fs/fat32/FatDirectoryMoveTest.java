@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright 2014-2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class FatDirectoryMoveTest {
+
+	private Fat32Image image;
+	private UsbFile root;
+
+	@Before
+	public void setUp() throws IOException {
+		image = new Fat32Image(3000);
+		root = Fat32FileSystem.read(image).getRootDirectory();
+	}
+
+	/**
+	 * Reads the file system again, so no object of the test is reused.
+	 */
+	private UsbFile reread() throws IOException {
+		return Fat32FileSystem.read(image).getRootDirectory();
+	}
+
+	/**
+	 * Reads the entries of a directory from the disk.
+	 *
+	 * @return The start clusters of the items by their short names.
+	 */
+	private Map<String, Long> readShortNames(long cluster) {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		while (cluster < 0x0ffffff8) {
+			ByteBuffer buffer = image.readCluster(cluster);
+			while (buffer.hasRemaining()) {
+				FatDirectoryEntry entry = FatDirectoryEntry.read(buffer);
+				if (entry == null)
+					return result;
+				if (entry.isLfnEntry() || entry.isDeleted() || entry.isVolumeLabel())
+					continue;
+				String shortName = entry.getShortName().getString();
+				if (result.put(shortName, entry.getStartCluster()) != null)
+					fail("short name " + shortName + " is used twice");
+			}
+			cluster = image.getFatEntry(cluster);
+		}
+		return result;
+	}
+
+	private static void write(UsbFile file, String content) throws IOException {
+		file.write(0, ByteBuffer.wrap(content.getBytes("US-ASCII")));
+		file.close();
+	}
+
+	private static String read(UsbFile file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) file.getLength());
+		file.read(0, buffer);
+		return new String(buffer.array(), "US-ASCII");
+	}
+
+	@Test
+	public void moveFilesToOtherDirectory() throws IOException {
+		UsbFile source = root.createDirectory("source");
+		UsbFile target = root.createDirectory("target");
+		write(source.createFile("longname1.txt"), "one");
+		UsbFile directory = source.createDirectory("subdirectory");
+		write(directory.createFile("child"), "child");
+		// gets the same short name as the moved file
+		target.createFile("longname2.txt").close();
+
+		target.moveFiles(new UsbFile[] { source.search("longname1.txt"), directory });
+
+		UsbFile newRoot = reread();
+		assertEquals(0, newRoot.search("source").list().length);
+		UsbFile newTarget = newRoot.search("target");
+		String[] names = newTarget.list();
+		Arrays.sort(names);
+		assertArrayEquals(new String[] { "longname1.txt", "longname2.txt", "subdirectory" }, names);
+		assertEquals("one", read(newTarget.search("longname1.txt")));
+		assertEquals("child", read(newTarget.search("subdirectory").search("child")));
+
+		// fails if a short name is used twice
+		long targetCluster = ((FatDirectory) newTarget).getStartCluster();
+		readShortNames(targetCluster);
+		long directoryCluster = ((FatDirectory) newTarget.search("subdirectory")).getStartCluster();
+		assertEquals(Long.valueOf(targetCluster), readShortNames(directoryCluster).get(".."));
+	}
+
+	@Test
+	public void moveDirectoryToRoot() throws IOException {
+		UsbFile parent = root.createDirectory("parent");
+		UsbFile directory = parent.createDirectory("directory");
+
+		root.moveFiles(new UsbFile[] { directory });
+
+		FatDirectory moved = (FatDirectory) reread().search("directory");
+		assertNotNull(moved);
+		// the root directory is referenced as cluster 0
+		assertEquals(Long.valueOf(0), readShortNames(moved.getStartCluster()).get(".."));
+		assertNull(reread().search("parent").search("directory"));
+	}
+
+	@Test
+	public void moveIntoSubdirectoryFails() throws IOException {
+		UsbFile outer = root.createDirectory("outer");
+		outer.createDirectory("inner").createDirectory("innermost");
+
+		// other objects for the same directories
+		UsbFile newRoot = reread();
+		UsbFile innermost = newRoot.search("outer").search("inner").search("innermost");
+		try {
+			innermost.moveFiles(new UsbFile[] { newRoot.search("outer") });
+			fail("moved a directory into its own subdirectory");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertNotNull(reread().search("outer").search("inner").search("innermost"));
+	}
+
+	@Test
+	public void moveIntoSubdirectoryWithOwnClusterInParentEntryFails() throws IOException {
+		UsbFile outer = root.createDirectory("outer");
+		outer.createDirectory("inner").createDirectory("innermost");
+
+		// older versions wrote the own cluster into ".." of subdirectories
+		long inner = ((FatDirectory) reread().search("outer").search("inner")).getStartCluster();
+		ByteBuffer buffer = image.readCluster(inner);
+		// ".." is the second entry
+		buffer.putShort(32 + 20, (short) (inner >>> 16));
+		buffer.putShort(32 + 26, (short) inner);
+		image.writeCluster(inner, buffer);
+		assertEquals(Long.valueOf(inner), readShortNames(inner).get(".."));
+
+		UsbFile newRoot = reread();
+		UsbFile innermost = newRoot.search("outer").search("inner").search("innermost");
+		try {
+			innermost.moveFiles(new UsbFile[] { newRoot.search("outer") });
+			fail("moved a directory into its own subdirectory");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// not inside
+		newRoot.search("outer").search("inner").moveFiles(new UsbFile[] { newRoot.createDirectory("other") });
+		assertNotNull(reread().search("outer").search("inner").search("other"));
+	}
+
+	@Test
+	public void moveIntoItselfFails() throws IOException {
+		root.createDirectory("directory");
+
+		UsbFile newRoot = reread();
+		try {
+			newRoot.search("directory").moveFiles(new UsbFile[] { newRoot.search("directory") });
+			fail("moved a directory into itself");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void moveIntoSameDirectoryDoesNothing() throws IOException {
+		UsbFile directory = root.createDirectory("directory");
+		write(directory.createFile("file"), "content");
+
+		UsbFile newRoot = reread();
+		newRoot.search("directory").moveFiles(new UsbFile[] { newRoot.search("directory").search("file") });
+
+		assertArrayEquals(new String[] { "file" }, reread().search("directory").list());
+		assertEquals("content", read(reread().search("directory").search("file")));
+	}
+
+	@Test(expected = IOException.class)
+	public void moveOverExistingNameFails() throws IOException {
+		UsbFile source = root.createDirectory("source");
+		UsbFile target = root.createDirectory("target");
+		source.createFile("file").close();
+		target.createFile("FILE").close();
+
+		target.moveFiles(new UsbFile[] { source.search("file") });
+	}
+
+	@Test
+	public void moveFromOtherFileSystemFails() throws IOException {
+		UsbFile otherRoot = Fat32FileSystem.read(new Fat32Image(3000)).getRootDirectory();
+		UsbFile file = otherRoot.createFile("file");
+		try {
+			root.moveFiles(new UsbFile[] { file });
+			fail("moved a file between file systems");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
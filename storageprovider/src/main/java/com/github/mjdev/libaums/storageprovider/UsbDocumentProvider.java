@@ -22,13 +22,19 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.graphics.Point;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.storage.StorageManager;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsProvider;
 import android.util.Log;
@@ -37,17 +43,24 @@ import android.webkit.MimeTypeMap;
 
 import com.github.mjdev.libaums.UsbMassStorageDevice;
 import com.github.mjdev.libaums.fs.FileSystem;
+import com.github.mjdev.libaums.fs.ListFilesTask;
 import com.github.mjdev.libaums.fs.UsbFile;
-import com.github.mjdev.libaums.fs.UsbFileInputStream;
-import com.github.mjdev.libaums.fs.UsbFileOutputStream;
 import com.github.mjdev.libaums.partition.Partition;
-import com.github.mjdev.libaums.storageprovider.util.ParcelFileDescriptorUtil;
+import com.github.mjdev.libaums.storageprovider.util.DocumentIdTrie;
+import com.github.mjdev.libaums.storageprovider.util.FileNameIndex;
+import com.github.mjdev.libaums.storageprovider.util.ThumbnailCache;
+import com.github.mjdev.libaums.storageprovider.util.TransferExecutor;
+import com.github.mjdev.libaums.storageprovider.util.UsbFileProxyCallback;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
 
 @TargetApi(Build.VERSION_CODES.KITKAT)
 public class UsbDocumentProvider extends DocumentsProvider {
@@ -90,11 +103,123 @@ public class UsbDocumentProvider extends DocumentsProvider {
     private class UsbPartition {
         UsbDevice device;
         FileSystem fileSystem;
+        TransferExecutor transferExecutor;
+        FileNameIndex index;
     }
 
     private final Map<String, UsbPartition> mRoots = new HashMap<>();
 
-    private final LruCache<String, UsbFile> mFileCache = new LruCache<>(100);
+    private final DocumentIdTrie mFileCache = new DocumentIdTrie();
+
+    /**
+     * Number of entries of a directory listing which are loaded before the
+     * client is notified.
+     */
+    private static final int CHILD_PAGE_SIZE = 100;
+
+    private static final int MAX_SEARCH_RESULTS = 100;
+
+    private final LruCache<String, ChildListing> mChildCache = new LruCache<>(20);
+
+    /**
+     * MIME types by extension, looking them up in the MimeTypeMap is slow.
+     */
+    private static final Map<String, String> sMimeTypes = new HashMap<>();
+
+    /**
+     * The columns of a document, cached for the listings of directories.
+     */
+    private static class DocumentInfo {
+        String documentId;
+        String displayName;
+        String mimeType;
+        int flags;
+        long size;
+        long lastModified;
+    }
+
+    /**
+     * The listing of a directory. It is read on the device thread in
+     * batches, see {@link UsbFile#listFilesAsync}. Clients are notified
+     * after every page and see the entries loaded so far.
+     */
+    private class ChildListing implements ListFilesTask.Callback {
+        final String parentDocumentId;
+        private final List<DocumentInfo> documents = new ArrayList<>();
+        private int notified = 0;
+        private ListFilesTask task;
+        private volatile boolean complete = false;
+
+        ChildListing(String parentDocumentId) {
+            this.parentDocumentId = parentDocumentId;
+        }
+
+        void start(UsbFile parent, TransferExecutor executor) {
+            task = parent.listFilesAsync(null, executor, this);
+        }
+
+        @Override
+        public void onFiles(UsbFile[] files) {
+            List<DocumentInfo> batch = new ArrayList<>(files.length);
+            for (UsbFile child : files) {
+                String documentId = parentDocumentId + DIRECTORY_SEPERATOR + child.getName();
+                mFileCache.put(documentId, child);
+                batch.add(createDocumentInfo(documentId, child));
+            }
+
+            int count;
+            synchronized (this) {
+                documents.addAll(batch);
+                count = documents.size();
+            }
+            if (count >= notified + CHILD_PAGE_SIZE) {
+                notified = count;
+                notifyClients();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+            notifyClients();
+        }
+
+        @Override
+        public void onError(IOException e) {
+            Log.e(TAG, "listing " + parentDocumentId + " failed", e);
+            // the next query tries again
+            synchronized (mChildCache) {
+                if (mChildCache.get(parentDocumentId) == this) {
+                    mChildCache.remove(parentDocumentId);
+                }
+            }
+            complete = true;
+            notifyClients();
+        }
+
+        private void notifyClients() {
+            getContext().getContentResolver().notifyChange(
+                    DocumentsContract.buildChildDocumentsUri(DOCUMENTS_AUTHORITY, parentDocumentId), null, false);
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        synchronized List<DocumentInfo> getDocuments() {
+            return new ArrayList<>(documents);
+        }
+
+        void cancel() {
+            if (task != null) {
+                task.cancel();
+            }
+        }
+    }
+
+    private Handler mProxyHandler;
+
+    private ThumbnailCache mThumbnailCache;
 
     private static String[] resolveRootProjection(String[] projection) {
         return projection != null ? projection : DEFAULT_ROOT_PROJECTION;
@@ -136,7 +261,8 @@ public class UsbDocumentProvider extends DocumentsProvider {
             row.add(DocumentsContract.Root.COLUMN_TITLE, title);
             row.add(DocumentsContract.Root.COLUMN_FLAGS, DocumentsContract.Root.FLAG_LOCAL_ONLY |
                     DocumentsContract.Root.FLAG_SUPPORTS_CREATE |
-                    DocumentsContract.Root.FLAG_SUPPORTS_IS_CHILD);
+                    DocumentsContract.Root.FLAG_SUPPORTS_IS_CHILD |
+                    DocumentsContract.Root.FLAG_SUPPORTS_SEARCH);
             row.add(DocumentsContract.Root.COLUMN_ICON, R.drawable.ic_usb_black_24dp);
             // These columns are optional
             row.add(DocumentsContract.Root.COLUMN_SUMMARY, volumeLabel);
@@ -165,16 +291,133 @@ public class UsbDocumentProvider extends DocumentsProvider {
     public Cursor queryChildDocuments(String parentDocumentId, String[] projection, String sortOrder) throws FileNotFoundException {
         Log.d(TAG, "queryChildDocuments() " + parentDocumentId);
 
-        try {
-            final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
-            UsbFile parent = getFileForDocId(parentDocumentId);
-            for (UsbFile child : parent.listFiles()) {
-                includeFile(result, child);
+        ChildListing listing = getChildListing(parentDocumentId);
+        final boolean loading = !listing.isComplete();
+
+        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection)) {
+            @Override
+            public Bundle getExtras() {
+                Bundle extras = new Bundle();
+                extras.putBoolean(DocumentsContract.EXTRA_LOADING, loading);
+                return extras;
             }
-            return result;
-        } catch (IOException e) {
+        };
+        for (DocumentInfo document : listing.getDocuments()) {
+            includeDocument(result, document);
+        }
+
+        // the client queries again when the next page has been loaded or the directory changed
+        result.setNotificationUri(getContext().getContentResolver(),
+                DocumentsContract.buildChildDocumentsUri(DOCUMENTS_AUTHORITY, parentDocumentId));
+        return result;
+    }
+
+    /**
+     * Returns the cached listing of the directory, or starts loading it in
+     * the background.
+     */
+    private ChildListing getChildListing(String parentDocumentId) throws FileNotFoundException {
+        ChildListing listing;
+        synchronized (mChildCache) {
+            listing = mChildCache.get(parentDocumentId);
+            if (listing != null) {
+                return listing;
+            }
+            listing = new ChildListing(parentDocumentId);
+            mChildCache.put(parentDocumentId, listing);
+        }
+
+        try {
+            listing.start(getFileForDocId(parentDocumentId),
+                    getPartitionForDocId(parentDocumentId).transferExecutor);
+        } catch (IOException | RejectedExecutionException e) {
+            mChildCache.remove(parentDocumentId);
             throw new FileNotFoundException(e.getMessage());
         }
+        return listing;
+    }
+
+    /**
+     * Removes the cached listings of the directory and all directories in it.
+     */
+    private void invalidateChildListings(String documentId) {
+        synchronized (mChildCache) {
+            for (String parentDocumentId : mChildCache.snapshot().keySet()) {
+                if (parentDocumentId.equals(documentId)
+                        || parentDocumentId.startsWith(documentId + DIRECTORY_SEPERATOR)) {
+                    ChildListing listing = mChildCache.remove(parentDocumentId);
+                    listing.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidates the listing of the parent directory after it has been
+     * changed and notifies clients.
+     */
+    private void onChildrenChanged(String parentDocumentId) {
+        if (parentDocumentId == null) {
+            return;
+        }
+        synchronized (mChildCache) {
+            ChildListing listing = mChildCache.remove(parentDocumentId);
+            if (listing != null) {
+                listing.cancel();
+            }
+        }
+        getContext().getContentResolver().notifyChange(
+                DocumentsContract.buildChildDocumentsUri(DOCUMENTS_AUTHORITY, parentDocumentId), null, false);
+    }
+
+    /**
+     * @return The path of the document relative to its root, eg. "/dir/file".
+     */
+    private static String getPathForDocId(String documentId) {
+        return documentId.substring(documentId.indexOf(ROOT_SEPERATOR) + 1);
+    }
+
+    private static String getParentDocId(String documentId) {
+        int splitIndex = documentId.lastIndexOf(DIRECTORY_SEPERATOR);
+        if (splitIndex < 0) {
+            return null;
+        }
+        return documentId.substring(0, splitIndex);
+    }
+
+    @Override
+    public Cursor querySearchDocuments(String rootId, String query, String[] projection)
+            throws FileNotFoundException {
+        Log.d(TAG, "querySearchDocuments() " + rootId + " " + query);
+
+        UsbPartition usbPartition = mRoots.get(rootId);
+        if (null == usbPartition) {
+            throw new FileNotFoundException("Missing root for " + rootId);
+        }
+
+        final boolean loading = !usbPartition.index.isComplete();
+        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection)) {
+            @Override
+            public Bundle getExtras() {
+                Bundle extras = new Bundle();
+                extras.putBoolean(DocumentsContract.EXTRA_LOADING, loading);
+                return extras;
+            }
+        };
+
+        for (String path : usbPartition.index.search(query, MAX_SEARCH_RESULTS)) {
+            String documentId = rootId + ROOT_SEPERATOR + path;
+            try {
+                includeDocument(result, createDocumentInfo(documentId, getFileForDocId(documentId)));
+            } catch (IOException e) {
+                Log.w(TAG, "search result " + documentId + " not found", e);
+            }
+        }
+
+        // the client queries again while the index is being built
+        result.setNotificationUri(getContext().getContentResolver(),
+                DocumentsContract.buildSearchDocumentsUri(DOCUMENTS_AUTHORITY, rootId, query));
+        return result;
     }
 
     @Override
@@ -185,12 +428,21 @@ public class UsbDocumentProvider extends DocumentsProvider {
             UsbFile file = getFileForDocId(documentId);
 
             final int accessMode = ParcelFileDescriptor.parseMode(mode);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                Log.d(TAG, "openDocument() opening proxy file descriptor");
+                return openProxyFileDescriptor(documentId, file, accessMode);
+            }
+
+            TransferExecutor transferExecutor = getPartitionForDocId(documentId).transferExecutor;
             if ((accessMode | ParcelFileDescriptor.MODE_READ_ONLY) == ParcelFileDescriptor.MODE_READ_ONLY) {
-                Log.d(TAG, "openDocument() piping to UsbFileInputStream");
-                return ParcelFileDescriptorUtil.pipeFrom(new UsbFileInputStream(file));
+                Log.d(TAG, "openDocument() piping from file");
+                return transferExecutor.pipeFrom(file, signal);
             } else if ((accessMode | ParcelFileDescriptor.MODE_WRITE_ONLY) == ParcelFileDescriptor.MODE_WRITE_ONLY) {
-                Log.d(TAG, "openDocument() piping to UsbFileOutputStream");
-                return ParcelFileDescriptorUtil.pipeTo(new UsbFileOutputStream(file));
+                Log.d(TAG, "openDocument() piping to file");
+                if ((accessMode & ParcelFileDescriptor.MODE_TRUNCATE) != 0) {
+                    file.setLength(0);
+                }
+                return transferExecutor.pipeTo(file, signal, createClosedListener(documentId));
             }
 
             Log.d(TAG, "openDocument() return null");
@@ -203,6 +455,74 @@ public class UsbDocumentProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Opens a seekable file descriptor for the file. Reads and writes of the
+     * client are passed directly to the file at their offset.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private ParcelFileDescriptor openProxyFileDescriptor(String documentId, UsbFile file, int accessMode)
+            throws IOException {
+        boolean writable = (accessMode & ParcelFileDescriptor.MODE_WRITE_ONLY) != 0;
+        if ((accessMode & ParcelFileDescriptor.MODE_TRUNCATE) != 0) {
+            file.setLength(0);
+        }
+
+        UsbPartition partition = getPartitionForDocId(documentId);
+        int pageSize = partition.fileSystem.getChunkSize();
+        StorageManager storageManager = (StorageManager) getContext().getSystemService(Context.STORAGE_SERVICE);
+        UsbFileProxyCallback callback = new UsbFileProxyCallback(file, partition.transferExecutor, writable, pageSize);
+        callback.setClosedListener(createClosedListener(documentId));
+        return storageManager.openProxyFileDescriptor(accessMode & ParcelFileDescriptor.MODE_READ_WRITE,
+                callback, getProxyHandler());
+    }
+
+    /**
+     * The cached listing of the parent contains the old size and modification
+     * date of a file which has been written, it is reloaded after the file has
+     * been closed.
+     */
+    private Runnable createClosedListener(final String documentId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                onChildrenChanged(getParentDocId(documentId));
+            }
+        };
+    }
+
+    /**
+     * The callbacks of all proxy file descriptors are called on one thread,
+     * because the device can only process one request at a time anyway.
+     */
+    private synchronized Handler getProxyHandler() {
+        if (mProxyHandler == null) {
+            HandlerThread thread = new HandlerThread("UsbDocumentProvider proxy");
+            thread.start();
+            mProxyHandler = new Handler(thread.getLooper());
+        }
+        return mProxyHandler;
+    }
+
+    @Override
+    public AssetFileDescriptor openDocumentThumbnail(String documentId, Point sizeHint, CancellationSignal signal)
+            throws FileNotFoundException {
+        Log.d(TAG, "openDocumentThumbnail() " + documentId);
+
+        try {
+            return getThumbnailCache().openThumbnail(documentId, getFileForDocId(documentId), sizeHint, signal,
+                    getPartitionForDocId(documentId).transferExecutor);
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    private synchronized ThumbnailCache getThumbnailCache() {
+        if (mThumbnailCache == null) {
+            mThumbnailCache = new ThumbnailCache(new File(getContext().getCacheDir(), "thumbnails"));
+        }
+        return mThumbnailCache;
+    }
+
     @Override
     public boolean isChildDocument(String parentDocumentId, String documentId) {
         return documentId.startsWith(parentDocumentId);
@@ -223,6 +543,8 @@ public class UsbDocumentProvider extends DocumentsProvider {
                 child = parent.createFile(getFileName(mimeType, displayName));
             }
 
+            getPartitionForDocId(parentDocumentId).index.add(getPathForDocId(parentDocumentId), child.getName());
+            onChildrenChanged(parentDocumentId);
             return getDocIdForFile(child);
 
         } catch (IOException e) {
@@ -238,9 +560,17 @@ public class UsbDocumentProvider extends DocumentsProvider {
         try {
             UsbFile file = getFileForDocId(documentId);
             file.setName(getFileName(getMimeType(file), displayName));
-            mFileCache.remove(documentId);
+            if (file.isRoot()) {
+                return documentId;
+            }
+            String newDocumentId = getParentDocId(documentId) + DIRECTORY_SEPERATOR + file.getName();
+            // the files in a renamed directory stay valid
+            mFileCache.move(documentId, newDocumentId);
+            getPartitionForDocId(documentId).index.rename(getPathForDocId(documentId), file.getName());
+            invalidateChildListings(documentId);
+            onChildrenChanged(getParentDocId(documentId));
 
-            return getDocIdForFile(file);
+            return newDocumentId;
 
         } catch (IOException e) {
             throw new FileNotFoundException(e.getMessage());
@@ -255,6 +585,9 @@ public class UsbDocumentProvider extends DocumentsProvider {
             UsbFile file = getFileForDocId(documentId);
             file.delete();
             mFileCache.remove(documentId);
+            getPartitionForDocId(documentId).index.remove(getPathForDocId(documentId));
+            invalidateChildListings(documentId);
+            onChildrenChanged(getParentDocId(documentId));
         } catch (IOException e) {
             throw new FileNotFoundException(e.getMessage());
         }
@@ -320,8 +653,16 @@ public class UsbDocumentProvider extends DocumentsProvider {
         } else {
             String extension = MimeTypeMap.getFileExtensionFromUrl(file.getName()).toLowerCase();
             if (extension != null) {
+                synchronized (sMimeTypes) {
+                    if (sMimeTypes.containsKey(extension)) {
+                        return sMimeTypes.get(extension);
+                    }
+                }
                 String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
                 Log.d(TAG, "mimeType: " + mimeType);
+                synchronized (sMimeTypes) {
+                    sMimeTypes.put(extension, mimeType);
+                }
                 return mimeType;
             }
         }
@@ -342,13 +683,14 @@ public class UsbDocumentProvider extends DocumentsProvider {
     }
 
     private void includeFile(final MatrixCursor result, final UsbFile file) throws FileNotFoundException {
+        includeDocument(result, createDocumentInfo(getDocIdForFile(file), file));
+    }
 
-        final MatrixCursor.RowBuilder row = result.newRow();
-
-        // These columns are required
-        row.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, getDocIdForFile(file));
-        row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, file.isRoot() ? "" : file.getName());
-        row.add(DocumentsContract.Document.COLUMN_MIME_TYPE, getMimeType(file));
+    private static DocumentInfo createDocumentInfo(String documentId, UsbFile file) {
+        DocumentInfo document = new DocumentInfo();
+        document.documentId = documentId;
+        document.displayName = file.isRoot() ? "" : file.getName();
+        document.mimeType = getMimeType(file);
 
         int flags = DocumentsContract.Document.FLAG_SUPPORTS_DELETE
                 | DocumentsContract.Document.FLAG_SUPPORTS_WRITE
@@ -358,17 +700,30 @@ public class UsbDocumentProvider extends DocumentsProvider {
             flags |= DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE;
         }
 
-        /*
         // We only show thumbnails for image files - expect a call to openDocumentThumbnail for each file that has
         // this flag set
-        if (mimeType.startsWith("image/"))
+        if (document.mimeType != null && document.mimeType.startsWith("image/"))
             flags |= DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL;
-            */
-        row.add(DocumentsContract.Document.COLUMN_FLAGS, flags);
+
+        document.flags = flags;
+        document.size = file.isDirectory() ? 0 : file.getLength();
+        document.lastModified = file.isRoot() ? 0 : file.lastModified();
+        return document;
+    }
+
+    private static void includeDocument(final MatrixCursor result, final DocumentInfo document) {
+
+        final MatrixCursor.RowBuilder row = result.newRow();
+
+        // These columns are required
+        row.add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, document.documentId);
+        row.add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, document.displayName);
+        row.add(DocumentsContract.Document.COLUMN_MIME_TYPE, document.mimeType);
+        row.add(DocumentsContract.Document.COLUMN_FLAGS, document.flags);
         // COLUMN_SIZE is required, but can be null
-        row.add(DocumentsContract.Document.COLUMN_SIZE, file.isDirectory() ? 0 : file.getLength());
+        row.add(DocumentsContract.Document.COLUMN_SIZE, document.size);
         // These columns are optional
-        row.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, file.isRoot() ? 0 : file.lastModified());
+        row.add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, document.lastModified);
         // Document.COLUMN_ICON can be a resource id identifying a custom icon. The system provides default icons
         // based on mime type
         // Document.COLUMN_SUMMARY is optional additional information about the file
@@ -401,8 +756,11 @@ public class UsbDocumentProvider extends DocumentsProvider {
         for (Map.Entry<String, UsbPartition> root : mRoots.entrySet()) {
             if (root.getValue().device.equals(usbDevice)) {
                 Log.d(TAG, "remove rootId " + root.getKey());
+                root.getValue().transferExecutor.shutdown();
+                root.getValue().index.cancel();
                 mRoots.remove(root.getKey());
-                mFileCache.evictAll();
+                mFileCache.remove(root.getKey() + ROOT_SEPERATOR);
+                invalidateChildListings(root.getKey() + ROOT_SEPERATOR);
                 notifyRootsChanged();
                 break;
             }
@@ -418,7 +776,23 @@ public class UsbDocumentProvider extends DocumentsProvider {
                 UsbPartition usbPartition = new UsbPartition();
                 usbPartition.device = device.getUsbDevice();
                 usbPartition.fileSystem = partition.getFileSystem();
-                mRoots.put(Integer.toString(partition.hashCode()), usbPartition);
+                // all partitions of the device share its I/O worker
+                usbPartition.transferExecutor = new TransferExecutor(device.getIoExecutor(),
+                        usbPartition.fileSystem.getChunkSize());
+                usbPartition.index = new FileNameIndex();
+                final String rootId = Integer.toString(partition.hashCode());
+                mRoots.put(rootId, usbPartition);
+
+                usbPartition.index.build(usbPartition.fileSystem.getRootDirectory(), usbPartition.transferExecutor,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                // the query is not part of the path, this notifies all searches of the root
+                                getContext().getContentResolver().notifyChange(
+                                        DocumentsContract.buildSearchDocumentsUri(DOCUMENTS_AUTHORITY, rootId, ""),
+                                        null, false);
+                            }
+                        });
 
                 Log.d(TAG, "found root " + partition.hashCode());
             }
@@ -452,6 +826,15 @@ public class UsbDocumentProvider extends DocumentsProvider {
         return documentId;
     }
 
+    private UsbPartition getPartitionForDocId(String documentId) throws FileNotFoundException {
+        String rootId = documentId.substring(0, documentId.indexOf(ROOT_SEPERATOR));
+        UsbPartition usbPartition = mRoots.get(rootId);
+        if (null == usbPartition) {
+            throw new FileNotFoundException("Missing root for " + rootId);
+        }
+        return usbPartition;
+    }
+
     private UsbFile getFileForDocId(String documentId) throws IOException {
         Log.d(TAG, "getFileForDocId() " + documentId);
 
@@ -0,0 +1,246 @@
+/*
+ * (C) Copyright 2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.mjdev.libaums.storageprovider.util;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps document IDs of the form {@code root:/path/to/file} to the files they
+ * describe.
+ * <p>
+ * The IDs are stored as a trie of their path segments, so the IDs of a
+ * directory and everything in it share the nodes of their common prefix.
+ * Looking up an ID takes one hash lookup per segment. A renamed or moved
+ * document keeps its subtree, a deleted document removes it, the rest of the
+ * trie is not affected.
+ * <p>
+ * The memory used by the nodes is estimated. If it exceeds the limit, the
+ * least recently used nodes are removed. Since looking up a node also uses
+ * all its ancestors, the least recently used node never has children.
+ */
+public class DocumentIdTrie {
+
+    public static final int DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Estimated size of a node without its segment: the node itself, the
+     * string and the entry in the map of its parent.
+     */
+    private static final int NODE_SIZE = 128;
+
+    private static final char ROOT_SEPARATOR = ':';
+    private static final String SEPARATOR = "/";
+
+    private static class Node {
+        String segment;
+        Node parent;
+        Map<String, Node> children;
+        UsbFile file;
+        /**
+         * Neighbours in the list of nodes, ordered by their last use.
+         */
+        Node newer;
+        Node older;
+
+        int getSize() {
+            return NODE_SIZE + 2 * segment.length();
+        }
+    }
+
+    private final int maxSize;
+    private int size = 0;
+    private final Node root = new Node();
+    /**
+     * Sentinel of the list of nodes, its newer neighbour is the least
+     * recently used node.
+     */
+    private final Node list = new Node();
+
+    public DocumentIdTrie() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize The maximum estimated memory used by the nodes in bytes.
+     */
+    public DocumentIdTrie(int maxSize) {
+        this.maxSize = maxSize;
+        list.newer = list;
+        list.older = list;
+    }
+
+    private static String[] split(String documentId) {
+        int rootEnd = documentId.indexOf(ROOT_SEPARATOR) + 1;
+        // keeps the empty segments, "r:/" would give no segment at all
+        String[] path = documentId.substring(rootEnd).split(SEPARATOR, -1);
+        // the root ID is the first segment
+        path[0] = documentId.substring(0, rootEnd);
+        return path;
+    }
+
+    /**
+     * @param create True to create the missing nodes.
+     * @return The node or null if it does not exist.
+     */
+    private Node find(String documentId, boolean create) {
+        Node node = root;
+        for (String segment : split(documentId)) {
+            if (segment.isEmpty() && node != root) {
+                continue;
+            }
+            Node child = node.children == null ? null : node.children.get(segment);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node();
+                child.segment = segment;
+                attach(node, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private void attach(Node parent, Node child) {
+        if (parent.children == null) {
+            parent.children = new HashMap<>();
+        }
+        parent.children.put(child.segment, child);
+        child.parent = parent;
+        if (child.newer == null) {
+            size += child.getSize();
+            child.newer = list;
+            child.older = list.older;
+            list.older.newer = child;
+            list.older = child;
+        }
+    }
+
+    private void unlink(Node node) {
+        node.older.newer = node.newer;
+        node.newer.older = node.older;
+        node.newer = null;
+        node.older = null;
+        size -= node.getSize();
+    }
+
+    /**
+     * Marks the node and its ancestors as most recently used, the ancestors
+     * are used after the node.
+     */
+    private void touch(Node node) {
+        for (; node != root; node = node.parent) {
+            node.older.newer = node.newer;
+            node.newer.older = node.older;
+            node.newer = list;
+            node.older = list.older;
+            list.older.newer = node;
+            list.older = node;
+        }
+    }
+
+    private void evict() {
+        while (size > maxSize && list.newer != list) {
+            Node eldest = list.newer;
+            if (eldest.children != null && !eldest.children.isEmpty()) {
+                // cannot happen, see touch
+                touch(eldest);
+                continue;
+            }
+            remove(eldest);
+        }
+    }
+
+    private void remove(Node node) {
+        if (node.children != null) {
+            for (Node child : node.children.values().toArray(new Node[node.children.size()])) {
+                remove(child);
+            }
+        }
+        node.parent.children.remove(node.segment);
+        unlink(node);
+    }
+
+    /**
+     * @return The file or null if the ID is unknown.
+     */
+    public synchronized UsbFile get(String documentId) {
+        Node node = find(documentId, false);
+        if (node == null || node.file == null) {
+            return null;
+        }
+        touch(node);
+        return node.file;
+    }
+
+    public synchronized void put(String documentId, UsbFile file) {
+        Node node = find(documentId, true);
+        node.file = file;
+        touch(node);
+        evict();
+    }
+
+    /**
+     * Removes the document and everything in it, eg. after it has been
+     * deleted or if the device has been detached.
+     */
+    public synchronized void remove(String documentId) {
+        Node node = find(documentId, false);
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    /**
+     * Moves the document and everything in it to a new ID, eg. after it has
+     * been renamed. The files stay valid.
+     */
+    public synchronized void move(String documentId, String newDocumentId) {
+        Node node = find(documentId, false);
+        if (node == null) {
+            return;
+        }
+
+        String[] path = split(newDocumentId);
+        Node newParent = find(newDocumentId.substring(0, newDocumentId.lastIndexOf(SEPARATOR)), true);
+        node.parent.children.remove(node.segment);
+        size -= node.getSize();
+        node.segment = path[path.length - 1];
+        size += node.getSize();
+
+        Node replaced = newParent.children == null ? null : newParent.children.get(node.segment);
+        if (replaced != null) {
+            remove(replaced);
+        }
+        attach(newParent, node);
+        touch(node);
+        evict();
+    }
+
+    public synchronized void clear() {
+        if (root.children != null) {
+            root.children.clear();
+        }
+        list.newer = list;
+        list.older = list;
+        size = 0;
+    }
+}
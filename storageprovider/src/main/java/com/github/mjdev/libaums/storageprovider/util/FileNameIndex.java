@@ -0,0 +1,575 @@
+/*
+ * (C) Copyright 2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.mjdev.libaums.storageprovider.util;
+
+import android.util.Log;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+import com.github.mjdev.libaums.fs.fat32.FatDirectory;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * In-memory index of the names of all files of a volume, used to search for
+ * files by a part of their name.
+ * <p>
+ * Every file gets a number. Its name is stored UTF-8 encoded in one shared
+ * byte array, its parent, its first child and its next sibling are stored in
+ * int arrays using this number, so a file costs a few dozen bytes and no
+ * objects. Children are found with an open addressing hash table over the
+ * parent and the name. The paths are only built for the results of a search.
+ * For every trigram, ie. three consecutive characters of a lower case name,
+ * the numbers of the files containing it are stored. A search only looks at
+ * the files of the rarest trigram of the query and checks whether their
+ * names contain the query.
+ * <p>
+ * The index is built by a crawl in the background, which reads one directory
+ * per task. Directories are crawled in the order of their first cluster, so
+ * the device mostly reads forward. Changes of the file system are applied
+ * with {@link #add}, {@link #rename} and {@link #remove}, which also take the
+ * old names out of the trigram lists. The space of old names is reclaimed
+ * when they make up half of the name array.
+ */
+public class FileNameIndex {
+
+    private static final String TAG = FileNameIndex.class.getSimpleName();
+
+    private static final String SEPARATOR = "/";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    /**
+     * The listener is notified after this number of crawled directories.
+     */
+    private static final int NOTIFY_INTERVAL = 100;
+    /**
+     * Unused bytes in the name array are only reclaimed above this size.
+     */
+    private static final int MIN_GARBAGE = 64 * 1024;
+
+    /**
+     * A growable list of file numbers.
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class PendingDirectory implements Comparable<PendingDirectory> {
+        final int id;
+        final UsbFile directory;
+        final long cluster;
+
+        PendingDirectory(int id, UsbFile directory) {
+            this.id = id;
+            this.directory = directory;
+            cluster = directory instanceof FatDirectory ?
+                    ((FatDirectory) directory).getStartCluster() : 0;
+        }
+
+        @Override
+        public int compareTo(PendingDirectory another) {
+            return cluster < another.cluster ? -1 : (cluster == another.cluster ? 0 : 1);
+        }
+    }
+
+    // the names of all files, UTF-8 encoded
+    private byte[] nameData = new byte[16 * 1024];
+    private int nameSize = 0;
+    private int garbage = 0;
+
+    private int[] nameOffsets = new int[1024];
+    private int[] nameLengths = new int[1024];
+    private int[] parents = new int[1024];
+    private int[] firstChildren = new int[1024];
+    private int[] nextSiblings = new int[1024];
+    private final BitSet removed = new BitSet();
+    private int count = 0;
+
+    /**
+     * Hash table of the numbers of all files except the root, by parent and
+     * name. 0 marks a free slot, since the root is nobody's child.
+     */
+    private int[] table = new int[2048];
+    private int tableSize = 0;
+
+    private final Map<Long, IntList> trigrams = new HashMap<>();
+
+    private final PriorityQueue<PendingDirectory> pending = new PriorityQueue<>();
+    private volatile boolean complete = false;
+    private volatile boolean cancelled = false;
+    private int crawled = 0;
+
+    public FileNameIndex() {
+        parents[ROOT] = NONE;
+        firstChildren[ROOT] = NONE;
+        nextSiblings[ROOT] = NONE;
+        count = 1;
+    }
+
+    /**
+     * Starts crawling the volume in the background.
+     *
+     * @param executor Executes the crawl, one task per directory.
+     * @param listener Called when more files have been indexed, may be null.
+     */
+    public void build(final UsbFile root, final Executor executor, final Runnable listener) {
+        synchronized (this) {
+            pending.add(new PendingDirectory(ROOT, root));
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+
+                PendingDirectory next;
+                synchronized (FileNameIndex.this) {
+                    next = pending.poll();
+                }
+                if (next != null) {
+                    crawl(next);
+                }
+
+                boolean done;
+                synchronized (FileNameIndex.this) {
+                    done = pending.isEmpty();
+                    crawled++;
+                }
+                if (done) {
+                    complete = true;
+                }
+                if ((done || crawled % NOTIFY_INTERVAL == 0) && listener != null) {
+                    listener.run();
+                }
+
+                if (!done) {
+                    try {
+                        executor.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        Log.w(TAG, "crawl stopped", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void crawl(PendingDirectory directory) {
+        UsbFile[] files;
+        try {
+            files = directory.directory.listFiles();
+        } catch (IOException e) {
+            Log.e(TAG, "listing directory failed", e);
+            return;
+        }
+
+        synchronized (this) {
+            if (removed.get(directory.id)) {
+                return;
+            }
+            for (UsbFile file : files) {
+                int id = addEntry(directory.id, file.getName());
+                if (file.isDirectory()) {
+                    pending.add(new PendingDirectory(id, file));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the crawl, eg. when the device has been detached.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return True if the whole volume has been indexed.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static long trigram(String name, int index) {
+        return ((long) name.charAt(index) << 32) | ((long) name.charAt(index + 1) << 16)
+                | name.charAt(index + 2);
+    }
+
+    private String getName(int id) {
+        return new String(nameData, nameOffsets[id], nameLengths[id], UTF8);
+    }
+
+    private int hash(int parent, byte[] data, int offset, int length) {
+        int h = parent;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + data[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int hash(int id) {
+        return hash(parents[id], nameData, nameOffsets[id], nameLengths[id]);
+    }
+
+    private boolean nameEquals(int id, byte[] name) {
+        if (nameLengths[id] != name.length) {
+            return false;
+        }
+        int offset = nameOffsets[id];
+        for (int i = 0; i < name.length; i++) {
+            if (nameData[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of the child with the given name, or -1.
+     */
+    private int findChild(int parent, byte[] name) {
+        int mask = table.length - 1;
+        for (int i = hash(parent, name, 0, name.length) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int id = table[i];
+            if (parents[id] == parent && nameEquals(id, name)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private void insertIntoTable(int id) {
+        if (2 * (tableSize + 1) > table.length) {
+            int[] old = table;
+            table = new int[old.length * 2];
+            tableSize = 0;
+            for (int oldId : old) {
+                if (oldId != 0) {
+                    insertIntoTable(oldId);
+                }
+            }
+        }
+
+        int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = id;
+        tableSize++;
+    }
+
+    private void removeFromTable(int id) {
+        int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while (table[i] != id) {
+            if (table[i] == 0) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = 0;
+        tableSize--;
+
+        // move the following entries of the probe sequence into the gap
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == 0) {
+                return;
+            }
+            int home = hash(table[j]) & mask;
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                table[i] = table[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private void setName(int id, byte[] name) {
+        if (nameSize + name.length > nameData.length) {
+            nameData = Arrays.copyOf(nameData, Math.max(nameData.length * 2, nameSize + name.length));
+        }
+        System.arraycopy(name, 0, nameData, nameSize, name.length);
+        nameOffsets[id] = nameSize;
+        nameLengths[id] = name.length;
+        nameSize += name.length;
+    }
+
+    private int addEntry(int parent, String name) {
+        byte[] encoded = name.getBytes(UTF8);
+        int existing = findChild(parent, encoded);
+        if (existing != NONE) {
+            return existing;
+        }
+
+        if (count == parents.length) {
+            int capacity = count * 2;
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        }
+        int id = count++;
+        setName(id, encoded);
+        parents[id] = parent;
+        firstChildren[id] = NONE;
+        nextSiblings[id] = firstChildren[parent];
+        firstChildren[parent] = id;
+        insertIntoTable(id);
+        addTrigrams(id, name);
+        return id;
+    }
+
+    private void addTrigrams(int id, String name) {
+        String normalized = normalize(name);
+        Set<Long> added = new HashSet<>();
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            long key = trigram(normalized, i);
+            if (!added.add(key)) {
+                continue;
+            }
+            IntList list = trigrams.get(key);
+            if (list == null) {
+                list = new IntList();
+                trigrams.put(key, list);
+            }
+            list.add(id);
+        }
+    }
+
+    private void removeTrigrams(int id, String name) {
+        String normalized = normalize(name);
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            long key = trigram(normalized, i);
+            IntList list = trigrams.get(key);
+            if (list == null) {
+                // a trigram which occurs twice in the name
+                continue;
+            }
+            list.remove(id);
+            if (list.size == 0) {
+                trigrams.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Copies the names of the indexed files to a new array, if the names of
+     * renamed and removed files take up too much space.
+     */
+    private void reclaimNames() {
+        if (garbage < MIN_GARBAGE || garbage < nameSize / 2) {
+            return;
+        }
+        byte[] data = new byte[Math.max(nameSize - garbage, 16 * 1024)];
+        int size = 0;
+        for (int id = ROOT + 1; id < count; id++) {
+            if (removed.get(id)) {
+                continue;
+            }
+            System.arraycopy(nameData, nameOffsets[id], data, size, nameLengths[id]);
+            nameOffsets[id] = size;
+            size += nameLengths[id];
+        }
+        nameData = data;
+        nameSize = size;
+        garbage = 0;
+    }
+
+    /**
+     * @param path The path relative to the root of the volume, eg. "/dir/file".
+     * @return The number of the file, or -1 if it is not indexed.
+     */
+    private int find(String path) {
+        int id = ROOT;
+        for (String name : path.split(SEPARATOR)) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            id = findChild(id, name.getBytes(UTF8));
+            if (id == NONE) {
+                return NONE;
+            }
+        }
+        return id;
+    }
+
+    private String getPath(int id) {
+        StringBuilder builder = new StringBuilder();
+        while (id != ROOT) {
+            builder.insert(0, getName(id)).insert(0, SEPARATOR);
+            id = parents[id];
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Adds a new file. Nothing happens if the parent has not been indexed
+     * yet, the crawl will find the file then.
+     *
+     * @param parentPath The path of the parent directory relative to the root.
+     */
+    public synchronized void add(String parentPath, String name) {
+        int parent = find(parentPath);
+        if (parent < 0) {
+            return;
+        }
+        addEntry(parent, name);
+    }
+
+    /**
+     * Renames a file, its children stay in the index.
+     *
+     * @param path The old path of the file relative to the root.
+     */
+    public synchronized void rename(String path, String newName) {
+        int id = find(path);
+        if (id <= ROOT) {
+            return;
+        }
+        removeFromTable(id);
+        removeTrigrams(id, getName(id));
+        garbage += nameLengths[id];
+        setName(id, newName.getBytes(UTF8));
+        insertIntoTable(id);
+        addTrigrams(id, newName);
+        reclaimNames();
+    }
+
+    /**
+     * Removes a file and, if it is a directory, everything in it.
+     *
+     * @param path The path of the file relative to the root.
+     */
+    public synchronized void remove(String path) {
+        int id = find(path);
+        if (id <= ROOT) {
+            return;
+        }
+
+        // unlink it from the children of its parent
+        int parent = parents[id];
+        if (firstChildren[parent] == id) {
+            firstChildren[parent] = nextSiblings[id];
+        } else {
+            int sibling = firstChildren[parent];
+            while (nextSiblings[sibling] != id) {
+                sibling = nextSiblings[sibling];
+            }
+            nextSiblings[sibling] = nextSiblings[id];
+        }
+
+        removeTree(id);
+        reclaimNames();
+    }
+
+    private void removeTree(int id) {
+        for (int child = firstChildren[id]; child != NONE; child = nextSiblings[child]) {
+            removeTree(child);
+        }
+        removed.set(id);
+        removeFromTable(id);
+        removeTrigrams(id, getName(id));
+        garbage += nameLengths[id];
+        nameLengths[id] = 0;
+        firstChildren[id] = NONE;
+    }
+
+    /**
+     * Searches for files whose name contains the query, ignoring the case.
+     *
+     * @param maxResults The maximum number of results.
+     * @return The paths of the files relative to the root, eg. "/dir/file".
+     */
+    public synchronized List<String> search(String query, int maxResults) {
+        String normalized = normalize(query);
+        List<String> result = new ArrayList<>();
+
+        if (normalized.length() < 3) {
+            for (int id = ROOT + 1; id < count && result.size() < maxResults; id++) {
+                if (matches(id, normalized)) {
+                    result.add(getPath(id));
+                }
+            }
+            return result;
+        }
+
+        // the rarest trigram has the fewest candidates
+        IntList candidates = null;
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            IntList list = trigrams.get(trigram(normalized, i));
+            if (list == null) {
+                return result;
+            }
+            if (candidates == null || list.size < candidates.size) {
+                candidates = list;
+            }
+        }
+
+        for (int i = 0; i < candidates.size && result.size() < maxResults; i++) {
+            int id = candidates.values[i];
+            if (matches(id, normalized)) {
+                result.add(getPath(id));
+            }
+        }
+        return result;
+    }
+
+    private boolean matches(int id, String normalizedQuery) {
+        return !removed.get(id) && normalize(getName(id)).contains(normalizedQuery);
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * (C) Copyright 2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.mjdev.libaums.storageprovider.util;
+
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates thumbnails of images and caches them as files on internal storage.
+ * <p>
+ * If the image is a JPEG with a thumbnail embedded in its EXIF data, only the
+ * beginning of the file is read and the embedded thumbnail is stored as it
+ * is. Otherwise the image is decoded with a sample size which keeps the
+ * bitmap close to the requested size.
+ * <p>
+ * The thumbnails are created by a small pool of threads, which read the files
+ * on the device thread of their {@link TransferExecutor} in chunks, so that
+ * they take turns with the transfers of the device. Requests are served
+ * newest first, because while the user scrolls the latest requests are for
+ * the items which are visible. Cached thumbnails are identified by the
+ * document ID, the modification time and the length of the file, so changed
+ * files get a new thumbnail.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+    public static final int THREADS = 2;
+    public static final long MAX_CACHE_SIZE = 20 * 1024 * 1024;
+
+    /**
+     * The EXIF data is stored in the APP1 segment, which is at most 64 KiB.
+     */
+    private static final int EXIF_READ_SIZE = 64 * 1024 + 4;
+    private static final int JPEG_QUALITY = 85;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private class Request extends FutureTask<File> {
+        final long number = sequence.incrementAndGet();
+
+        Request(Callable<File> callable) {
+            super(callable);
+        }
+    }
+
+    /**
+     * @param directory The directory the thumbnails are stored in.
+     */
+    public ThumbnailCache(File directory) {
+        this.directory = directory;
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(16, new Comparator<Runnable>() {
+                    @Override
+                    public int compare(Runnable lhs, Runnable rhs) {
+                        long left = ((Request) lhs).number;
+                        long right = ((Request) rhs).number;
+                        // newest first
+                        return left > right ? -1 : (left == right ? 0 : 1);
+                    }
+                }), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "USB thumbnail");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the thumbnail of the file, creates it if it is not cached.
+     * Blocks until the thumbnail is available.
+     *
+     * @param size The requested size of the thumbnail.
+     * @param signal Cancels the request, may be null.
+     * @param device The executor of the device the file is read on.
+     */
+    public AssetFileDescriptor openThumbnail(String documentId, UsbFile file, Point size,
+                                             CancellationSignal signal, TransferExecutor device)
+            throws FileNotFoundException {
+        File thumbnail = new File(directory, getKey(documentId, file) + ".jpg");
+        for (int attempt = 1; ; attempt++) {
+            if (!thumbnail.exists()) {
+                createThumbnail(documentId, file, size, thumbnail, signal, device);
+            }
+
+            try {
+                ParcelFileDescriptor fd = ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY);
+                return new AssetFileDescriptor(fd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+            } catch (FileNotFoundException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                // another request has trimmed the cache in the meantime
+                Log.d(TAG, "thumbnail of " + documentId + " has been removed, creating it again");
+            }
+        }
+    }
+
+    /**
+     * Creates the thumbnail on the thread pool and waits until it is stored.
+     */
+    private void createThumbnail(String documentId, final UsbFile file, final Point size,
+                                 final File thumbnail, CancellationSignal signal,
+                                 final TransferExecutor device) throws FileNotFoundException {
+        final Request request = new Request(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                createThumbnail(file, size, thumbnail, device);
+                return thumbnail;
+            }
+        });
+
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    request.cancel(false);
+                }
+            });
+        }
+
+        executor.execute(request);
+        try {
+            request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } catch (CancellationException e) {
+            throw new OperationCanceledException();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "creating thumbnail failed", e.getCause());
+            throw new FileNotFoundException("No thumbnail for " + documentId);
+        }
+    }
+
+    /**
+     * The document ID is hashed with SHA-1, so different documents do not
+     * share a thumbnail.
+     */
+    private static String getKey(String documentId, UsbFile file) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(documentId.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.append('-').append(Long.toHexString(file.lastModified()))
+                .append('-').append(Long.toHexString(file.getLength())).toString();
+    }
+
+    private void createThumbnail(UsbFile file, Point size, File thumbnail, TransferExecutor device)
+            throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        File temporary = File.createTempFile("thumbnail", TEMP_SUFFIX, directory);
+        OutputStream out = new FileOutputStream(temporary);
+        try {
+            byte[] embedded = readExifThumbnail(file, device);
+            if (embedded != null) {
+                out.write(embedded);
+            } else {
+                Bitmap bitmap = decodeSampled(file, size, device);
+                if (bitmap == null) {
+                    throw new IOException("Could not decode " + file.getName());
+                }
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                bitmap.recycle();
+            }
+        } catch (IOException e) {
+            out.close();
+            temporary.delete();
+            throw e;
+        } finally {
+            out.close();
+        }
+
+        if (!temporary.renameTo(thumbnail)) {
+            throw new IOException("Could not store thumbnail " + thumbnail);
+        }
+        trim();
+    }
+
+    /**
+     * Reads the thumbnail from the EXIF data of a JPEG file.
+     *
+     * @return The JPEG data of the thumbnail, or null if there is none.
+     */
+    private static byte[] readExifThumbnail(final UsbFile file, TransferExecutor device) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(EXIF_READ_SIZE, file.getLength()));
+        device.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                file.read(0, buffer);
+                return null;
+            }
+        });
+        buffer.flip();
+
+        // SOI marker
+        if (buffer.remaining() < 4 || (buffer.getShort() & 0xffff) != 0xffd8) {
+            return null;
+        }
+
+        // find the APP1 segment among the first segments
+        while (buffer.remaining() >= 4) {
+            int marker = buffer.getShort() & 0xffff;
+            int length = buffer.getShort() & 0xffff;
+            if (marker == 0xffe1) {
+                int start = buffer.position();
+                if (length < 2 || start + length - 2 > buffer.limit()) {
+                    return null;
+                }
+                buffer.limit(start + length - 2);
+                return readExifThumbnail(buffer.slice());
+            }
+            if ((marker & 0xfff0) != 0xffe0 || buffer.remaining() < length - 2) {
+                // only APPn segments come before the EXIF data
+                return null;
+            }
+            buffer.position(buffer.position() + length - 2);
+        }
+        return null;
+    }
+
+    private static byte[] readExifThumbnail(ByteBuffer app1) {
+        byte[] header = new byte[6];
+        if (app1.remaining() < 14) {
+            return null;
+        }
+        app1.get(header);
+        if (!Arrays.equals(header, new byte[]{'E', 'x', 'i', 'f', 0, 0})) {
+            return null;
+        }
+
+        // offsets are relative to the TIFF header
+        ByteBuffer tiff = app1.slice();
+        int byteOrder = tiff.getShort() & 0xffff;
+        if (byteOrder == 0x4949) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != 0x4d4d) {
+            return null;
+        }
+
+        try {
+            // skip IFD0 to get to IFD1, which describes the thumbnail
+            int ifd0 = tiff.getInt(4);
+            int entries = tiff.getShort(ifd0) & 0xffff;
+            int ifd1 = tiff.getInt(ifd0 + 2 + entries * 12);
+            if (ifd1 == 0) {
+                return null;
+            }
+
+            int offset = -1;
+            int length = -1;
+            entries = tiff.getShort(ifd1) & 0xffff;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd1 + 2 + i * 12;
+                int tag = tiff.getShort(entry) & 0xffff;
+                if (tag == 0x0201) {
+                    offset = tiff.getInt(entry + 8);
+                } else if (tag == 0x0202) {
+                    length = tiff.getInt(entry + 8);
+                }
+            }
+
+            if (offset <= 0 || length <= 0 || (long) offset + length > tiff.limit()) {
+                return null;
+            }
+            byte[] thumbnail = new byte[length];
+            tiff.position(offset);
+            tiff.get(thumbnail);
+            return thumbnail;
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "invalid EXIF data", e);
+            return null;
+        }
+    }
+
+    private static Bitmap decodeSampled(UsbFile file, Point size, TransferExecutor device) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        // only the header is read to get the size
+        InputStream in = new BufferedInputStream(new DeviceInputStream(file, device));
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+
+        int width = Math.max(size.x, 1);
+        int height = Math.max(size.y, 1);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width
+                && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        in = new BufferedInputStream(new DeviceInputStream(file, device), 64 * 1024);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a file on the device thread, one call per read of the buffered
+     * stream around it.
+     */
+    private static class DeviceInputStream extends InputStream {
+        private final UsbFile file;
+        private final TransferExecutor device;
+        private long offset = 0;
+
+        DeviceInputStream(UsbFile file, TransferExecutor device) {
+            this.file = file;
+            this.device = device;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = file.getLength() - offset;
+            if (remaining <= 0) {
+                return -1;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+            final long position = offset;
+            device.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    file.read(position, buffer);
+                    return null;
+                }
+            });
+            int read = buffer.position() - off;
+            offset += read;
+            return read;
+        }
+    }
+
+    /**
+     * Removes the oldest thumbnails if the cache is too big. Thumbnails which
+     * are still being written are left alone.
+     */
+    private synchronized void trim() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !file.getName().endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (total <= MAX_CACHE_SIZE) {
+                break;
+            }
+            total -= file.length();
+            if (!file.delete()) {
+                Log.w(TAG, "could not delete " + file);
+            }
+        }
+    }
+}
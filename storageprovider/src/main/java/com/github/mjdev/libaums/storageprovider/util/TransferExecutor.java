@@ -0,0 +1,538 @@
+/*
+ * (C) Copyright 2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.mjdev.libaums.storageprovider.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transfers files of one device through pipes to clients of the document
+ * provider.
+ * <p>
+ * All accesses to the device are done by the I/O worker of the device, see
+ * {@link com.github.mjdev.libaums.UsbMassStorageDevice#getIoExecutor()},
+ * because the device can only process one command at a time anyway. The
+ * executors of all partitions of a device share this worker. Every transfer
+ * reads or writes one buffer per task, so concurrent transfers take turns.
+ * The buffers are a multiple of the chunk size of the file system.
+ * <p>
+ * For every transfer a few buffers are read ahead while the client consumes
+ * the pipe. When all buffers are full, no more tasks are scheduled for this
+ * transfer until the client has taken one, so a slow client neither blocks
+ * the device nor causes unbounded memory use. Every pipe is served by a
+ * pooled thread, which mostly waits for the client. At most
+ * {@link #MAX_PIPE_THREADS} pipes are served at once, further transfers wait
+ * in a queue until a thread is free.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class TransferExecutor implements Executor {
+
+    private static final String TAG = TransferExecutor.class.getSimpleName();
+
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+    public static final int DEFAULT_READ_AHEAD = 4;
+    public static final int MAX_PIPE_THREADS = 8;
+
+    /**
+     * Marks the end of a transfer in the queue of full buffers.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final int bufferSize;
+    private final int readAhead;
+    private final Executor deviceExecutor;
+    private final ExecutorService pipeExecutor;
+    /**
+     * The worker of the device is shut down with the device, tasks of this
+     * executor which are still queued there fail after shutdown().
+     */
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param deviceExecutor The I/O worker of the device.
+     * @param chunkSize The chunk size of the file system, the buffers are a
+     *                  multiple of it.
+     */
+    public TransferExecutor(Executor deviceExecutor, int chunkSize) {
+        this(deviceExecutor, chunkSize, DEFAULT_READ_AHEAD);
+    }
+
+    public TransferExecutor(Executor deviceExecutor, int chunkSize, int readAhead) {
+        this.deviceExecutor = deviceExecutor;
+        bufferSize = Math.max(DEFAULT_BUFFER_SIZE / chunkSize, 1) * chunkSize;
+        this.readAhead = readAhead;
+        ThreadPoolExecutor pipes = new ThreadPoolExecutor(MAX_PIPE_THREADS, MAX_PIPE_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), createThreadFactory("USB pipe transfer"));
+        pipes.allowCoreThreadTimeOut(true);
+        pipeExecutor = pipes;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Runs a task which accesses the device on the device thread, in between
+     * the buffers of the transfers.
+     */
+    @Override
+    public void execute(final Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Transfer executor has been shut down");
+        }
+        deviceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!shutdown) {
+                    task.run();
+                } else if (task instanceof Future) {
+                    ((Future<?>) task).cancel(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the device thread and waits for its result, for callers
+     * which have to access the device synchronously. Must not be called on
+     * the device thread.
+     */
+    public <T> T call(Callable<T> callable) throws IOException {
+        FutureTask<T> task = new FutureTask<>(callable);
+        try {
+            execute(task);
+            return task.get();
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Transfer executor has been shut down", e);
+        } catch (CancellationException e) {
+            throw new IOException("Transfer executor has been shut down", e);
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            throw new InterruptedIOException("Interrupted while waiting for the device");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops all transfers, eg. when the device has been detached.
+     */
+    public void shutdown() {
+        shutdown = true;
+        pipeExecutor.shutdownNow();
+    }
+
+    /**
+     * Creates a pipe the client can read the file from.
+     *
+     * @param signal Cancels the transfer, may be null.
+     */
+    public ParcelFileDescriptor pipeFrom(UsbFile file, CancellationSignal signal) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createReliablePipe();
+        new Download(file, pipe[1], signal).start();
+        return pipe[0];
+    }
+
+    /**
+     * Creates a pipe the client can write the file to.
+     *
+     * @param signal Cancels the transfer, may be null.
+     * @param closedListener Called on the device thread after the file has
+     *                       been closed, may be null.
+     */
+    public ParcelFileDescriptor pipeTo(UsbFile file, CancellationSignal signal,
+                                       Runnable closedListener) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createReliablePipe();
+        new Upload(file, pipe[0], signal, closedListener).start();
+        return pipe[1];
+    }
+
+    /**
+     * Common part of downloads and uploads. Buffers circulate between a free
+     * and a full queue, the device side and the pipe side each take from one
+     * and put into the other.
+     */
+    private abstract class Transfer implements CancellationSignal.OnCancelListener {
+        final UsbFile file;
+        final ParcelFileDescriptor fd;
+        final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(readAhead);
+        final BlockingQueue<ByteBuffer> fullBuffers = new ArrayBlockingQueue<>(readAhead + 1);
+        long offset = 0;
+        volatile boolean cancelled = false;
+        volatile IOException error;
+        /**
+         * True while a device task is queued or running for this transfer.
+         */
+        private boolean deviceTaskScheduled = false;
+        private boolean pipeClosed = false;
+
+        private final Runnable deviceTask = new Runnable() {
+            @Override
+            public void run() {
+                boolean again;
+                try {
+                    if (shutdown) {
+                        throw new IOException("Transfer executor has been shut down");
+                    }
+                    again = !cancelled && error == null && transferBuffer();
+                } catch (IOException e) {
+                    Log.e(TAG, "device transfer failed", e);
+                    error = e;
+                    again = false;
+                }
+
+                synchronized (Transfer.this) {
+                    deviceTaskScheduled = false;
+                }
+                // the pipe side may have queued a buffer while the flag was still set
+                if (again || (!cancelled && error == null && hasDeviceWork())) {
+                    scheduleDeviceTask();
+                } else {
+                    onDeviceFinished();
+                }
+            }
+        };
+
+        Transfer(UsbFile file, ParcelFileDescriptor fd, CancellationSignal signal) {
+            this.file = file;
+            this.fd = fd;
+            for (int i = 0; i < readAhead; i++) {
+                freeBuffers.add(ByteBuffer.allocate(bufferSize));
+            }
+            if (signal != null) {
+                signal.setOnCancelListener(this);
+            }
+        }
+
+        void start() {
+            pipeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transferPipe();
+                    } catch (IOException e) {
+                        Log.e(TAG, "pipe transfer failed", e);
+                        if (error == null) {
+                            error = e;
+                        }
+                        cancelled = true;
+                    } catch (InterruptedException e) {
+                        cancelled = true;
+                    }
+                    onPipeFinished();
+                }
+            });
+        }
+
+        /**
+         * Schedules the next device task, if none is pending.
+         */
+        void scheduleDeviceTask() {
+            synchronized (this) {
+                if (deviceTaskScheduled) {
+                    return;
+                }
+                deviceTaskScheduled = true;
+            }
+            try {
+                // runs even after shutdown, so that the transfer sees the error and finishes
+                deviceExecutor.execute(deviceTask);
+            } catch (RejectedExecutionException e) {
+                error = new IOException("Transfer executor has been shut down");
+                cancelled = true;
+                onDeviceFinished();
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            cancelled = true;
+            // wake up the pipe side
+            fullBuffers.offer(END);
+        }
+
+        /**
+         * Transfers one buffer between the device and the queues.
+         *
+         * @return True if the device task shall be scheduled again.
+         */
+        abstract boolean transferBuffer() throws IOException;
+
+        /**
+         * @return True if a buffer is waiting for the device side.
+         */
+        abstract boolean hasDeviceWork();
+
+        abstract void onDeviceFinished();
+
+        abstract void transferPipe() throws IOException, InterruptedException;
+
+        abstract void onPipeFinished();
+
+        void closePipe() {
+            synchronized (this) {
+                if (pipeClosed) {
+                    return;
+                }
+                pipeClosed = true;
+            }
+
+            try {
+                if (error != null) {
+                    fd.closeWithError(error.getMessage());
+                } else if (cancelled) {
+                    fd.closeWithError("Transfer cancelled");
+                } else {
+                    fd.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "closing pipe failed", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the file on the device thread and writes it to the pipe.
+     */
+    private class Download extends Transfer {
+
+        Download(UsbFile file, ParcelFileDescriptor fd, CancellationSignal signal) {
+            super(file, fd, signal);
+        }
+
+        @Override
+        void start() {
+            super.start();
+            scheduleDeviceTask();
+        }
+
+        @Override
+        boolean transferBuffer() throws IOException {
+            long length = file.getLength();
+            if (offset >= length) {
+                return false;
+            }
+
+            ByteBuffer buffer = freeBuffers.poll();
+            if (buffer == null) {
+                // rescheduled by the pipe side when a buffer is free
+                return false;
+            }
+
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - offset));
+            file.read(offset, buffer);
+            offset += buffer.limit();
+            buffer.flip();
+            fullBuffers.add(buffer);
+            return true;
+        }
+
+        @Override
+        boolean hasDeviceWork() {
+            return !freeBuffers.isEmpty() && offset < file.getLength();
+        }
+
+        @Override
+        void onDeviceFinished() {
+            if (cancelled || error != null || offset >= file.getLength()) {
+                fullBuffers.offer(END);
+            }
+        }
+
+        @Override
+        void transferPipe() throws IOException, InterruptedException {
+            OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd) {
+                @Override
+                public void close() {
+                    // the descriptor is closed by closePipe
+                }
+            };
+
+            while (true) {
+                ByteBuffer buffer = fullBuffers.take();
+                if (buffer == END || cancelled) {
+                    break;
+                }
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                freeBuffers.add(buffer);
+                scheduleDeviceTask();
+            }
+        }
+
+        @Override
+        void onPipeFinished() {
+            closePipe();
+        }
+    }
+
+    /**
+     * Reads the pipe and writes it to the file on the device thread.
+     */
+    private class Upload extends Transfer {
+        /**
+         * Put into the free buffers to stop the pipe side.
+         */
+        private final ByteBuffer stop = ByteBuffer.allocate(0);
+        private final Runnable closedListener;
+        private boolean closed = false;
+        private boolean listenerCalled = false;
+
+        Upload(UsbFile file, ParcelFileDescriptor fd, CancellationSignal signal,
+               Runnable closedListener) {
+            super(file, fd, signal);
+            this.closedListener = closedListener;
+        }
+
+        @Override
+        public void onCancel() {
+            cancelled = true;
+            freeBuffers.offer(stop);
+            scheduleDeviceTask();
+        }
+
+        @Override
+        boolean transferBuffer() throws IOException {
+            ByteBuffer buffer = fullBuffers.poll();
+            if (buffer == null) {
+                // rescheduled by the pipe side when a buffer is full
+                return false;
+            }
+            if (buffer == END) {
+                closed = true;
+                file.close();
+                return false;
+            }
+
+            int size = buffer.remaining();
+            file.write(offset, buffer);
+            offset += size;
+            buffer.clear();
+            freeBuffers.add(buffer);
+            return true;
+        }
+
+        @Override
+        boolean hasDeviceWork() {
+            return !closed && !fullBuffers.isEmpty();
+        }
+
+        @Override
+        void onDeviceFinished() {
+            if (closed) {
+                // the client sees errors of the device only if the pipe is closed afterwards
+                closePipe();
+            } else if (error != null || cancelled) {
+                closed = true;
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "closing file failed", e);
+                }
+                freeBuffers.offer(stop);
+                closePipe();
+            } else {
+                return;
+            }
+            if (closedListener != null && !listenerCalled) {
+                listenerCalled = true;
+                closedListener.run();
+            }
+        }
+
+        @Override
+        void transferPipe() throws IOException, InterruptedException {
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fd) {
+                @Override
+                public void close() {
+                    // the descriptor is closed by closePipe
+                }
+            };
+
+            while (!cancelled && error == null) {
+                ByteBuffer buffer = freeBuffers.take();
+                if (buffer == stop) {
+                    break;
+                }
+
+                int read = 0;
+                int count;
+                while (read < buffer.capacity()
+                        && (count = in.read(buffer.array(), read, buffer.capacity() - read)) > 0) {
+                    read += count;
+                }
+                buffer.limit(read);
+                if (read > 0) {
+                    fullBuffers.add(buffer);
+                    scheduleDeviceTask();
+                }
+                if (read < buffer.capacity()) {
+                    // end of the pipe
+                    break;
+                }
+            }
+        }
+
+        @Override
+        void onPipeFinished() {
+            if (!cancelled && error == null) {
+                fullBuffers.add(END);
+            }
+            scheduleDeviceTask();
+        }
+    }
+}
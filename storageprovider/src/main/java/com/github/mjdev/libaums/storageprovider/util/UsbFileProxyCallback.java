@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright 2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.mjdev.libaums.storageprovider.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.ProxyFileDescriptorCallback;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Backs a seekable file descriptor, created with
+ * {@link android.os.storage.StorageManager#openProxyFileDescriptor}, by a
+ * {@link UsbFile}.
+ * <p>
+ * Every read and write of the client is passed to the positional read and
+ * write methods of the file, so only the bytes the client touches are
+ * transferred. Reads are served from a small page cache, because clients
+ * tend to issue many small reads close to each other. Writes go directly to
+ * the file and invalidate the affected pages. The device is accessed on the
+ * device thread of a {@link TransferExecutor}, in turn with the transfers of
+ * the device.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class UsbFileProxyCallback extends ProxyFileDescriptorCallback {
+
+    private static final String TAG = UsbFileProxyCallback.class.getSimpleName();
+
+    /**
+     * Maximum amount of memory used by the pages of one descriptor.
+     */
+    public static final int MAX_CACHE_SIZE = 1024 * 1024;
+
+    private static class Page {
+        byte[] data;
+        int length;
+    }
+
+    private final UsbFile file;
+    private final TransferExecutor device;
+    private final boolean writable;
+    private final int pageSize;
+    private final int maxPages;
+    private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private Runnable closedListener;
+
+    /**
+     * @param file The file to read and write.
+     * @param device The executor of the device of the file.
+     * @param writable True if the descriptor has been opened for writing, the
+     *                 file is closed when the descriptor is released then.
+     * @param pageSize The size of the pages in the cache, should be the chunk
+     *                 size of the file system.
+     */
+    public UsbFileProxyCallback(UsbFile file, TransferExecutor device, boolean writable, int pageSize) {
+        this.file = file;
+        this.device = device;
+        this.writable = writable;
+        this.pageSize = pageSize;
+        maxPages = Math.max(MAX_CACHE_SIZE / pageSize, 1);
+    }
+
+    @Override
+    public long onGetSize() throws ErrnoException {
+        return file.getLength();
+    }
+
+    private Page getPage(long index, long length) throws IOException {
+        Page page = pages.get(index);
+        if (page != null) {
+            return page;
+        }
+
+        if (pages.size() >= maxPages) {
+            // reuse the buffer of the least recently used page
+            Iterator<Page> iterator = pages.values().iterator();
+            page = iterator.next();
+            iterator.remove();
+        } else {
+            page = new Page();
+            page.data = new byte[pageSize];
+        }
+
+        final long offset = index * pageSize;
+        page.length = (int) Math.min(pageSize, length - offset);
+        final ByteBuffer buffer = ByteBuffer.wrap(page.data, 0, page.length);
+        device.call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                file.read(offset, buffer);
+                return null;
+            }
+        });
+        pages.put(index, page);
+        return page;
+    }
+
+    @Override
+    public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+        try {
+            long length = file.getLength();
+            int read = 0;
+            while (read < size && offset < length) {
+                long index = offset / pageSize;
+                Page page = getPage(index, length);
+                int pageOffset = (int) (offset - index * pageSize);
+                int count = Math.min(size - read, page.length - pageOffset);
+                System.arraycopy(page.data, pageOffset, data, read, count);
+                read += count;
+                offset += count;
+            }
+            return read;
+        } catch (IOException e) {
+            Log.e(TAG, "reading failed", e);
+            throw new ErrnoException("onRead", OsConstants.EIO);
+        }
+    }
+
+    @Override
+    public int onWrite(final long offset, int size, byte[] data) throws ErrnoException {
+        if (!writable) {
+            throw new ErrnoException("onWrite", OsConstants.EBADF);
+        }
+
+        try {
+            long length = file.getLength();
+            final ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+            device.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    file.write(offset, buffer);
+                    return null;
+                }
+            });
+
+            long first = offset / pageSize;
+            long last = (offset + size - 1) / pageSize;
+            if (offset > length) {
+                // the last page has been filled up to the start of the write
+                first = length / pageSize;
+            }
+            for (Iterator<Map.Entry<Long, Page>> it = pages.entrySet().iterator(); it.hasNext(); ) {
+                long index = it.next().getKey();
+                if (index >= first && index <= last) {
+                    it.remove();
+                }
+            }
+            return size;
+        } catch (IOException e) {
+            Log.e(TAG, "writing failed", e);
+            throw new ErrnoException("onWrite", OsConstants.EIO);
+        }
+    }
+
+    @Override
+    public void onFsync() throws ErrnoException {
+        if (!writable) {
+            return;
+        }
+
+        try {
+            device.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    file.flush();
+                    return null;
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "flushing failed", e);
+            throw new ErrnoException("onFsync", OsConstants.EIO);
+        }
+    }
+
+    /**
+     * Sets a listener which is called after a writable descriptor has been
+     * released and the file has been closed, eg. to update cached
+     * attributes of the file.
+     */
+    public void setClosedListener(Runnable listener) {
+        closedListener = listener;
+    }
+
+    @Override
+    public void onRelease() {
+        pages.clear();
+        if (!writable) {
+            return;
+        }
+
+        try {
+            device.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    file.close();
+                    return null;
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "closing failed", e);
+        }
+        if (closedListener != null) {
+            closedListener.run();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * (C) Copyright 2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.mjdev.libaums.storageprovider.util;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DocumentIdTrieTest {
+
+    /**
+     * Estimated size of a node whose segment is a single character, see
+     * {@link DocumentIdTrie}.
+     */
+    private static final int NODE_SIZE = 128 + 2;
+    /**
+     * Estimated size of the node of the root ID "r:".
+     */
+    private static final int ROOT_SIZE = 128 + 4;
+
+    /**
+     * @return A file which only knows its name, the trie never uses it.
+     */
+    private static UsbFile file(final String name) {
+        return (UsbFile) Proxy.newProxyInstance(UsbFile.class.getClassLoader(),
+                new Class<?>[] { UsbFile.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("toString")) {
+                            return name;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void getReturnsPutFile() {
+        DocumentIdTrie trie = new DocumentIdTrie();
+        UsbFile root = file("root");
+        UsbFile child = file("child");
+        trie.put("r:", root);
+        trie.put("r:/dir/child", child);
+
+        assertSame(root, trie.get("r:"));
+        assertSame(root, trie.get("r:/"));
+        assertSame(child, trie.get("r:/dir/child"));
+        // only the nodes of the path, no file
+        assertNull(trie.get("r:/dir"));
+        assertNull(trie.get("r:/dir/other"));
+        assertNull(trie.get("other:/dir/child"));
+    }
+
+    @Test
+    public void removeRemovesSubtree() {
+        DocumentIdTrie trie = new DocumentIdTrie();
+        UsbFile other = file("other");
+        trie.put("r:/dir", file("dir"));
+        trie.put("r:/dir/child", file("child"));
+        trie.put("r:/other", other);
+        trie.remove("r:/dir");
+
+        assertNull(trie.get("r:/dir"));
+        assertNull(trie.get("r:/dir/child"));
+        assertSame(other, trie.get("r:/other"));
+    }
+
+    @Test
+    public void moveKeepsSubtree() {
+        DocumentIdTrie trie = new DocumentIdTrie();
+        UsbFile dir = file("dir");
+        UsbFile child = file("child");
+        trie.put("r:/dir", dir);
+        trie.put("r:/dir/child", child);
+        trie.move("r:/dir", "r:/target/renamed");
+
+        assertNull(trie.get("r:/dir"));
+        assertNull(trie.get("r:/dir/child"));
+        assertSame(dir, trie.get("r:/target/renamed"));
+        assertSame(child, trie.get("r:/target/renamed/child"));
+    }
+
+    @Test
+    public void moveReplacesTarget() {
+        DocumentIdTrie trie = new DocumentIdTrie();
+        UsbFile source = file("source");
+        trie.put("r:/source", source);
+        trie.put("r:/target", file("target"));
+        trie.put("r:/target/child", file("child"));
+        trie.move("r:/source", "r:/target");
+
+        assertSame(source, trie.get("r:/target"));
+        assertNull(trie.get("r:/target/child"));
+        assertNull(trie.get("r:/source"));
+    }
+
+    @Test
+    public void moveOfUnknownIdIsIgnored() {
+        DocumentIdTrie trie = new DocumentIdTrie();
+        trie.move("r:/missing", "r:/target");
+
+        assertNull(trie.get("r:/target"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        // room for the root and two files
+        DocumentIdTrie trie = new DocumentIdTrie(ROOT_SIZE + 2 * NODE_SIZE);
+        UsbFile a = file("a");
+        UsbFile c = file("c");
+        trie.put("r:/a", a);
+        trie.put("r:/b", file("b"));
+        trie.get("r:/a");
+        trie.put("r:/c", c);
+
+        assertNull(trie.get("r:/b"));
+        assertSame(a, trie.get("r:/a"));
+        assertSame(c, trie.get("r:/c"));
+    }
+
+    @Test
+    public void usingNodeUsesItsAncestors() {
+        // room for the root and three files
+        DocumentIdTrie trie = new DocumentIdTrie(ROOT_SIZE + 3 * NODE_SIZE);
+        UsbFile dir = file("dir");
+        UsbFile child = file("child");
+        UsbFile g = file("g");
+        trie.put("r:/d", dir);
+        trie.put("r:/x", file("x"));
+        // uses the directory after the other file
+        trie.put("r:/d/e", child);
+        trie.put("r:/g", g);
+
+        assertNull(trie.get("r:/x"));
+        assertSame(dir, trie.get("r:/d"));
+        assertSame(child, trie.get("r:/d/e"));
+        assertSame(g, trie.get("r:/g"));
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        DocumentIdTrie trie = new DocumentIdTrie();
+        trie.put("r:/a", file("a"));
+        trie.clear();
+
+        assertNull(trie.get("r:/a"));
+    }
+}
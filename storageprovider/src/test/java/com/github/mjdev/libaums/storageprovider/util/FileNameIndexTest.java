@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2016 mjahnen <jahnen@in.tum.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.mjdev.libaums.storageprovider.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileNameIndexTest {
+
+    private static final String[] QUERIES = { "foo", "Ä", "o1", "bild1", "r1", "zzz4", ".jpg", "ab" };
+
+    private static List<String> sorted(List<String> paths) {
+        List<String> result = new ArrayList<>(paths);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void searchIgnoresCase() {
+        FileNameIndex index = new FileNameIndex();
+        index.add("", "Photos");
+        index.add("/Photos", "Urlaub.JPG");
+        index.add("", "urlaub.txt");
+
+        assertEquals(Arrays.asList("/Photos/Urlaub.JPG", "/urlaub.txt"),
+                sorted(index.search("URLAUB", Integer.MAX_VALUE)));
+        assertEquals(Arrays.asList("/Photos/Urlaub.JPG"), index.search(".jpg", Integer.MAX_VALUE));
+        // shorter than a trigram
+        assertEquals(Arrays.asList("/Photos", "/Photos/Urlaub.JPG"),
+                sorted(index.search("P", Integer.MAX_VALUE)));
+        assertTrue(index.search("nothing", Integer.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void searchStopsAtMaxResults() {
+        FileNameIndex index = new FileNameIndex();
+        for (int i = 0; i < 10; i++) {
+            index.add("", "file" + i);
+        }
+
+        assertEquals(3, index.search("file", 3).size());
+        assertEquals(3, index.search("fi", 3).size());
+    }
+
+    @Test
+    public void addToUnknownParentIsIgnored() {
+        FileNameIndex index = new FileNameIndex();
+        index.add("/missing", "file");
+
+        assertTrue(index.search("file", Integer.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void renameKeepsChildren() {
+        FileNameIndex index = new FileNameIndex();
+        index.add("", "dir");
+        index.add("/dir", "child");
+        index.rename("/dir", "renamed");
+
+        assertTrue(index.search("dir", Integer.MAX_VALUE).isEmpty());
+        assertEquals(Arrays.asList("/renamed"), index.search("renamed", Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("/renamed/child"), index.search("child", Integer.MAX_VALUE));
+
+        // the new path is used for later changes
+        index.add("/renamed", "second");
+        assertEquals(Arrays.asList("/renamed/second"), index.search("second", Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void removeRemovesSubtree() {
+        FileNameIndex index = new FileNameIndex();
+        index.add("", "dir");
+        index.add("/dir", "child");
+        index.add("/dir/child", "grandchild");
+        index.add("", "other");
+        index.remove("/dir");
+
+        assertTrue(index.search("child", Integer.MAX_VALUE).isEmpty());
+        assertTrue(index.search("dir", Integer.MAX_VALUE).isEmpty());
+        assertEquals(Arrays.asList("/other"), index.search("other", Integer.MAX_VALUE));
+
+        // the name can be used again
+        index.add("", "dir");
+        assertEquals(Arrays.asList("/dir"), index.search("dir", Integer.MAX_VALUE));
+    }
+
+    /**
+     * Applies random changes to the index and to a set of paths and compares
+     * the search results with a brute force search over the set.
+     */
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(3);
+        FileNameIndex index = new FileNameIndex();
+        Set<String> paths = new TreeSet<>();
+        List<String> directories = new ArrayList<>();
+        directories.add("");
+        String[] words = { "foo", "bar", "Baz", "qux", "äöü", "foto", "bild", "zzz", "ab" };
+
+        for (int step = 0; step < 20000; step++) {
+            int operation = random.nextInt(10);
+            if (operation < 8 || paths.isEmpty()) {
+                String parent = directories.get(random.nextInt(directories.size()));
+                String name = words[random.nextInt(words.length)] + random.nextInt(500)
+                        + (random.nextBoolean() ? ".jpg" : "");
+                String path = parent + "/" + name;
+                if (paths.contains(path)) {
+                    continue;
+                }
+                index.add(parent, name);
+                paths.add(path);
+                if (random.nextInt(4) == 0) {
+                    directories.add(path);
+                }
+            } else if (operation < 9) {
+                String path = pick(random, paths);
+                String newName = words[random.nextInt(words.length)] + "R" + random.nextInt(100000);
+                String newPath = path.substring(0, path.lastIndexOf('/') + 1) + newName;
+                if (paths.contains(newPath)) {
+                    continue;
+                }
+                index.rename(path, newName);
+                for (String moved : new ArrayList<>(paths)) {
+                    if (isInside(moved, path)) {
+                        paths.remove(moved);
+                        paths.add(newPath + moved.substring(path.length()));
+                    }
+                }
+                for (int i = 0; i < directories.size(); i++) {
+                    String directory = directories.get(i);
+                    if (isInside(directory, path)) {
+                        directories.set(i, newPath + directory.substring(path.length()));
+                    }
+                }
+            } else {
+                String path = pick(random, paths);
+                index.remove(path);
+                removeInside(paths, path);
+                removeInside(directories, path);
+            }
+
+            if (step % 500 == 0) {
+                for (String query : QUERIES) {
+                    assertEquals("step " + step + " query " + query, bruteForce(paths, query),
+                            new TreeSet<>(index.search(query, Integer.MAX_VALUE)));
+                }
+            }
+        }
+    }
+
+    private static String pick(Random random, Set<String> paths) {
+        List<String> list = new ArrayList<>(paths);
+        return list.get(random.nextInt(list.size()));
+    }
+
+    private static boolean isInside(String path, String directory) {
+        return path.equals(directory) || path.startsWith(directory + "/");
+    }
+
+    private static void removeInside(Iterable<String> paths, String directory) {
+        for (Iterator<String> iterator = paths.iterator(); iterator.hasNext(); ) {
+            if (isInside(iterator.next(), directory)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static Set<String> bruteForce(Set<String> paths, String query) {
+        String normalized = query.toLowerCase(Locale.ROOT);
+        Set<String> result = new TreeSet<>();
+        for (String path : paths) {
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            if (name.toLowerCase(Locale.ROOT).contains(normalized)) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+}
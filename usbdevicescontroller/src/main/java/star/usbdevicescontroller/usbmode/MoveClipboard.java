@@ -1,12 +1,17 @@
 package star.usbdevicescontroller.usbmode;
 
 
+import com.github.mjdev.libaums.UsbMassStorageDevice;
 import com.github.mjdev.libaums.fs.UsbFile;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MoveClipboard {
 
     private static MoveClipboard instance;
-    private UsbFile file;
+    private final List<UsbFile> files = new ArrayList<>();
+    private UsbMassStorageDevice device;
 
     private MoveClipboard() {
 
@@ -25,20 +30,49 @@ public class MoveClipboard {
 
     /**
      *
-     * @return The file saved in the clipboard.
+     * @return The files saved in the clipboard.
+     */
+    public synchronized UsbFile[] getFiles() {
+        return files.toArray(new UsbFile[files.size()]);
+    }
+
+    /**
+     *
+     * @return The device of the files saved in the clipboard.
      */
-    public synchronized UsbFile getFile() {
-        return file;
+    public synchronized UsbMassStorageDevice getDevice() {
+        return device;
+    }
+
+    public synchronized boolean isEmpty() {
+        return files.isEmpty();
     }
 
     /**
-     * Sets the file in the clipboard.
+     * Adds a file to the selection in the clipboard. The selection is
+     * replaced if the file is on another device than the selected files.
      *
      * @param file
      *            The file which shall be moved.
+     * @param device
+     *            The device the file is on, files on another device than
+     *            the destination are copied.
+     */
+    public synchronized void addFile(UsbFile file, UsbMassStorageDevice device) {
+        if (this.device != device) {
+            files.clear();
+            this.device = device;
+        }
+        if (!files.contains(file))
+            files.add(file);
+    }
+
+    /**
+     * Removes all files from the clipboard.
      */
-    public synchronized void setFile(UsbFile file) {
-        this.file = file;
+    public synchronized void clear() {
+        files.clear();
+        device = null;
     }
 
 }
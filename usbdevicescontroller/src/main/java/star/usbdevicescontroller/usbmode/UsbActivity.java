@@ -51,31 +51,24 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.github.magnusja.libaums.javafs.JavaFsFileSystemCreator;
-import com.github.mjdev.libaums.CustomLog;
 import com.github.mjdev.libaums.UsbMassStorageDevice;
+import com.github.mjdev.libaums.fs.CopyEngine;
 import com.github.mjdev.libaums.fs.FileSystem;
 import com.github.mjdev.libaums.fs.FileSystemFactory;
 import com.github.mjdev.libaums.fs.UsbFile;
-import com.github.mjdev.libaums.fs.UsbFileStreamFactory;
 import com.github.mjdev.libaums.partition.Partition;
 import com.github.mjdev.libaums.server.http.UsbFileHttpServerService;
 import com.github.mjdev.libaums.server.http.server.AsyncHttpServer;
 import com.github.mjdev.libaums.usb.UsbCommunicationFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import star.usbdevicescontroller.R;
 
@@ -95,6 +88,7 @@ public class UsbActivity extends AppCompatActivity {
 
     // TODO these are devices
     private List<UsbMassStorageDevice> storageDevices;
+    private UsbMassStorageDevice currentDevice;
     private FileSystem currentFs;
 
     private ListView listView;
@@ -134,6 +128,7 @@ public class UsbActivity extends AppCompatActivity {
             @Override
             public void onClick(UsbMassStorageDevice device, int position) {
                 textView.setText("Select Device " + position);
+                currentDevice = device;
                 curDevConnection = device.getDeviceConnection();
 
                 FileSystem fileSystem = device.getPartitions().get(0).getFileSystem();
@@ -146,7 +141,7 @@ public class UsbActivity extends AppCompatActivity {
                 }
 
                 try {
-                    listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(device.getDeviceConnection(), UsbActivity.this, usbFile));
+                    listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(device.getDeviceConnection(), device.getIoExecutor(), UsbActivity.this, usbFile));
                 } catch (IOException e) {
                     textView.setText("reSelect fail");
                     e.printStackTrace();
@@ -215,6 +210,7 @@ public class UsbActivity extends AppCompatActivity {
             textViewSpeed.setText("Init all devices, devices count = " + storageDevices.size() + ", use time " + (eTime - sTime) + "ms");
 
             UsbMassStorageDevice curUsbDevice = storageDevices.get(0);
+            currentDevice = curUsbDevice;
             currentFs = curUsbDevice.getPartitions().get(0).getFileSystem();
             customAdapter.setStorageDevices(storageDevices);
             curDevConnection = curUsbDevice.getDeviceConnection();
@@ -232,7 +228,7 @@ public class UsbActivity extends AppCompatActivity {
                 actionBar.setTitle(fileSystem.getVolumeLabel());
             }
 
-            listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(curUsbDevice.getDeviceConnection(), this, root));
+            listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(curUsbDevice.getDeviceConnection(), curUsbDevice.getIoExecutor(), this, root));
         } catch (IOException e) {
             Log.e("lion", "------------------------> setUpDevice fail");
             Log.e(TAG, "e setting up usbMassStorageDevice", e);
@@ -248,7 +244,7 @@ public class UsbActivity extends AppCompatActivity {
                 if (entry.isDirectory()) {
 
                     dirs.push(usbFileListAdapter.getCurrentDir());
-                    listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(curDevConnection, UsbActivity.this, entry)); // TODO multiple devices cause IOException
+                    listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(curDevConnection, currentDevice.getIoExecutor(), UsbActivity.this, entry)); // TODO multiple devices cause IOException
 
                 } else {
 
@@ -277,7 +273,8 @@ public class UsbActivity extends AppCompatActivity {
                         prefix += "pad";
                     }
                         copyTaskParam.to = File.createTempFile(prefix, ext, file);
-                        new CopyTask().execute(copyTaskParam);
+                        // 不同设备之间的拷贝并行进行
+                        new CopyTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, copyTaskParam);
                 }
                 }
                 catch (IOException e) {
@@ -345,7 +342,7 @@ public class UsbActivity extends AppCompatActivity {
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         MoveClipboard cl = MoveClipboard.getInstance();
-        menu.findItem(R.id.paste).setEnabled(cl.getFile() != null);
+        menu.findItem(R.id.paste).setEnabled(!cl.isEmpty());
         menu.findItem(R.id.stop_http_server).setEnabled(serverService != null && serverService.isServerRunning());
         return true;
     }
@@ -458,7 +455,8 @@ public class UsbActivity extends AppCompatActivity {
                 return true;
             case R.id.move_item:
                 MoveClipboard cl = MoveClipboard.getInstance();
-                cl.setFile(entry);
+                cl.addFile(entry, currentDevice);
+                Toast.makeText(UsbActivity.this, cl.getFiles().length + " selected", Toast.LENGTH_SHORT).show();
                 return true;
             case R.id.start_http_server:
                 startHttpServer(entry);
@@ -562,20 +560,33 @@ public class UsbActivity extends AppCompatActivity {
      */
     private void move() {
         MoveClipboard cl = MoveClipboard.getInstance();
-        UsbFile file = cl.getFile();
+        UsbFile[] files = cl.getFiles();
+        UsbMassStorageDevice device = cl.getDevice();
+        if (device != null && device != currentDevice) {
+            // 文件不能在不同的文件系统之间移动，改为拷贝后删除源文件
+            DeviceCopyTaskParam param = new DeviceCopyTaskParam();
+            param.from = files;
+            param.fromDevice = device;
+            param.toDirectory = usbFileListAdapter.getCurrentDir();
+            param.toDevice = currentDevice;
+            param.toFs = currentFs;
+            // 剪贴板在移动成功后才清空
+            new DeviceCopyTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, param);
+            return;
+        }
         try {
             long startTime = System.currentTimeMillis();
-//            file.moveTo(usbFileListAdapter.getCurrentDir());
-            file.moveTo(curDevConnection, usbFileListAdapter.getCurrentDir());
+            // 所有文件移动完后每个目录只写一次
+            usbFileListAdapter.getCurrentDir().moveFiles(curDevConnection, files);
             long endTime = System.currentTimeMillis();
             long totalTime = endTime - startTime;
-            textViewSpeed.setText("Total Time = " + totalTime + ", fileLen = " + file.getLength());
+            textViewSpeed.setText("Total Time = " + totalTime + ", files = " + files.length);
             usbFileListAdapter.refresh();
         } catch (IOException e) {
             textViewSpeed.setText("Move IOException");
             Log.e(TAG, "e moving!", e);
         }
-        cl.setFile(null);
+        cl.clear();
     }
 
     @Override
@@ -597,7 +608,7 @@ public class UsbActivity extends AppCompatActivity {
     public void onBackPressed() {
         try {
             UsbFile dir = dirs.pop();
-            listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(curDevConnection, this, dir));
+            listView.setAdapter(usbFileListAdapter = new UsbFileListAdapter(curDevConnection, currentDevice.getIoExecutor(), this, dir));
         } catch (NoSuchElementException e) {
             super.onBackPressed();
         } catch (IOException e) {
@@ -627,6 +638,15 @@ public class UsbActivity extends AppCompatActivity {
         /* package */File to;
     }
 
+    // 用来存放要在Task进行设备之间Copy的文件
+    private static class DeviceCopyTaskParam {
+        /* package */UsbFile[] from;
+        /* package */UsbMassStorageDevice fromDevice;
+        /* package */UsbFile toDirectory;
+        /* package */UsbMassStorageDevice toDevice;
+        /* package */FileSystem toFs;
+    }
+
     public static class NewDirDialog extends DialogFragment {
 
         @Override
@@ -717,12 +737,8 @@ public class UsbActivity extends AppCompatActivity {
     /**
      * 在Task中，通过USB从MassStorage设备拷贝文件到本机内部存储
      */
-    private final int[] calculate = {0};
-    private int preCount = 0, speed = 0;
+    private class CopyTask extends AsyncTask<CopyTaskParam, Long, Void> {
 
-    private class CopyTask extends AsyncTask<CopyTaskParam, Integer, Void> {
-
-        private Timer timer = new Timer();
         private ProgressDialog dialog;
         private CopyTaskParam param;
 
@@ -741,50 +757,19 @@ public class UsbActivity extends AppCompatActivity {
 
         @Override
         protected Void doInBackground(CopyTaskParam... params) {
-            final long time = System.currentTimeMillis();
-            final int total1[] = {0};
+            long time = System.currentTimeMillis();
             param = params[0];
-            try {
-                OutputStream out = new BufferedOutputStream(new FileOutputStream(param.to));
-//                InputStream inputStream = UsbFileStreamFactory.createBufferedInputStream(param.from, currentFs);
-                InputStream inputStream = UsbFileStreamFactory.createBufferedInputStream(curDevConnection, param.from, currentFs);
-
-                byte[] bytes = new byte[1024 * 100];
-                int count;
-                int total = 0;
-
-                timer.scheduleAtFixedRate(
-                    new TimerTask() {
-                        @Override
-                        public void run() {
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    dialog.setMessage("Current Speed = " + ((calculate[0] - preCount) / 1024 / 1024) + "Mb");
-                                    preCount = calculate[0];
-                                }
-                            });
-                        }
-                    },
-                    0,
-                    1000);
-
-                long startTime = System.currentTimeMillis();
-                while ((count = inputStream.read(bytes)) != -1) {
-                    out.write(bytes, 0, count);
-                    total += count;
-                    calculate[0] += count;
-
-                    publishProgress((int) total);
+            // 从设备读取和写入本机存储同时进行
+            CopyEngine engine = new CopyEngine(curDevConnection, currentFs.getChunkSize(), CopyEngine.DEFAULT_BUFFERS);
+            engine.setListener(new CopyEngine.Listener() {
+                @Override
+                public void onProgress(long copied, long total, long bytesPerSecond, long remainingMillis) {
+                    publishProgress(copied, total, bytesPerSecond, remainingMillis);
                 }
-                total1[0] = total;
-
-                out.close();
-                inputStream.close();
+            });
+            try {
+                engine.copy(param.from, param.to);
             } catch (IOException e) {
-                CustomLog.e("lion", "-------------------------> copy error");
-                e.printStackTrace();
-
                 Log.e(TAG, "e copying!", e);
             }
             Log.d(TAG, "copy time: " + (System.currentTimeMillis() - time));
@@ -814,14 +799,94 @@ public class UsbActivity extends AppCompatActivity {
             } catch (ActivityNotFoundException e) {
                 Toast.makeText(UsbActivity.this, R.string.usb_cannot_openfile, Toast.LENGTH_LONG).show();
             }
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            // 对话框只接受int，所以进度以KiB为单位
+            dialog.setMax((int) (values[1] / 1024));
+            dialog.setProgress((int) (values[0] / 1024));
+            String message = "Current Speed = " + (values[2] / 1024 / 1024) + "MB/s";
+            if (values[3] >= 0) {
+                message += ", " + (values[3] / 1000) + "s left";
+            }
+            dialog.setMessage(message);
+        }
+    }
+
+    /**
+     * 在Task中，从一个MassStorage设备拷贝文件到另一个设备，读写同时进行
+     */
+    private class DeviceCopyTask extends AsyncTask<DeviceCopyTaskParam, Long, IOException> {
+
+        private ProgressDialog dialog;
 
-            timer.cancel();
+        public DeviceCopyTask() {
+            dialog = new ProgressDialog(UsbActivity.this);
+            dialog.setTitle(R.string.move);
+            dialog.setMessage(getString(R.string.move_file_hint));
+            dialog.setIndeterminate(false);
+            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        }
+
+        @Override
+        protected void onPreExecute() {
+            dialog.show();
+        }
+
+        @Override
+        protected IOException doInBackground(DeviceCopyTaskParam... params) {
+            long time = System.currentTimeMillis();
+            DeviceCopyTaskParam param = params[0];
+            FileSystem fromFs = param.fromDevice.getPartitions().get(0).getFileSystem();
+            CopyEngine engine = new CopyEngine(param.fromDevice, fromFs, param.toDevice, param.toFs);
+            engine.setListener(new CopyEngine.Listener() {
+                @Override
+                public void onProgress(long copied, long total, long bytesPerSecond, long remainingMillis) {
+                    publishProgress(copied, total, bytesPerSecond, remainingMillis);
+                }
+            });
+            try {
+                // 所有文件一次拷贝，进度包括全部文件
+                engine.copy(param.from, param.toDirectory);
+            } catch (IOException e) {
+                Log.e(TAG, "e copying between devices!", e);
+                return e;
+            }
+            Log.d(TAG, "device copy time: " + (System.currentTimeMillis() - time));
+            try {
+                // 全部拷贝成功后才删除源文件
+                for (UsbFile file : param.from) {
+                    file.delete();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "e deleting moved files!", e);
+                return e;
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(IOException result) {
+            dialog.dismiss();
+            if (result != null) {
+                Toast.makeText(UsbActivity.this, "Move failed: " + result.getMessage(), Toast.LENGTH_LONG).show();
+            } else {
+                MoveClipboard.getInstance().clear();
+            }
+            try {
+                usbFileListAdapter.refresh();
+            } catch (IOException e) {
+                Log.e(TAG, "e refreshing!", e);
+            }
         }
 
         @Override
-        protected void onProgressUpdate(Integer... values) {
-            dialog.setMax((int) param.from.getLength());
-            dialog.setProgress(values[0]);
+        protected void onProgressUpdate(Long... values) {
+            // 对话框只接受int，所以进度以KiB为单位
+            dialog.setMax((int) (values[1] / 1024));
+            dialog.setProgress((int) (values[0] / 1024));
+            dialog.setMessage("Current Speed = " + (values[2] / 1024 / 1024) + "MB/s");
         }
     }
 }
@@ -2,30 +2,41 @@ package star.usbdevicescontroller.usbmode;
 
 import android.content.Context;
 import android.hardware.usb.UsbDeviceConnection;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
+import com.github.mjdev.libaums.fs.ListFilesTask;
 import com.github.mjdev.libaums.fs.UsbFile;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import star.usbdevicescontroller.R;
 
 public class UsbFileListAdapter extends ArrayAdapter<UsbFile> {
 
+    private static final String TAG = UsbFileListAdapter.class.getSimpleName();
+
     private List<UsbFile> usbFiles;
     private UsbFile currentDir;
     private LayoutInflater inflater;
     private Context mContext;
     private UsbDeviceConnection usbDeviceConnection;
+    private Executor executor;
+    private Handler handler = new Handler(Looper.getMainLooper());
+    private ListFilesTask listing;
+    // 每次refresh加一，用来丢弃旧的列表结果
+    private int generation = 0;
 
     // 对UsbFile中的UsbFile进行比较，把文件夹放在列表的前面
     private Comparator<UsbFile> comparator = new Comparator<UsbFile>() {
@@ -50,23 +61,69 @@ public class UsbFileListAdapter extends ArrayAdapter<UsbFile> {
         mContext = context;
     }
 
-    public UsbFileListAdapter(UsbDeviceConnection usbDeviceConnection, Context context, UsbFile dir) throws IOException {
+    /**
+     * @param executor 在其中读取目录，例如设备的I/O线程
+     */
+    public UsbFileListAdapter(UsbDeviceConnection usbDeviceConnection, Executor executor, Context context, UsbFile dir) throws IOException {
         super(context, R.layout.item_activity_usb_list);
         this.currentDir = dir;
         usbFiles = new ArrayList();
         this.usbDeviceConnection = usbDeviceConnection;
+        this.executor = executor;
 
         inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         refresh(); // ------> 1
     }
 
     // 读取海当前目录的文件夹及文件信息，并更新列表
+    // 目录在后台分批读取，第一批读到后马上显示，所以第一屏不用等整个目录读完
     public void refresh() throws IOException {
+        if (listing != null) {
+            listing.cancel();
+        }
 
-//        usbFiles = Arrays.asList(currentDir.listFiles()); // ------> 1
-        usbFiles = Arrays.asList(currentDir.listFiles(usbDeviceConnection)); // ------> 1
-        Collections.sort(usbFiles, comparator);
-        notifyDataSetChanged();
+        final int current = ++generation;
+        // 只在读取目录的线程中使用
+        final List<UsbFile> loaded = new ArrayList<>();
+        final int[] published = {0};
+        listing = currentDir.listFilesAsync(usbDeviceConnection, executor, new ListFilesTask.Callback() {
+            @Override
+            public void onFiles(UsbFile[] files) {
+                Collections.addAll(loaded, files);
+                // 列表每增长一倍才重新排序并显示一次，总的排序开销为O(n log n)
+                if (loaded.size() >= 2 * published[0]) {
+                    publish();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                // 目录为空时也要清空旧的列表
+                publish();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                Log.e(TAG, "e listing directory!", e);
+            }
+
+            // 在后台排序，UI线程只替换列表，旧的列表一直显示到第一批读到为止
+            private void publish() {
+                final List<UsbFile> sorted = new ArrayList<>(loaded);
+                Collections.sort(sorted, comparator);
+                published[0] = sorted.size();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (current != generation) {
+                            return;
+                        }
+                        usbFiles = sorted;
+                        notifyDataSetChanged();
+                    }
+                });
+            }
+        });
     }
 
     @Override